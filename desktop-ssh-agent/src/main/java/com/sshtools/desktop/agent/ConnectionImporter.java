@@ -0,0 +1,635 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sshtools.common.logger.Log;
+
+/**
+ * Imports many connections at once from an OpenSSH client configuration, a
+ * CSV file or a JSON array.
+ * <p>
+ * The source is read once from start to end. Each connection is checked
+ * against the saved connections and the rest of the import as it is read,
+ * and all of them are then saved in one batch, so the store is written once
+ * however many there are. A connection whose name is already saved for a
+ * different server is a conflict, and is left out unless overwriting.
+ * <p>
+ * In a client configuration, every <code>Host</code> name without wildcards
+ * becomes a connection, with the <code>HostName</code>, <code>Port</code> and
+ * <code>User</code> that OpenSSH would use for it, following
+ * <code>Include</code>. <code>Match</code> blocks can't be evaluated here and
+ * are ignored.
+ * <p>
+ * A CSV file has the columns <code>name</code>, <code>hostname</code>,
+ * <code>port</code>, <code>username</code> and <code>aliases</code>, in that
+ * order unless the first line names them. A JSON file is an array of objects
+ * with the same fields, such as <code>connections.json</code>.
+ */
+public class ConnectionImporter {
+
+	static final int MAX_INCLUDE_DEPTH = 16;
+	static final int DEFAULT_PORT = 22;
+	static final String[] CSV_COLUMNS = { "name", "hostname", "port", "username", "aliases" };
+
+	public enum Format {
+		SSH_CONFIG, CSV, JSON;
+
+		public static Format of(File file) {
+			String name = file.getName().toLowerCase();
+			if(name.endsWith(".csv")) {
+				return CSV;
+			} else if(name.endsWith(".json")) {
+				return JSON;
+			}
+			return SSH_CONFIG;
+		}
+	}
+
+	public static class Result {
+
+		int read;
+		int imported;
+		int updated;
+		int unchanged;
+		int invalid;
+		long elapsed;
+		final List<String> conflicts = new ArrayList<>();
+		final List<JsonConnection> connections = new ArrayList<>();
+
+		public int getRead() {
+			return read;
+		}
+
+		/**
+		 * Connections that were not saved before.
+		 */
+		public int getImported() {
+			return imported;
+		}
+
+		/**
+		 * Saved connections that were replaced when overwriting.
+		 */
+		public int getUpdated() {
+			return updated;
+		}
+
+		/**
+		 * Connections that are already saved as they are, or appear more than
+		 * once in the import.
+		 */
+		public int getUnchanged() {
+			return unchanged;
+		}
+
+		/**
+		 * Entries without a name or host.
+		 */
+		public int getInvalid() {
+			return invalid;
+		}
+
+		public List<String> getConflicts() {
+			return conflicts;
+		}
+
+		/**
+		 * The connections that were saved.
+		 */
+		public List<JsonConnection> getConnections() {
+			return connections;
+		}
+
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Read %d connections in %dms (%d/s).%n"
+					+ "%d new, %d updated, %d unchanged, %d invalid, %d conflicts.",
+					read, elapsed, elapsed == 0 ? read : read * 1000L / elapsed,
+					imported, updated, unchanged, invalid, conflicts.size());
+		}
+	}
+
+	/**
+	 * A <code>Host</code> block of a client configuration.
+	 */
+	static class Block {
+
+		final int order;
+		final Pattern[] patterns;
+		final boolean[] negated;
+		final Map<String, String> options = new HashMap<>();
+
+		Block(int order, String... patterns) {
+			this.order = order;
+			this.patterns = new Pattern[patterns.length];
+			this.negated = new boolean[patterns.length];
+			for(int i = 0; i < patterns.length; i++) {
+				negated[i] = patterns[i].startsWith("!");
+				this.patterns[i] = toRegex(negated[i] ? patterns[i].substring(1) : patterns[i]);
+			}
+		}
+
+		boolean matches(String host) {
+			boolean matched = false;
+			for(int i = 0; i < patterns.length; i++) {
+				if(patterns[i].matcher(host).matches()) {
+					if(negated[i]) {
+						return false;
+					}
+					matched = true;
+				}
+			}
+			return matched;
+		}
+	}
+
+	/**
+	 * The blocks of a client configuration. Blocks for plain host names are
+	 * looked up by name, so a configuration with thousands of hosts is not
+	 * matched against every block for every host.
+	 */
+	static class Config {
+
+		final List<Block> blocks = new ArrayList<>();
+		final List<Block> wildcards = new ArrayList<>();
+		final Map<String, List<Block>> named = new HashMap<>();
+		final Set<String> hosts = new LinkedHashSet<>();
+		/* The block options are added to, which is restored after an include */
+		Block current;
+
+		Config() {
+			wildcards.add(new Block(0, "*"));
+			blocks.add(wildcards.get(0));
+			current = wildcards.get(0);
+		}
+
+		void add(List<String> patterns) {
+			Block block = new Block(blocks.size(), patterns.toArray(new String[0]));
+			blocks.add(block);
+			current = block;
+			boolean literal = !patterns.isEmpty();
+			for(String pattern : patterns) {
+				if(isLiteral(pattern)) {
+					hosts.add(pattern);
+				} else {
+					literal = false;
+				}
+			}
+			if(literal) {
+				for(String pattern : patterns) {
+					named.computeIfAbsent(pattern.toLowerCase(), k -> new ArrayList<>()).add(block);
+				}
+			} else if(!patterns.isEmpty()) {
+				wildcards.add(block);
+			}
+		}
+
+		/**
+		 * The options for a host, taking the first value found for each in
+		 * the order of the blocks, as OpenSSH does.
+		 */
+		Map<String, String> getOptions(String host) {
+			List<Block> a = named.getOrDefault(host.toLowerCase(), List.of());
+			int i = 0, j = 0;
+			Map<String, String> options = new HashMap<>();
+			while(i < a.size() || j < wildcards.size()) {
+				Block block = j >= wildcards.size() || (i < a.size() && a.get(i).order < wildcards.get(j).order) 
+						? a.get(i++) : wildcards.get(j++);
+				if(block.matches(host)) {
+					for(Map.Entry<String, String> en : block.options.entrySet()) {
+						options.putIfAbsent(en.getKey(), en.getValue());
+					}
+				}
+			}
+			return options;
+		}
+
+		static boolean isLiteral(String pattern) {
+			return !pattern.startsWith("!") && pattern.indexOf('*') == -1 && pattern.indexOf('?') == -1;
+		}
+	}
+
+	final ConnectionStore store;
+	final boolean overwrite;
+	final ObjectReader reader = new ObjectMapper().readerFor(JsonConnection.class)
+			.without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+	Map<String, JsonConnection> batch;
+	Result result;
+
+	public ConnectionImporter(ConnectionStore store, boolean overwrite) {
+		this.store = store;
+		this.overwrite = overwrite;
+	}
+
+	public Result importFile(File file) throws IOException {
+		return importFile(file, Format.of(file));
+	}
+
+	public synchronized Result importFile(File file, Format format) throws IOException {
+
+		long started = System.currentTimeMillis();
+		batch = new LinkedHashMap<>();
+		result = new Result();
+
+		try {
+			switch(format) {
+			case CSV:
+				readCsv(file);
+				break;
+			case JSON:
+				readJson(file);
+				break;
+			default:
+				readConfig(file);
+				break;
+			}
+
+			store.importConnections(batch.values());
+			store.flush();
+			result.connections.addAll(batch.values());
+			result.elapsed = System.currentTimeMillis() - started;
+
+			if(Log.isInfoEnabled()) {
+				Log.info("Imported {} {}", file, result.toString().replace(System.lineSeparator(), " "));
+			}
+			return result;
+		} finally {
+			batch = null;
+		}
+	}
+
+	/**
+	 * Check one connection against the store and the connections read so far,
+	 * and add it to the batch if it is to be saved.
+	 */
+	void accept(String name, String hostname, int port, String username, Set<String> aliases, String[] hostKeys) {
+
+		result.read++;
+		if(Objects.isNull(name) || name.isBlank() || Objects.isNull(hostname) || hostname.isBlank()) {
+			result.invalid++;
+			return;
+		}
+		name = name.trim();
+		hostname = hostname.trim();
+		if(Objects.isNull(username) || username.isBlank()) {
+			username = System.getProperty("user.name");
+		}
+
+		JsonConnection earlier = batch.get(name);
+		if(Objects.nonNull(earlier)) {
+			if(isSameServer(earlier, hostname, port, username)) {
+				result.unchanged++;
+			} else {
+				result.conflicts.add(String.format("%s is defined more than once, using %s@%s:%d", name,
+						earlier.getUsername(), earlier.getHostname(), earlier.getPort()));
+			}
+			return;
+		}
+
+		JsonConnection existing = store.getConnection(name);
+		if(Objects.nonNull(existing)) {
+			if(isSameServer(existing, hostname, port, username)) {
+				result.unchanged++;
+				return;
+			}
+			if(!overwrite) {
+				result.conflicts.add(String.format("%s is already saved for %s@%s:%d", name,
+						existing.getUsername(), existing.getHostname(), existing.getPort()));
+				return;
+			}
+			result.updated++;
+		} else {
+			result.imported++;
+		}
+
+		Set<String> all = new TreeSet<>(aliases);
+		all.add(hostname);
+
+		JsonConnection con = new JsonConnection();
+		con.setName(name);
+		con.setHostname(hostname);
+		con.setPort(port);
+		con.setUsername(username);
+		con.setAliases(all.toArray(new String[0]));
+		con.setHostKeys(Objects.isNull(hostKeys) ? new String[0] : hostKeys);
+		batch.put(name, con);
+	}
+
+	private static boolean isSameServer(JsonConnection con, String hostname, int port, String username) {
+		return hostname.equalsIgnoreCase(con.getHostname()) && port == con.getPort()
+				&& Objects.equals(username, con.getUsername());
+	}
+
+	void readJson(File file) throws IOException {
+
+		try(JsonParser parser = reader.getFactory().createParser(file)) {
+			if(parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new IOException(String.format("%s is not a JSON array of connections", file));
+			}
+			while(parser.nextToken() == JsonToken.START_OBJECT) {
+				JsonConnection con = reader.readValue(parser);
+				accept(con.getName(), con.getHostname(), con.getPort() == 0 ? DEFAULT_PORT : con.getPort(),
+						con.getUsername(), toSet(con.getAliases()), con.getHostKeys());
+			}
+		}
+	}
+
+	void readCsv(File file) throws IOException {
+
+		try(BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int[] columns = null;
+			while((line = in.readLine()) != null) {
+				if(line.isBlank() || line.startsWith("#")) {
+					continue;
+				}
+				List<String> values = parseCsv(line);
+				if(Objects.isNull(columns)) {
+					columns = getColumns(values);
+					if(Objects.nonNull(columns)) {
+						continue;
+					}
+					columns = new int[] { 0, 1, 2, 3, 4 };
+				}
+
+				String port = getColumn(values, columns[2]);
+				try {
+					accept(getColumn(values, columns[0]), getColumn(values, columns[1]),
+							Objects.isNull(port) || port.isBlank() ? DEFAULT_PORT : Integer.parseInt(port.trim()),
+							getColumn(values, columns[3]),
+							toSet(Objects.isNull(getColumn(values, columns[4])) ? null : getColumn(values, columns[4]).split("[;\\s]+")),
+							null);
+				} catch(NumberFormatException e) {
+					result.read++;
+					result.invalid++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The index of each known column if this is a header line, otherwise
+	 * null.
+	 */
+	private static int[] getColumns(List<String> header) {
+		int[] columns = new int[CSV_COLUMNS.length];
+		Arrays.fill(columns, -1);
+		boolean found = false;
+		for(int i = 0; i < header.size(); i++) {
+			String h = header.get(i).trim().toLowerCase();
+			if(h.equals("host")) {
+				h = "hostname";
+			} else if(h.equals("user")) {
+				h = "username";
+			}
+			for(int c = 0; c < CSV_COLUMNS.length; c++) {
+				if(CSV_COLUMNS[c].equals(h)) {
+					columns[c] = i;
+					found = true;
+				}
+			}
+		}
+		return found ? columns : null;
+	}
+
+	private static String getColumn(List<String> values, int index) {
+		return index < 0 || index >= values.size() ? null : values.get(index);
+	}
+
+	static List<String> parseCsv(String line) {
+		List<String> values = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(quoted) {
+				if(c == '"') {
+					if(i + 1 < line.length() && line.charAt(i + 1) == '"') {
+						value.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					value.append(c);
+				}
+			} else if(c == '"') {
+				quoted = true;
+			} else if(c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	void readConfig(File file) throws IOException {
+
+		Config config = new Config();
+		Path path = file.toPath().toAbsolutePath();
+		readConfig(path, path.getParent(), config, 0);
+
+		for(String host : config.hosts) {
+			Map<String, String> options = config.getOptions(host);
+			String hostname = options.getOrDefault("hostname", host).replace("%h", host).replace("%%", "%");
+			String port = options.get("port");
+			try {
+				accept(host, hostname, Objects.isNull(port) ? DEFAULT_PORT : Integer.parseInt(port),
+						options.get("user"), Set.of(), null);
+			} catch(NumberFormatException e) {
+				result.read++;
+				result.invalid++;
+			}
+		}
+	}
+
+	/**
+	 * @param base the folder relative includes are resolved against
+	 */
+	private void readConfig(Path path, Path base, Config config, int depth) throws IOException {
+
+		if(depth > MAX_INCLUDE_DEPTH) {
+			throw new IOException(String.format("Too many nested includes at %s", path));
+		}
+
+		try(BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while((line = in.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				List<String> args = parseConfigLine(line);
+				if(args.isEmpty()) {
+					continue;
+				}
+				String keyword = args.remove(0).toLowerCase();
+				switch(keyword) {
+				case "host":
+					config.add(args);
+					break;
+				case "match":
+					/* Conditions can't be evaluated here, so nothing matches the block */
+					config.add(List.of());
+					break;
+				case "include":
+					Block enclosing = config.current;
+					for(String arg : args) {
+						for(Path included : glob(base, arg)) {
+							readConfig(included, base, config, depth + 1);
+						}
+					}
+					config.current = enclosing;
+					break;
+				default:
+					if(!args.isEmpty()) {
+						config.current.options.putIfAbsent(keyword, args.get(0));
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The files an <code>Include</code> names. As OpenSSH resolves relative
+	 * paths in a user configuration against <code>~/.ssh</code>, they are
+	 * resolved against the folder of the file being imported, however deeply
+	 * nested the include is. Wildcards may only appear in the file name.
+	 */
+	private static List<Path> glob(Path dir, String arg) throws IOException {
+
+		if(arg.startsWith("~/")) {
+			arg = System.getProperty("user.home") + arg.substring(1);
+		}
+		Path path = dir.resolve(arg);
+		Path parent = path.getParent();
+		String name = path.getFileName().toString();
+
+		List<Path> paths = new ArrayList<>();
+		if(name.indexOf('*') == -1 && name.indexOf('?') == -1) {
+			if(Files.isRegularFile(path)) {
+				paths.add(path);
+			}
+			return paths;
+		}
+		if(Files.isDirectory(parent)) {
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(parent, name)) {
+				for(Path p : stream) {
+					if(Files.isRegularFile(p)) {
+						paths.add(p);
+					}
+				}
+			}
+		}
+		paths.sort(null);
+		return paths;
+	}
+
+	/**
+	 * The keyword and arguments of a configuration line, which may be
+	 * separated by white space or an equals sign, with double quotes around
+	 * arguments that contain spaces.
+	 */
+	static List<String> parseConfigLine(String line) {
+		List<String> args = new ArrayList<>();
+		StringBuilder arg = new StringBuilder();
+		boolean quoted = false;
+		boolean separated = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"') {
+				quoted = !quoted;
+			} else if(!quoted && (Character.isWhitespace(c) 
+					|| (c == '=' && !separated && (args.isEmpty() || (args.size() == 1 && arg.length() == 0))))) {
+				if(c == '=') {
+					separated = true;
+				}
+				if(arg.length() > 0) {
+					args.add(arg.toString());
+					arg.setLength(0);
+				}
+			} else {
+				arg.append(c);
+			}
+		}
+		if(arg.length() > 0) {
+			args.add(arg.toString());
+		}
+		return args;
+	}
+
+	static Pattern toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		for(char c : glob.toCharArray()) {
+			if(c == '*') {
+				regex.append(".*");
+			} else if(c == '?') {
+				regex.append('.');
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+	}
+
+	private static Set<String> toSet(String[] values) {
+		Set<String> set = new TreeSet<>();
+		if(Objects.nonNull(values)) {
+			for(String value : values) {
+				if(!value.isBlank()) {
+					set.add(value.trim());
+				}
+			}
+		}
+		return set;
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.sshtools.common.logger.Log;
+
+/**
+ * Checks in the background whether the servers of the saved connections are
+ * reachable, by timing a TCP connection and reading the SSH identification
+ * line the server sends.
+ * <p>
+ * Probes run on a fixed number of threads, each with at most one socket
+ * open, so thousands of hosts are checked without running out of threads or
+ * file descriptors. Every probe is bounded by a timeout. Reachable hosts are
+ * checked again at a steady interval. Hosts that fail are re-checked quickly
+ * once, then with exponentially increasing, jittered delays while they stay
+ * down. The latest result for each host and port is kept until the next.
+ */
+public class ConnectionProber {
+
+	public interface Listener {
+		void probed(Collection<Probe> changed);
+	}
+
+	public enum Status {
+		UP, NOT_SSH, DOWN
+	}
+
+	public static class Probe {
+
+		final String target;
+		Status status;
+		long rtt;
+		String banner;
+		long checked;
+		int failures;
+		long due;
+		boolean running;
+
+		Probe(String target) {
+			this.target = target;
+		}
+
+		public String getTarget() {
+			return target;
+		}
+
+		/**
+		 * The status, or null if the host has not been checked yet.
+		 */
+		public synchronized Status getStatus() {
+			return status;
+		}
+
+		/**
+		 * Milliseconds to make the TCP connection.
+		 */
+		public synchronized long getRtt() {
+			return rtt;
+		}
+
+		public synchronized String getBanner() {
+			return banner;
+		}
+
+		public synchronized long getChecked() {
+			return checked;
+		}
+	}
+
+	public static final int DEFAULT_PARALLELISM = 32;
+	public static final int DEFAULT_TIMEOUT = 3000;
+
+	static final long TICK = TimeUnit.SECONDS.toMillis(5);
+	static final long UP_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+	static final long FIRST_RETRY = TimeUnit.SECONDS.toMillis(30);
+	static final long MAXIMUM_RETRY = TimeUnit.MINUTES.toMillis(30);
+	static final int MAXIMUM_BANNER = 255;
+	static final int MAXIMUM_PREAMBLE = 8;
+
+	final Supplier<Collection<JsonConnection>> connections;
+	final Listener listener;
+	final int timeout;
+	final Map<String, Probe> probes = new ConcurrentHashMap<>();
+	final Set<Probe> changed = new HashSet<>();
+	final ScheduledExecutorService ticker;
+	final ExecutorService pool;
+
+	ScheduledFuture<?> nextTick;
+
+	public ConnectionProber(Supplier<Collection<JsonConnection>> connections, Listener listener) {
+		this(connections, listener, DEFAULT_PARALLELISM, DEFAULT_TIMEOUT);
+	}
+
+	public ConnectionProber(Supplier<Collection<JsonConnection>> connections, Listener listener, int parallelism, int timeout) {
+		this.connections = connections;
+		this.listener = listener;
+		this.timeout = timeout;
+		ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ConnectionProber");
+			t.setDaemon(true);
+			return t;
+		});
+		AtomicInteger threads = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(parallelism, r -> {
+			Thread t = new Thread(r, "ConnectionProber-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public synchronized void start() {
+		if(Objects.isNull(nextTick)) {
+			nextTick = ticker.scheduleWithFixedDelay(this::tick, 0L, TICK, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if(Objects.nonNull(nextTick)) {
+			nextTick.cancel(false);
+			nextTick = null;
+		}
+	}
+
+	/**
+	 * Check every host again as soon as possible.
+	 */
+	public void probeNow() {
+		for(Probe probe : probes.values()) {
+			synchronized(probe) {
+				probe.due = 0;
+			}
+		}
+		ticker.execute(this::tick);
+	}
+
+	/**
+	 * The latest result for a connection's server, or null if it has not been
+	 * checked yet.
+	 */
+	public Probe get(JsonConnection con) {
+		Probe probe = probes.get(getTarget(con));
+		return Objects.isNull(probe) || Objects.isNull(probe.getStatus()) ? null : probe;
+	}
+
+	private void tick() {
+		try {
+			long now = System.currentTimeMillis();
+			Set<String> targets = new HashSet<>();
+			for(JsonConnection con : connections.get()) {
+				if(con.isRemote() || Objects.isNull(con.getHostname())) {
+					continue;
+				}
+				String target = getTarget(con);
+				if(!targets.add(target)) {
+					continue;
+				}
+				Probe probe = probes.computeIfAbsent(target, Probe::new);
+				synchronized(probe) {
+					if(probe.running || probe.due > now) {
+						continue;
+					}
+					probe.running = true;
+				}
+				String hostname = con.getHostname();
+				int port = con.getPort();
+				pool.execute(() -> probe(probe, hostname, port));
+			}
+			probes.keySet().retainAll(targets);
+		} catch(Throwable e) {
+			Log.error("Connection probe error", e);
+		}
+	}
+
+	private void probe(Probe probe, String hostname, int port) {
+
+		Status status;
+		long rtt = 0;
+		String banner = null;
+		boolean connected = false;
+		long started = System.nanoTime();
+		try(Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(hostname, port), timeout);
+			rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+			connected = true;
+			socket.setSoTimeout(timeout);
+			banner = readBanner(new BufferedInputStream(socket.getInputStream(), MAXIMUM_BANNER + 1));
+			status = Objects.isNull(banner) ? Status.NOT_SSH : Status.UP;
+		} catch(IOException | RuntimeException e) {
+			/* Something that accepts connections but never identifies itself is not SSH */
+			status = connected ? Status.NOT_SSH : Status.DOWN;
+			if(Log.isDebugEnabled()) {
+				Log.debug("Probe of {}:{} failed: {}", hostname, port, e.getMessage());
+			}
+		}
+
+		boolean notify;
+		synchronized(probe) {
+			notify = status != probe.status || Math.abs(rtt - probe.rtt) > Math.max(5L, probe.rtt / 5);
+			probe.status = status;
+			probe.rtt = rtt;
+			probe.banner = banner;
+			probe.checked = System.currentTimeMillis();
+			probe.failures = status == Status.UP ? 0 : probe.failures + 1;
+			probe.due = probe.checked + nextDelay(probe.failures);
+			probe.running = false;
+		}
+
+		if(notify) {
+			changed(probe);
+		}
+	}
+
+	/**
+	 * Changes are passed on in batches about once a second, so a large
+	 * catalog being probed does not flood the listener.
+	 */
+	private void changed(Probe probe) {
+		synchronized(changed) {
+			if(changed.add(probe) && changed.size() == 1) {
+				ticker.schedule(() -> {
+					Set<Probe> batch;
+					synchronized(changed) {
+						batch = new HashSet<>(changed);
+						changed.clear();
+					}
+					try {
+						listener.probed(batch);
+					} catch(Throwable e) {
+						Log.error("Connection probe listener error", e);
+					}
+				}, TICK / 5, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	static long nextDelay(int failures) {
+		if(failures == 0) {
+			/* Spread steady state checks by up to 10% */
+			return UP_INTERVAL - ThreadLocalRandom.current().nextLong(UP_INTERVAL / 10);
+		}
+		long ceiling = Math.min(MAXIMUM_RETRY, FIRST_RETRY << Math.min(failures - 1, 16));
+		/* Equal jitter, between half and the whole of the backoff */
+		return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+	}
+
+	/**
+	 * The identification line of an SSH server, which may be preceded by a
+	 * few other lines, or null if the server sends something else.
+	 */
+	static String readBanner(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int lines = 0;
+		int c;
+		while((c = in.read()) != -1) {
+			if(c == '\n') {
+				String text = line.toString().trim();
+				if(text.startsWith("SSH-")) {
+					return text;
+				}
+				if(++lines >= MAXIMUM_PREAMBLE) {
+					return null;
+				}
+				line.setLength(0);
+			} else if(line.length() < MAXIMUM_BANNER) {
+				line.append((char) c);
+			} else {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	static String getTarget(JsonConnection con) {
+		return String.valueOf(con.getHostname()).toLowerCase() + ":" + con.getPort();
+	}
+}
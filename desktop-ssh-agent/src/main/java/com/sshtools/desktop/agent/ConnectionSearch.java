@@ -0,0 +1,439 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A trigram index over the name, host name, username and aliases of the
+ * saved connections, for finding one to launch as the user types.
+ * <p>
+ * Each word of each field is indexed by its trigrams, plus one and two
+ * character prefixes so short queries match the start of words. A query is
+ * answered from the smallest posting lists only, so its cost depends on how
+ * many connections could match rather than how many there are, and a query
+ * that matches thousands only ranks a sample of them, plus every connection
+ * whose name is the query or starts with it, so an exact name is never
+ * missed. Queries of
+ * four or more characters tolerate one trigram that does not match, e.g. a
+ * typo. Matches are ranked by how well they match and how recently they
+ * were launched.
+ * <p>
+ * The index is kept up to date by {@link ConnectionStore} as connections are
+ * added, changed and removed. It may be shared by a store of saved
+ * connections and one of connections shared by a gateway, in which case a
+ * saved connection is preferred to a shared one of the same name.
+ */
+public class ConnectionSearch {
+
+	static final char BOUNDARY = '\u0000';
+	static final long RECENT_HALF_LIFE = TimeUnit.DAYS.toMillis(1);
+	static final int MAX_CANDIDATES = 500;
+	static final int MAX_NAME_MATCHES = 100;
+	static final Posting NONE = new Posting();
+
+	/**
+	 * The sorted ids of the entries with a term. Ids are mostly handed out in
+	 * increasing order, so adding one is usually an append.
+	 */
+	static class Posting {
+
+		int[] ids = new int[2];
+		int size;
+
+		void add(int id) {
+			int at = Arrays.binarySearch(ids, 0, size, id);
+			if(at >= 0) {
+				return;
+			}
+			at = -at - 1;
+			if(size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			System.arraycopy(ids, at, ids, at + 1, size - at);
+			ids[at] = id;
+			size++;
+		}
+
+		boolean remove(int id) {
+			int at = Arrays.binarySearch(ids, 0, size, id);
+			if(at >= 0) {
+				System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+				size--;
+			}
+			return size == 0;
+		}
+
+		boolean contains(int id) {
+			return Arrays.binarySearch(ids, 0, size, id) >= 0;
+		}
+	}
+
+	static class Candidate {
+
+		final int id;
+		final double score;
+
+		Candidate(int id, double score) {
+			this.id = id;
+			this.score = score;
+		}
+	}
+
+	final Map<Integer, Posting> postings = new HashMap<>();
+	final Map<JsonConnection, Integer> ids = new IdentityHashMap<>();
+	final Map<String, Integer> named = new HashMap<>();
+	/* Ids by lowercased name, for names starting with the query */
+	final TreeMap<String, List<Integer>> lowerNames = new TreeMap<>();
+	final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+
+	JsonConnection[] connections = new JsonConnection[256];
+	int[][] terms = new int[256][];
+	/* Lowercased name, host name, username and aliases of each entry, as indexed */
+	String[][] fields = new String[256][];
+	String[] names = new String[256];
+	int[] free = new int[16];
+	int freeCount;
+	int next;
+
+	public synchronized void add(JsonConnection con) {
+
+		if(ids.containsKey(con)) {
+			remove(con);
+		}
+
+		int id = freeCount > 0 ? free[--freeCount] : next++;
+		if(id >= connections.length) {
+			int size = connections.length * 2;
+			connections = Arrays.copyOf(connections, size);
+			terms = Arrays.copyOf(terms, size);
+			fields = Arrays.copyOf(fields, size);
+			names = Arrays.copyOf(names, size);
+		}
+
+		String[] f = getFields(con);
+		int[] t = getTerms(f);
+		connections[id] = con;
+		fields[id] = f;
+		terms[id] = t;
+		names[id] = con.getName();
+		ids.put(con, id);
+		named.put(con.getName(), id);
+		lowerNames.computeIfAbsent(f[0], k -> new ArrayList<>(1)).add(id);
+
+		for(int term : t) {
+			postings.computeIfAbsent(term, k -> new Posting()).add(id);
+		}
+	}
+
+	public synchronized void remove(JsonConnection con) {
+
+		Integer id = ids.remove(con);
+		if(Objects.isNull(id)) {
+			return;
+		}
+
+		for(int term : terms[id]) {
+			Posting posting = postings.get(term);
+			if(Objects.nonNull(posting) && posting.remove(id)) {
+				postings.remove(term);
+			}
+		}
+
+		named.remove(names[id], id);
+		List<Integer> sameName = lowerNames.get(fields[id][0]);
+		if(Objects.nonNull(sameName) && sameName.remove(id) && sameName.isEmpty()) {
+			lowerNames.remove(fields[id][0]);
+		}
+		connections[id] = null;
+		terms[id] = null;
+		fields[id] = null;
+		names[id] = null;
+		if(freeCount == free.length) {
+			free = Arrays.copyOf(free, free.length * 2);
+		}
+		free[freeCount++] = id;
+	}
+
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Note a connection has been launched, so it ranks higher for a while.
+	 */
+	public void used(JsonConnection con) {
+		lastUsed.put(con.getName(), System.currentTimeMillis());
+	}
+
+	/**
+	 * The best matches for a query, best first. An empty query gives the most
+	 * recently used connections.
+	 */
+	public synchronized List<JsonConnection> search(String query, int max) {
+
+		String q = query.trim().toLowerCase();
+		long now = System.currentTimeMillis();
+		/* Room for a saved and a shared connection with the same name */
+		int limit = max * 2;
+		PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1, Comparator.comparingDouble(c -> c.score));
+
+		if(q.isEmpty()) {
+			for(Integer id : getRecent()) {
+				offer(best, new Candidate(id, recency(connections[id], now)), limit);
+			}
+			return results(best, max);
+		}
+
+		/* Words too short for a trigram can still match the start of a word */
+		String[] words = q.split("\\s+");
+		int[] wanted = getTerms(words, false);
+		if(wanted.length == 0) {
+			wanted = getTerms(words, true);
+		}
+		Posting[] lists = new Posting[wanted.length];
+		for(int i = 0; i < wanted.length; i++) {
+			lists[i] = postings.getOrDefault(wanted[i], NONE);
+		}
+		Arrays.sort(lists, Comparator.comparingInt(l -> l.size));
+
+		/*
+		 * Entries with every term are scored first. Only if there are too few
+		 * are those missing one term considered, and any of those must be in
+		 * one of the two smallest lists. A query that matches a great many
+		 * entries is not selective enough to be worth ranking them all, so
+		 * only so many are scored, plus any recently used.
+		 */
+		Set<Integer> recent = getRecent();
+		Set<Integer> seeded = new HashSet<>();
+		for(List<Integer> sameName : lowerNames.subMap(q, true, q + Character.MAX_VALUE, false).values()) {
+			if(seeded.size() >= MAX_NAME_MATCHES) {
+				break;
+			}
+			for(Integer id : sameName) {
+				if(!recent.contains(id)) {
+					seeded.add(id);
+					offer(best, new Candidate(id, score(id, words, wanted.length, wanted.length)), limit);
+				}
+			}
+		}
+
+		int allowed = wanted.length >= 2 && q.length() >= 4 ? 1 : 0;
+		int scored = 0;
+		for(int missing = 0; missing <= allowed && best.size() < limit; missing++) {
+			for(int s = 0; s <= missing && s < lists.length && scored < MAX_CANDIDATES; s++) {
+				for(int i = 0; i < lists[s].size && scored < MAX_CANDIDATES; i++) {
+					int id = lists[s].ids[i];
+					if(isSeen(lists, s, id) || recent.contains(id) || seeded.contains(id)) {
+						continue;
+					}
+					int hits = getHits(lists, id, missing);
+					if(hits == wanted.length - missing) {
+						offer(best, new Candidate(id, score(id, words, hits, wanted.length)), limit);
+						scored++;
+					}
+				}
+			}
+		}
+
+		for(Integer id : recent) {
+			int hits = fields[id][0].startsWith(q) ? wanted.length : getHits(lists, id, allowed);
+			if(hits >= wanted.length - allowed) {
+				offer(best, new Candidate(id, score(id, words, hits, wanted.length) + recency(connections[id], now)), limit);
+			}
+		}
+
+		return results(best, max);
+	}
+
+	/**
+	 * How many of the lists contain an entry, or -1 once more than the
+	 * allowed number do not.
+	 */
+	private static int getHits(Posting[] lists, int id, int allowed) {
+		int hits = 0;
+		int misses = 0;
+		for(Posting list : lists) {
+			if(list.contains(id)) {
+				hits++;
+			} else if(++misses > allowed) {
+				return -1;
+			}
+		}
+		return hits;
+	}
+
+	private Set<Integer> getRecent() {
+		Set<Integer> recent = new HashSet<>();
+		for(String name : lastUsed.keySet()) {
+			Integer id = named.get(name);
+			if(Objects.nonNull(id)) {
+				recent.add(id);
+			}
+		}
+		return recent;
+	}
+
+	/**
+	 * How well each word of the query matches the entry's fields, best when
+	 * it is the whole of a field or the start of one of its words, and in the
+	 * name rather than the host name or elsewhere.
+	 */
+	private double score(int id, String[] words, int hits, int total) {
+
+		String[] f = fields[id];
+		double score = 0;
+		for(String word : words) {
+			double best = 0;
+			for(int i = 0; i < f.length; i++) {
+				double weight = i == 0 ? 3 : i == 1 ? 2 : 1;
+				int at = f[i].indexOf(word);
+				if(at < 0) {
+					continue;
+				}
+				if(f[i].length() == word.length()) {
+					best = Math.max(best, 4 * weight);
+				} else if(at == 0 || !Character.isLetterOrDigit(f[i].charAt(at - 1))) {
+					best = Math.max(best, 3 * weight);
+				} else {
+					best = Math.max(best, 2 * weight);
+				}
+			}
+			score += best;
+		}
+		score = 10d * score / words.length + 10d * hits / total;
+		return hits < total ? score / 2 : score;
+	}
+
+	private double recency(JsonConnection con, long now) {
+		Long used = lastUsed.get(con.getName());
+		if(Objects.isNull(used)) {
+			return 0;
+		}
+		return 30d * Math.pow(0.5, (double) Math.max(0, now - used) / RECENT_HALF_LIFE);
+	}
+
+	/**
+	 * The best first, with only one connection of each name, preferring a
+	 * saved connection to a shared one.
+	 */
+	private List<JsonConnection> results(PriorityQueue<Candidate> best, int max) {
+		List<JsonConnection> ranked = new ArrayList<>(best.size());
+		while(!best.isEmpty()) {
+			ranked.add(connections[best.poll().id]);
+		}
+		Collections.reverse(ranked);
+
+		Map<String, JsonConnection> byName = new LinkedHashMap<>();
+		for(JsonConnection con : ranked) {
+			JsonConnection other = byName.get(con.getName());
+			if(Objects.isNull(other) || (other.isRemote() && !con.isRemote())) {
+				byName.put(con.getName(), con);
+			}
+		}
+		List<JsonConnection> results = new ArrayList<>(byName.values());
+		return results.size() > max ? new ArrayList<>(results.subList(0, max)) : results;
+	}
+
+	private static void offer(PriorityQueue<Candidate> best, Candidate c, int max) {
+		if(best.size() < max) {
+			best.add(c);
+		} else if(max > 0 && best.peek().score < c.score) {
+			best.poll();
+			best.add(c);
+		}
+	}
+
+	static String[] getFields(JsonConnection con) {
+		List<String> f = new ArrayList<>();
+		f.add(lower(con.getName()));
+		f.add(lower(con.getHostname()));
+		f.add(lower(con.getUsername()));
+		if(Objects.nonNull(con.getAliases())) {
+			for(String alias : con.getAliases()) {
+				f.add(lower(alias));
+			}
+		}
+		return f.toArray(new String[0]);
+	}
+
+	static int[] getTerms(String[] fields) {
+		return getTerms(fields, true);
+	}
+
+	/**
+	 * The distinct, sorted trigrams of the words in some text. Each word is
+	 * padded at the start, so its first one and two characters are also terms
+	 * when prefixes are wanted.
+	 */
+	static int[] getTerms(String[] fields, boolean prefixes) {
+		int[] t = new int[16];
+		int n = 0;
+		for(String field : fields) {
+			for(String word : field.split("[^\\p{L}\\p{N}]+")) {
+				if(word.isEmpty()) {
+					continue;
+				}
+				String w = prefixes ? "" + BOUNDARY + BOUNDARY + word : word;
+				for(int i = 0; i + 3 <= w.length(); i++) {
+					if(n == t.length) {
+						t = Arrays.copyOf(t, n * 2);
+					}
+					t[n++] = trigram(w.charAt(i), w.charAt(i + 1), w.charAt(i + 2));
+				}
+			}
+		}
+		return Arrays.stream(t, 0, n).sorted().distinct().toArray();
+	}
+
+	static int trigram(char a, char b, char c) {
+		return ((a & 0x3ff) << 20) | ((b & 0x3ff) << 10) | (c & 0x3ff);
+	}
+
+	private static String lower(String s) {
+		return Objects.isNull(s) ? "" : s.toLowerCase();
+	}
+
+	/**
+	 * Whether an entry was already considered from one of the smaller lists.
+	 */
+	private static boolean isSeen(Posting[] lists, int s, int id) {
+		for(int i = 0; i < s; i++) {
+			if(lists[i].contains(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -19,14 +19,30 @@
 package com.sshtools.desktop.agent;
 
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -34,48 +50,312 @@ import com.sshtools.common.logger.Log;
 import com.sshtools.common.publickey.SshKeyUtils;
 import com.sshtools.common.ssh.components.SshPublicKey;
 import com.sshtools.common.util.IOUtils;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsVerifier;
 
+/**
+ * The locally saved connections.
+ * <p>
+ * Changes are made in memory and written behind by a background flusher, so
+ * many edits in quick succession are coalesced into one write, and only the
+ * connections that changed are appended to a journal. Once the journal holds
+ * more records than there are connections, it is folded into a new snapshot
+ * that is written to a temporary file and renamed over
+ * <code>connections.json</code>. Any journal left by a crash is replayed on
+ * the next start.
+ * <p>
+ * Connections are also indexed by name, and by host name and alias, in
+ * concurrent maps, so they can be found without locking or scanning.
+ * Readers of the whole list share an unmodifiable copy that is only rebuilt
+ * after a change. A {@link ConnectionSearch} is kept up to date with them
+ * for quick launching.
+ */
 public class ConnectionStore {
 
-	Set<JsonConnection> localConnections;
+	static final long FLUSH_DELAY = 500L;
+	static final int MINIMUM_COMPACTION = 1000;
+
+	final File snapshotFile;
+	final File journalFile;
+	final ObjectMapper mapper = new ObjectMapper();
+	final Map<String, JsonConnection> localConnections = new LinkedHashMap<>();
+	final Map<String, JsonConnection> byName = new ConcurrentHashMap<>();
+	final Map<String, List<JsonConnection>> byHost = new ConcurrentHashMap<>();
+	final ConnectionSearch search;
+	final boolean remote;
+	/* Connections changed since the last flush, mapped to null when deleted */
+	final Map<String, JsonConnection> pending = new LinkedHashMap<>();
+	final Object ioLock = new Object();
+	final ScheduledExecutorService writer;
+
+	ScheduledFuture<?> nextFlush;
+	int journalled;
+	volatile List<JsonConnection> view;
 	
 	public ConnectionStore() throws IOException {
+		this(new File(AbstractAgentProcess.CONF_FOLDER, "connections.json"), 
+				new File(AbstractAgentProcess.CONF_FOLDER, "connections.journal"));
+	}
+	
+	ConnectionStore(File snapshotFile, File journalFile) {
+		this(snapshotFile, journalFile, false, new ConnectionSearch());
+	}
+	
+	/**
+	 * @param remote whether the connections are provided by a gateway, and
+	 *            so are marked as remote when loaded
+	 * @param search the search index to keep up to date, which may be shared
+	 *            with another store
+	 */
+	public ConnectionStore(File snapshotFile, File journalFile, boolean remote, ConnectionSearch search) {
+		this.snapshotFile = snapshotFile;
+		this.journalFile = journalFile;
+		this.remote = remote;
+		this.search = search;
+		writer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ConnectionStore");
+			t.setDaemon(true);
+			return t;
+		});
 		loadCachedConnections();
 	}
 	
 	private void loadCachedConnections() {
 		
-		File file = new File(AbstractAgentProcess.CONF_FOLDER, "connections.json");
+		if(snapshotFile.exists())  {
+			try {
+				for(JsonConnection con : mapper.readValue(IOUtils.readUTF8StringFromFile(snapshotFile), new TypeReference<List<JsonConnection>>() { })) {
+					localConnections.put(con.getName(), con);
+				}
+			} catch (IOException e) {
+				Log.error("Could not read local connection cache", e);
+			}
+		}
 		
-		localConnections = new HashSet<>();
-		if(file.exists())  {
+		if(journalFile.exists()) {
+			int replayed = 0;
+			try(BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					if(line.isBlank()) {
+						continue;
+					}
+					try {
+						apply(mapper.readValue(line, Change.class));
+						replayed++;
+					} catch(IOException e) {
+						/* Most likely the last record, cut short by a crash */
+						Log.error("Ignoring damaged connection journal record", e);
+					}
+				}
+			} catch (IOException e) {
+				Log.error("Could not read local connection journal", e);
+			}
 			
-			ObjectMapper mapper = new ObjectMapper();
+			if(Log.isInfoEnabled()) {
+				Log.info("Replayed {} connection changes", replayed);
+			}
+			
+			/* Start a fresh journal, so nothing is appended after a damaged record */
+			synchronized(this) {
+				journalled = Integer.MAX_VALUE;
+				pending.clear();
+			}
+			flush();
+		}
+		
+		for(JsonConnection con : localConnections.values()) {
+			con.setRemote(remote);
+			index(con);
+		}
+	}
+	
+	private void index(JsonConnection con) {
+		byName.put(con.getName(), con);
+		search.add(con);
+		for(String host : getHostNames(con)) {
+			byHost.compute(host, (k, v) -> {
+				List<JsonConnection> l = Objects.isNull(v) ? new ArrayList<>(1) : new ArrayList<>(v);
+				l.add(con);
+				return List.copyOf(l);
+			});
+		}
+	}
+	
+	private void unindex(String name, JsonConnection con) {
+		byName.remove(name, con);
+		search.remove(con);
+		for(String host : getHostNames(con)) {
+			byHost.computeIfPresent(host, (k, v) -> {
+				List<JsonConnection> l = new ArrayList<>(v);
+				l.remove(con);
+				return l.isEmpty() ? null : List.copyOf(l);
+			});
+		}
+	}
+	
+	private static Set<String> getHostNames(JsonConnection con) {
+		Set<String> hosts = new HashSet<>();
+		if(Objects.nonNull(con.getHostname())) {
+			hosts.add(con.getHostname().toLowerCase());
+		}
+		if(Objects.nonNull(con.getAliases())) {
+			for(String alias : con.getAliases()) {
+				hosts.add(alias.toLowerCase());
+			}
+		}
+		return hosts;
+	}
+	
+	private void apply(Change change) {
+		if(Objects.isNull(change.getConnection())) {
+			localConnections.remove(change.getName());
+		} else {
+			localConnections.put(change.getName(), change.getConnection());
+		}
+	}
+
+	/**
+	 * Write any pending changes now rather than waiting for the flusher.
+	 */
+	public void flush() {
+		
+		String records;
+		String snapshot = null;
+		
+		synchronized(ioLock) {
+			synchronized(this) {
+				if(Objects.nonNull(nextFlush)) {
+					nextFlush.cancel(false);
+					nextFlush = null;
+				}
+				try {
+					StringBuilder buf = new StringBuilder();
+					for(Map.Entry<String, JsonConnection> en : pending.entrySet()) {
+						buf.append(mapper.writeValueAsString(new Change(en.getKey(), en.getValue())));
+						buf.append('\n');
+					}
+					records = buf.toString();
+					journalled = (int) Math.min(Integer.MAX_VALUE, (long) journalled + pending.size());
+					if(journalled > Math.max(MINIMUM_COMPACTION, localConnections.size())) {
+						snapshot = mapper.writeValueAsString(localConnections.values());
+						journalled = 0;
+					}
+					pending.clear();
+				} catch (IOException e) {
+					Log.error("Could not serialize local connections", e);
+					return;
+				}
+			}
 			
+			/* 
+			 * The journal is always appended before the snapshot replaces it, and
+			 * replaying it over the snapshot gives the same result, so a crash
+			 * at any point loses nothing that was flushed.
+			 */
 			try {
-				localConnections.addAll(mapper.readValue(IOUtils.readUTF8StringFromFile(file), new TypeReference<List<JsonConnection>>() { }));
+				if(!records.isEmpty()) {
+					append(records);
+				}
+				if(Objects.nonNull(snapshot)) {
+					writeSnapshot(snapshot);
+					Files.deleteIfExists(journalFile.toPath());
+				}
 			} catch (IOException e) {
-				Log.error("Could not read local connection cache", e);
+				Log.error("Could not write local connection cache", e);
 			}
 		}
 	}
 	
-	private void saveCachedConnections() {
-		
-		File file = new File(AbstractAgentProcess.CONF_FOLDER, "connections.json");
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			IOUtils.writeUTF8StringToFile(file, mapper.writeValueAsString(localConnections));
-		} catch (IOException e) {
-			Log.error("Could not write local connection cache", e);
+	private synchronized void changed(String name, JsonConnection con) {
+		view = null;
+		pending.put(name, con);
+		if(Objects.isNull(nextFlush)) {
+			nextFlush = writer.schedule(this::flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void append(String records) throws IOException {
+		journalFile.getParentFile().mkdirs();
+		try(FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer buf = ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+			while(buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			channel.force(false);
+		}
+	}
+	
+	private void writeSnapshot(String snapshot) throws IOException {
+		snapshotFile.getParentFile().mkdirs();
+		File tmp = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+		try(FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(snapshot.getBytes(StandardCharsets.UTF_8));
+			while(buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			channel.force(false);
+		}
+		Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * An unmodifiable list of the connections, shared by callers until the
+	 * next change.
+	 */
+	public List<JsonConnection> getConnections() {
+		List<JsonConnection> v = view;
+		if(Objects.isNull(v)) {
+			synchronized(this) {
+				v = view;
+				if(Objects.isNull(v)) {
+					v = List.copyOf(localConnections.values());
+					view = v;
+				}
+			}
+		}
+		return v;
+	}
+	
+	public JsonConnection getConnection(String name) {
+		return byName.get(name);
+	}
+	
+	/**
+	 * The connections whose host name or one of whose aliases is the given
+	 * name or address.
+	 */
+	public List<JsonConnection> findByHost(String host) {
+		List<JsonConnection> found = byHost.get(host.toLowerCase());
+		return Objects.isNull(found) ? List.of() : found;
+	}
+	
+	/**
+	 * The first connection to the host on the given port.
+	 */
+	public JsonConnection findByHost(String host, int port) {
+		for(JsonConnection con : findByHost(host)) {
+			if(con.getPort() == port) {
+				return con;
+			}
 		}
+		return null;
+	}
+	
+	public ConnectionSearch getSearch() {
+		return search;
 	}
 
-	public  List<JsonConnection> getConnections() {		
-		return new ArrayList<>(localConnections);
+	/**
+	 * The connection for a host as it is named in known_hosts, i.e. with the
+	 * port in the form <code>[host]:port</code> when it is not 22.
+	 */
+	public JsonConnection findByKnownHost(String name) {
+		return findByHost(KnownHostsVerifier.getHostName(name), KnownHostsVerifier.getPort(name));
 	}
 
-	public JsonConnection createConnection(String name, String hostname, Integer port, String remoteUsername, Set<String> aliases, Set<SshPublicKey> hostKeys) {
+	public synchronized JsonConnection createConnection(String name, String hostname, Integer port, String remoteUsername, Set<String> aliases, Set<SshPublicKey> hostKeys) {
 		
 		try {
 			Set<String> keys = new TreeSet<String>();
@@ -91,8 +371,12 @@ public class ConnectionStore {
 			con.setAliases(aliases.toArray(new String[0]));
 			con.setHostKeys(keys.toArray(new String[0]));
 			
-			localConnections.add(con);
-			saveCachedConnections();
+			JsonConnection replaced = localConnections.put(name, con);
+			if(Objects.nonNull(replaced)) {
+				unindex(name, replaced);
+			}
+			index(con);
+			changed(name, con);
 			return con;
 
 		} catch(IOException e ) {
@@ -101,14 +385,142 @@ public class ConnectionStore {
 		} 
 	}
 
-	public void deleteConnection(JsonConnection con) throws IOException {
+	/**
+	 * The host keys pinned to a connection, provided it still points at the
+	 * given server.
+	 */
+	public synchronized Set<SshPublicKey> getHostKeys(String name, String hostname, Integer port) {
+		
+		Set<SshPublicKey> keys = new HashSet<>();
+		JsonConnection con = getConnection(name);
+		if(Objects.isNull(con) || Objects.isNull(con.getHostKeys())
+				|| !hostname.equalsIgnoreCase(con.getHostname()) || port != con.getPort()) {
+			return keys;
+		}
+		
+		for(String key : con.getHostKeys()) {
+			try {
+				keys.add(SshKeyUtils.getPublicKey(key));
+			} catch(IOException e) {
+				Log.error("Ignoring invalid host key on connection " + name, e);
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Pin a host key to a saved connection. Returns false if the key was
+	 * already pinned or the connection is no longer stored.
+	 */
+	public synchronized boolean addHostKey(JsonConnection connection, SshPublicKey key) throws IOException {
+		
+		JsonConnection con = getConnection(connection.getName());
+		if(Objects.isNull(con)) {
+			return false;
+		}
+		
+		Set<String> keys = new TreeSet<String>();
+		if(Objects.nonNull(con.getHostKeys())) {
+			keys.addAll(Arrays.asList(con.getHostKeys()));
+		}
+		if(!keys.add(SshKeyUtils.getOpenSSHFormattedKey(key))) {
+			return false;
+		}
+		
+		con.setHostKeys(keys.toArray(new String[0]));
+		if(con != connection) {
+			connection.setHostKeys(con.getHostKeys());
+		}
+		changed(con.getName(), con);
+		return true;
+	}
+	
+	/**
+	 * Add aliases to a saved connection, e.g. once its host name has been
+	 * resolved. Returns false if there were none to add or the connection is
+	 * no longer stored.
+	 */
+	public synchronized boolean addAliases(JsonConnection connection, Set<String> aliases) {
+		
+		JsonConnection con = getConnection(connection.getName());
+		if(Objects.isNull(con)) {
+			return false;
+		}
+		
+		Set<String> merged = new TreeSet<String>();
+		if(Objects.nonNull(con.getAliases())) {
+			merged.addAll(Arrays.asList(con.getAliases()));
+		}
+		if(!merged.addAll(aliases)) {
+			return false;
+		}
+		
+		unindex(con.getName(), con);
+		con.setAliases(merged.toArray(new String[0]));
+		index(con);
+		if(con != connection) {
+			connection.setAliases(con.getAliases());
+		}
+		changed(con.getName(), con);
+		return true;
+	}
+
+	/**
+	 * Save many connections at once, replacing any with the same names. They
+	 * are written together by the next flush.
+	 */
+	public synchronized void importConnections(Collection<JsonConnection> cons) {
 		
-		localConnections.remove(con);
-		saveCachedConnections();
+		for(JsonConnection con : cons) {
+			JsonConnection replaced = localConnections.put(con.getName(), con);
+			if(Objects.nonNull(replaced)) {
+				unindex(con.getName(), replaced);
+			}
+			index(con);
+			changed(con.getName(), con);
+		}
+	}
+
+	/**
+	 * Apply a set of changes from elsewhere, such as a gateway, in one batch.
+	 * When the changes are the complete list, any connection not in it is
+	 * deleted.
+	 */
+	public synchronized void applyChanges(Collection<JsonConnection> changed, Collection<String> deleted, boolean complete) {
+		
+		Set<String> removed = new HashSet<>(deleted);
+		if(complete) {
+			removed.addAll(localConnections.keySet());
+			for(JsonConnection con : changed) {
+				removed.remove(con.getName());
+			}
+		}
+		
+		for(String name : removed) {
+			JsonConnection con = localConnections.remove(name);
+			if(Objects.nonNull(con)) {
+				unindex(name, con);
+				changed(name, null);
+			}
+		}
+		
+		for(JsonConnection con : changed) {
+			con.setRemote(remote);
+		}
+		importConnections(changed);
+	}
+
+	public synchronized void deleteConnection(JsonConnection con) throws IOException {
+		
+		JsonConnection removed = localConnections.remove(con.getName());
+		if(Objects.nonNull(removed)) {
+			unindex(con.getName(), removed);
+			changed(con.getName(), null);
+		}
 		
 	}
 
-	public JsonConnection updateConnection(String oldName, String name, String hostname, Integer port, String remoteUsername, Set<String> aliases, Set<SshPublicKey> hostKeys) {
+	public synchronized JsonConnection updateConnection(String oldName, String name, String hostname, Integer port, String remoteUsername, Set<String> aliases, Set<SshPublicKey> hostKeys) {
 
 		try {
 			Set<String> keys = new TreeSet<String>();
@@ -116,21 +528,13 @@ public class ConnectionStore {
 				keys.add(SshKeyUtils.getOpenSSHFormattedKey(key));
 			}
 			
-			JsonConnection con = null;
-			for(JsonConnection c : localConnections) {
-				if(c.getName().equals(oldName)) {
-					con = c;
-					break;
-				}
-			}
+			JsonConnection con = localConnections.get(oldName);
 			
 			if(Objects.isNull(con)) {
 				return createConnection(name, hostname, port, remoteUsername, aliases, hostKeys);
 			}
 	
-			if(Objects.isNull(con)) {
-				con = new JsonConnection();
-			}
+			unindex(oldName, con);
 			con.setName(name);
 			con.setHostname(hostname);
 			con.setPort(port);
@@ -138,7 +542,16 @@ public class ConnectionStore {
 			con.setAliases(aliases.toArray(new String[0]));
 			con.setHostKeys(keys.toArray(new String[0]));
 			
-			saveCachedConnections();
+			if(!oldName.equals(name)) {
+				localConnections.remove(oldName);
+				changed(oldName, null);
+			}
+			JsonConnection replaced = localConnections.put(name, con);
+			if(Objects.nonNull(replaced) && replaced != con) {
+				unindex(name, replaced);
+			}
+			index(con);
+			changed(name, con);
 			return con;
 
 		} catch(IOException e ) {
@@ -147,4 +560,33 @@ public class ConnectionStore {
 		} 
 	}
 
+	/**
+	 * A journal record. A change without a connection is a deletion.
+	 */
+	public static class Change {
+		
+		String name;
+		JsonConnection connection;
+		
+		public Change() {
+		}
+		
+		Change(String name, JsonConnection connection) {
+			this.name = name;
+			this.connection = connection;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		public JsonConnection getConnection() {
+			return connection;
+		}
+		public void setConnection(JsonConnection connection) {
+			this.connection = connection;
+		}
+	}
 }
@@ -28,10 +28,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
-import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -43,8 +41,8 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -59,22 +57,21 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.prefs.Preferences;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
-import org.apache.commons.io.monitor.FileAlterationMonitor;
-import org.apache.commons.io.monitor.FileAlterationObserver;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.commons.lang3.math.NumberUtils;
-import org.apache.commons.lang3.time.DateUtils;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.DisposeEvent;
 import org.eclipse.swt.events.DisposeListener;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
@@ -87,6 +84,7 @@ import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
 import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
 import org.eclipse.swt.widgets.Tray;
 import org.eclipse.swt.widgets.TrayItem;
 
@@ -102,9 +100,9 @@ import com.sshtools.agent.openssh.OpenSSHConnectionFactory;
 import com.sshtools.agent.provider.namedpipes.AbstractNamedPipe;
 import com.sshtools.agent.provider.namedpipes.NamedPipeServer;
 import com.sshtools.agent.server.SshAgentServer;
-import com.sshtools.common.knownhosts.KnownHostsKeyVerification;
 import com.sshtools.common.logger.Log;
 import com.sshtools.common.publickey.InvalidPassphraseException;
+import com.sshtools.common.publickey.OpenSshCertificate;
 import com.sshtools.common.publickey.SshKeyPairGenerator;
 import com.sshtools.common.publickey.SshKeyUtils;
 import com.sshtools.common.publickey.SshPrivateKeyFile;
@@ -115,16 +113,34 @@ import com.sshtools.common.ssh.components.SshPrivateKey;
 import com.sshtools.common.ssh.components.SshPublicKey;
 import com.sshtools.common.ssh.components.jce.JCEProvider;
 import com.sshtools.desktop.agent.Settings.IconMode;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsCompactor;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsEntry;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsIndex;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsIndex.Status;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsVerifier;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsWatcher;
+import com.sshtools.desktop.agent.sshteam.ConnectionCatalogSync;
+import com.sshtools.desktop.agent.sshteam.KeyExpiryScheduler;
+import com.sshtools.desktop.agent.sshteam.KeyRotationEngine;
+import com.sshtools.desktop.agent.sshteam.KeyRotationEngine.RotatedKey;
+import com.sshtools.desktop.agent.sshteam.KeySyncOutbox;
+import com.sshtools.desktop.agent.sshteam.KeySyncOutbox.Operation;
+import com.sshtools.desktop.agent.sshteam.KeySyncOutbox.PendingOperation;
+import com.sshtools.desktop.agent.sshteam.KeySyncOutbox.SyncState;
 import com.sshtools.desktop.agent.sshteam.PublicKeyType;
 import com.sshtools.desktop.agent.sshteam.SshTeamHelper;
 import com.sshtools.desktop.agent.sshteam.SshTeamPolicy;
 import com.sshtools.desktop.agent.swt.ConnectionDialog;
 import com.sshtools.desktop.agent.swt.CustomDialog;
+import com.sshtools.desktop.agent.swt.FavoritesMenu;
 import com.sshtools.desktop.agent.swt.InputForm;
 import com.sshtools.desktop.agent.swt.PassphraseForm;
+import com.sshtools.desktop.agent.swt.QuickLaunchDialog;
 import com.sshtools.desktop.agent.swt.SWTAboutDialog;
 import com.sshtools.desktop.agent.swt.SWTUtil;
 import com.sshtools.desktop.agent.swt.SettingsDialog;
+import com.sshtools.desktop.agent.term.PreConnector;
+import com.sshtools.desktop.agent.term.SharedConnections;
 import com.sshtools.desktop.agent.term.ShellTerminalConnector;
 import com.sshtools.desktop.agent.term.TerminalDisplay;
 import com.sshtools.jaul.AppCategory;
@@ -170,6 +186,10 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	public final static String WINDOWS_NAMED_PIPE = "mobile-ssh-agent";
 	public final static String SSH_AGENT_PIPE = AbstractNamedPipe.NAMED_PIPE_PREFIX + WINDOWS_NAMED_PIPE;
 	
+	/* A whole host name, address or [host]:port rather than part of one being typed */
+	final static Pattern HOST_NAME = Pattern.compile("localhost|(\\d{1,3}\\.){3}\\d{1,3}|[0-9a-f]*:[0-9a-f:]*:[0-9a-f]+"
+			+ "|\\[[^\\]]+\\]:\\d+|([a-z0-9]([a-z0-9-]*[a-z0-9])?\\.)+[a-z][a-z0-9-]*[a-z0-9]");
+	
 	SshAgentServer server;
 	MobileDeviceKeystore keystore;
 	Display display;
@@ -178,13 +198,17 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	Shell keyShell;
 	Table knownHostsTable;
 	Shell knownHostsShell;
+	Text knownHostsSearch;
+	List<KnownHostsEntry> knownHostsRows = Collections.emptyList();
+	int knownHostsFilterGeneration;
 	Shell connectionsShell;
 	Table connectionsTable;
-	KnownHostsKeyVerification knownHosts = new KnownHostsKeyVerification();
-	FileAlterationMonitor monitor; 
+	KnownHostsWatcher knownHostsWatcher;
 	Process pageantProcess;
 	
 	org.eclipse.swt.widgets.Menu swtConnections;
+	FavoritesMenu favoritesMenu;
+	QuickLaunchDialog quickLaunch;
 	Path agentSocketPath;
 	Map<String,JsonConnection> connections = new HashMap<String,JsonConnection>();
 	Map<SshPublicKey, String> deviceKeys = new HashMap<SshPublicKey, String>();
@@ -205,6 +229,14 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	Keyring keyring = null;
 	
 	ConnectionStore connectionStore = new ConnectionStore();
+	ConnectionStore remoteStore = new ConnectionStore(new File(CONF_FOLDER, "remote-connections.json"), 
+			new File(CONF_FOLDER, "remote-connections.journal"), true, connectionStore.getSearch());
+	ConnectionCatalogSync catalogSync = new ConnectionCatalogSync(remoteStore, 
+			new File(CONF_FOLDER, "remote-connections.revision"), this::fetchConnectionChanges);
+	HostResolver resolver = new HostResolver();
+	ConnectionProber prober;
+	PreConnector preConnector = new PreConnector(this);
+	SharedConnections sharedConnections = new SharedConnections();
 	UpdateService updateService;
 	
 	@Spec
@@ -213,10 +245,12 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	Optional<App> app;
 	Preferences preferences;
 	
-	boolean firstRun = true;
-	long lastUpdated = System.currentTimeMillis();
-	
 	private ScheduledExecutorService scheduler;
+	
+	KeySyncOutbox keySyncOutbox;
+	KeyRotationEngine rotationEngine;
+	KeyExpiryScheduler expiryScheduler;
+	GatewayMonitor gatewayMonitor;
 
 	protected DesktopAgent(Display display, Runnable restartCallback, Runnable shutdownCallback) throws IOException {
 
@@ -241,7 +275,8 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	}
 
 	protected Integer onCall() throws Exception {
-		scheduler = Executors.newScheduledThreadPool(1);
+		scheduler = Executors.newScheduledThreadPool(4);
+		expiryScheduler = new KeyExpiryScheduler(scheduler, this::fetchPolicy, this::onRotationDue);
 		app = registerApp();
 		preferences = AppRegistry.getBestAppPreferences(app, this);
 		var updateService = getUpdateService();
@@ -270,6 +305,15 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			keystore = new MobileDeviceKeystore(this, localKeys);
 			//keystore.setListener(this);
 			
+			synchronized(deviceKeys) {
+				deviceKeys.putAll(keystore.getCachedDeviceKeys());
+			}
+			
+			keySyncOutbox = new KeySyncOutbox(new File(CONF_FOLDER, "sshteam-outbox.json"), 
+					this::processKeySync, this::displayKeys);
+			rotationEngine = new KeyRotationEngine(new File(CONF_FOLDER, "rotation-journal.json"), 
+					localKeys, this::getAuthorizationKey, this::getPassphrase, keySyncOutbox);
+			
 			if (SystemUtils.IS_OS_WINDOWS) {
 				startupWindows();
 			} else if (SystemUtils.IS_OS_LINUX) {
@@ -288,46 +332,55 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			setupSystemTray();
 			setupKeychain();
 			
+			rotationEngine.recover();
 			loadKeys(Collections.emptyList());
 			checkSynchronization();
-			loadKnownHostsFromFile();
+			keySyncOutbox.start();
+			
+			knownHostsWatcher = new KnownHostsWatcher(getKnownHostsFile(), new File(CONF_FOLDER, "known_hosts.idx"), new KnownHostsWatcher.Listener() {
+				@Override
+				public void reloaded(KnownHostsIndex index) {
+					displayKnownHosts();
+				}
+				@Override
+				public void appended(KnownHostsIndex index, List<KnownHostsEntry> entries) {
+					appendKnownHosts();
+				}
+			});
+			knownHostsWatcher.start();
+			
+			prober = new ConnectionProber(connectionStore::getConnections, (changed) -> displayProbes());
+			probeConnections(Settings.getInstance().isProbeConnections());
 			
-			scheduler.scheduleAtFixedRate(() -> {
+			scheduler.scheduleWithFixedDelay(() -> {
+				if(Settings.getInstance().isCompactKnownHosts()) {
+					compactKnownHosts(false);
+				}
+			}, 1L, 24L, TimeUnit.HOURS);
+			
+			gatewayMonitor = new GatewayMonitor(scheduler, keystore::ping, this::hasGatewayCredentials, this::onGatewayStateChanged);
+			gatewayMonitor.start();
+			
+			scheduler.scheduleWithFixedDelay(() -> {
 				try {
-					
-					boolean hasCredentials = !StringUtils.isAnyBlank(Settings.getInstance().getLogonboxDomain(), 
-							Settings.getInstance().getLogonboxUsername());
-					
-					if(hasCredentials) {
-						boolean wasOffline = !online.getAndSet(keystore.ping());
-						if(online.get() && (firstRun || wasOffline)) {
-							if(Log.isInfoEnabled()) {
-								Log.info("The agent is back online");
-							}
-							showNotification(ToastType.INFO, "Desktop SSH Agent", String.format("The agent has connected to %s", Settings.getInstance().getLogonboxDomain()));	
-							firstRun = true;
-						} else if(!online.get() && (firstRun || !wasOffline)) {
-							if(Log.isInfoEnabled()) {
-								Log.info("The agent is offline");
-							}
-							showNotification(ToastType.WARNING, "Desktop SSH Agent", String.format("The agent %s connected to %s", 
-									firstRun ? "could not be " : "is no longer", Settings.getInstance().getLogonboxDomain()));
-						}
-						
-						if(online.get() && (firstRun || System.currentTimeMillis() - lastUpdated > 60000L * 10)) {
-							lastUpdated= System.currentTimeMillis();
-							loadConnections();
-							loadDeviceKeys(false);
-						}
+					if(online.get()) {
+						syncConnections();
+						loadConnections();
 					}
-
-					
 				} catch (Throwable e) {
-					Log.error("Network check error", e);
-				} finally {
-					firstRun = false;
+					Log.error("Connection refresh error", e);
 				}
-			}, 0L, 30, TimeUnit.SECONDS);
+			}, 10L, 10L, TimeUnit.MINUTES);
+			
+			scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					if(online.get()) {
+						loadDeviceKeys(false);
+					}
+				} catch (Throwable e) {
+					Log.error("Device key refresh error", e);
+				}
+			}, 10L, 10L, TimeUnit.MINUTES);
 			
 			updateService.setOnAvailableVersion(v -> {
 				if(v != null) {
@@ -439,9 +492,33 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		return String.format("DesktopSSHAgent/%s", keyfile.getName());
 	}
 
+	private boolean hasGatewayCredentials() {
+		return !StringUtils.isAnyBlank(Settings.getInstance().getLogonboxDomain(), 
+				Settings.getInstance().getLogonboxUsername());
+	}
+	
+	private void onGatewayStateChanged(boolean isOnline, boolean initial) {
+		
+		online.set(isOnline);
+		
+		if(isOnline) {
+			showNotification(ToastType.INFO, "Desktop SSH Agent", String.format("The agent has connected to %s", Settings.getInstance().getLogonboxDomain()));
+			scheduler.execute(() -> {
+				syncConnections();
+				loadConnections();
+			});
+			scheduler.execute(() -> loadDeviceKeys(false));
+			if(Objects.nonNull(keySyncOutbox)) {
+				keySyncOutbox.retryNow();
+			}
+		} else {
+			showNotification(ToastType.WARNING, "Desktop SSH Agent", String.format("The agent %s connected to %s", 
+					initial ? "could not be " : "is no longer", Settings.getInstance().getLogonboxDomain()));
+		}
+	}
+	
 	private void loadKeys(Collection<SshPublicKey> remoteKeys) {
 		
-		loadDeviceKeys(false);
 		localKeys.deleteAllKeys();
 		
 		for(File keyfile : Settings.getInstance().getKeyFiles()) {
@@ -576,7 +653,9 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			public void run() {
 				SettingsDialog settings = new SettingsDialog(display, DesktopAgent.this);
 				settings.open();
-				loadDeviceKeys(true);
+				runTask(()->{
+					loadDeviceKeys(true);
+				});
 			}
 		});
 
@@ -595,38 +674,143 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 
 			Map<String,JsonConnection> deletedConnections = new HashMap<String,JsonConnection>();
 			deletedConnections.putAll(connections);
-			for(JsonConnection con : connections.values()) {
-				removeConnection(con);
-			}
 
 			connections.clear();
 			for(JsonConnection con : connectionStore.getConnections()) {
 
-				if(!deletedConnections.containsKey(con.getName())) {
+				if(Objects.isNull(deletedConnections.remove(con.getName()))) {
 					if(Log.isInfoEnabled()) {
 						Log.info("Added connection {}@{}:{} ({})", con.getUsername(), con.getHostname(), con.getPort(), con.getId());
 					}
-				} else {
-					if(Log.isInfoEnabled()) {
-						Log.info("Existing connection {}@{}:{} ({})", con.getUsername(), con.getHostname(), con.getPort(), con.getId());
-					}					
 				}
-				
 				connections.put(con.getName(), con);
-				deletedConnections.remove(con.getName());
-				
+			}
+
+			/* A saved connection takes precedence over a shared one of the same name */
+			for(JsonConnection con : remoteStore.getConnections()) {
+				if(Objects.isNull(connections.putIfAbsent(con.getName(), con))
+						&& Objects.isNull(deletedConnections.remove(con.getName()))) {
+					if(Log.isInfoEnabled()) {
+						Log.info("Added shared connection {}@{}:{} ({})", con.getUsername(), con.getHostname(), con.getPort(), con.getId());
+					}
+				}
+			}
+
+			for(JsonConnection con : deletedConnections.values()) {
+				if(Log.isInfoEnabled()) {
+					Log.info("Removed connection {}@{}:{} ({})", con.getUsername(), con.getHostname(), con.getPort(), con.getId());
+				}
+			}
+		}
+
+		updateFavorites();
+	}
+
+	/**
+	 * Fetch any changes to the connections shared with the user through
+	 * ssh.team. The last catalog fetched stays available while offline.
+	 */
+	private void syncConnections() {
+		if(!Settings.getInstance().isSynchronizeKeys() || Objects.isNull(getAuthorizationKey())) {
+			return;
+		}
+		try {
+			catalogSync.sync();
+		} catch (Exception e) {
+			Log.error("Could not synchronize shared connections", e);
+		}
+	}
+	
+	private JsonConnectionChanges fetchConnectionChanges(long revision) throws Exception {
+		return SshTeamHelper.getConnectionChanges(Settings.getInstance().getSshteamUsername(), 
+				Settings.getInstance().getSshteamDomain(),
+				Settings.getInstance().getSshteamPort(), 
+				getAuthorizationKey(),
+				getLocalKeyStore(),
+				revision);
+	}
+
+	/**
+	 * Bring the favorites menu up to date with the connections, in a single
+	 * update on the display thread.
+	 */
+	private void updateFavorites() {
+
+		Runnable r = new Runnable() {
+			public void run() {
+				if(Objects.isNull(favoritesMenu)) {
+					return;
+				}
+				List<JsonConnection> favorites = getFavorites();
+				favoritesMenu.update(favorites);
+				if(Settings.getInstance().isPreConnect()) {
+					preConnector.resolve(favorites);
+				}
+			}
+		};
+
+		if(display.getThread().equals(Thread.currentThread())) {
+			r.run();
+		} else {
+			SWTUtil.safeAsyncExec(r);
+		}
+	}
+	
+	private List<JsonConnection> getFavorites() {
+		List<JsonConnection> favorites = new ArrayList<>();
+		synchronized(connections) {
+			for(JsonConnection con : connections.values()) {
 				if(Settings.getInstance().isFavorite(con.getName())) {
-					SWTUtil.safeAsyncExec(new Runnable() {
-						public void run() {
-							addFavoriteConnection(con);
-						}
-					});
-					
+					favorites.add(con);
 				}
-				
 			}
 		}
-		
+		return favorites;
+	}
+	
+	/**
+	 * When the tray menu opens, resolve the favorites and start connecting to
+	 * the ones used most recently, as one of them is the likeliest to be
+	 * launched.
+	 */
+	private void warmUpFavorites() {
+		if(!Settings.getInstance().isPreConnect()) {
+			return;
+		}
+		preConnector.resolve(getFavorites());
+		int started = 0;
+		for(JsonConnection con : connectionStore.getSearch().search("", PreConnector.MAXIMUM_CONNECTIONS * 4)) {
+			if(started < PreConnector.MAXIMUM_CONNECTIONS / 2 && Settings.getInstance().isFavorite(con.getName())) {
+				preConnect(con);
+				started++;
+			}
+		}
+	}
+	
+	/**
+	 * Start connecting to a server the user may be about to open in the
+	 * built-in terminal.
+	 */
+	private void preConnect(JsonConnection con) {
+		if(Settings.getInstance().isPreConnect() && Settings.getInstance().getUseBuiltInTerminal()) {
+			preConnector.connect(con);
+		}
+	}
+	
+	public void preConnect(boolean enabled) {
+		if(enabled) {
+			preConnector.resolve(getFavorites());
+		} else {
+			preConnector.close();
+		}
+	}
+	
+	public PreConnector getPreConnector() {
+		return preConnector;
+	}
+	
+	public SharedConnections getSharedConnections() {
+		return sharedConnections;
 	}
 	
 	public void resetIcon() {
@@ -709,9 +893,37 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			mConnections.setText("Favorites");
 			swtConnections = new org.eclipse.swt.widgets.Menu(menu);
 			mConnections.setMenu(swtConnections);
+			favoritesMenu = new FavoritesMenu(swtConnections, (con) -> {
+				new Thread() {
+					public void run() {
+						launchClient(con, false);
+					}
+				}.start();
+			}, this::preConnect);
+			menu.addListener(SWT.Show, event -> warmUpFavorites());
 			
 			loadConnections();
 			
+			org.eclipse.swt.widgets.MenuItem mQuick = new org.eclipse.swt.widgets.MenuItem(menu, SWT.PUSH);
+			mQuick.setText("Quick Launch\t" + (SWT.MOD1 == SWT.COMMAND ? "Cmd" : "Ctrl") + "+K");
+			mQuick.addListener(SWT.Selection, new Listener() {
+				public void handleEvent(Event event) {
+					showQuickLaunch();
+				}
+			});
+			
+			/* SWT has no system wide hot keys, so this works from any of our
+			 * windows except terminals, where Ctrl+K belongs to the remote shell */
+			display.addFilter(SWT.KeyDown, new Listener() {
+				public void handleEvent(Event event) {
+					if((event.stateMask & SWT.MODIFIER_MASK) == SWT.MOD1 && event.keyCode == 'k'
+							&& !TerminalDisplay.isTerminal(event.widget)) {
+						event.doit = false;
+						showQuickLaunch();
+					}
+				}
+			});
+			
 			org.eclipse.swt.widgets.MenuItem mCreate = new org.eclipse.swt.widgets.MenuItem(menu, SWT.PUSH);
 			mCreate.setText("Connections");
 			mCreate.addListener(SWT.Selection, new Listener() {
@@ -870,81 +1082,13 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 //		systemTray.setEnabled(true);
 //	}
 	
-	public void addFavoriteConnection(JsonConnection con) {
-
-		if(Log.isInfoEnabled()) {
-			Log.info("Adding to favorite connections {}@{}:{} ({})", con.getUsername(), con.getHostname(), con.getPort(), con.getId());
-		}
-		
-//		if(dorkboxConnections!=null) {
-//			MenuItem m;
-//			dorkboxConnections.add(m = new MenuItem(con.getName(), new ActionListener() {
-//				@Override
-//				public void actionPerformed(final ActionEvent e) {
-//					new Thread() {
-//						public void run() {
-//							launchClient(con.getHostname(), con.getPort(), con.getUsername());
-//						}
-//					}.start();
-//				}
-//			}));
-//			
-//			dorkboxFavorites.put(con.getId(), m);
-//			
-//		} else 
-		if(swtConnections!=null) {
-
-			org.eclipse.swt.widgets.MenuItem item = new org.eclipse.swt.widgets.MenuItem(swtConnections, SWT.PUSH);
-			item.setText(con.getName());
-			item.setData(con);
-			item.addListener(SWT.Selection, new Listener() {
-				public void handleEvent(Event event) {
-					
-					new Thread() {
-						public void run() {
-							launchClient(con.getHostname(), con.getPort(), con.getUsername(), false);
-						}
-					}.start();
-				}
-			});
-		}
-	}
-	
-	private void removeConnection(JsonConnection con) {
-		
-		Runnable r = new Runnable() {
-			public void run() {
-				if(swtConnections!=null) {
-					int count = swtConnections.getItemCount();
-					if(count==1) {
-						new org.eclipse.swt.widgets.MenuItem(swtConnections, SWT.SEPARATOR);
-					}
-					org.eclipse.swt.widgets.MenuItem toRemove = null;
-					for(org.eclipse.swt.widgets.MenuItem m : swtConnections.getItems()) {
-						if(m.getData()!=null) {
-							JsonConnection c2 = (JsonConnection) m.getData();
-							if(con.getName()==c2.getName()) {
-								toRemove = m;
-								break;
-							}
-						}
-					}
-					if(toRemove!=null) {
-						toRemove.dispose();
-					}
-				}
-			}
-		};
+	private void launchClient(JsonConnection con, boolean useKeyWizard) {
 		
-		if(display.getThread().equals(Thread.currentThread())) {
-			r.run();
-		} else {
-			SWTUtil.safeAsyncExec(r);
-		}
+		connectionStore.getSearch().used(con);
 		
-	}
-	
-	private void launchClient(String hostname, int port, String username, boolean useKeyWizard) {
+		String hostname = con.getHostname();
+		int port = con.getPort();
+		String username = con.getUsername();
 		
 		if(Settings.getInstance().getUseBuiltInTerminal()) {
 			
@@ -955,7 +1099,7 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			SWTUtil.safeAsyncExec(new Runnable() {
 				public void  run() {
 					 new TerminalDisplay().runTerminal(username + "@" + hostname + ":" + port,
-							 new ShellTerminalConnector(DesktopAgent.this, hostname, port, username, useKeyWizard));
+							 new ShellTerminalConnector(DesktopAgent.this, con, useKeyWizard));
 				}
 			});
 		} else {
@@ -1064,6 +1208,24 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			Log.info("Quitting ({})", killSWT);
 		}
 		
+		if(Objects.nonNull(keySyncOutbox)) {
+			keySyncOutbox.stop();
+		}
+		
+		if(Objects.nonNull(gatewayMonitor)) {
+			gatewayMonitor.stop();
+		}
+		
+		if(Objects.nonNull(prober)) {
+			prober.stop();
+		}
+		
+		preConnector.close();
+		sharedConnections.close();
+		
+		connectionStore.flush();
+		remoteStore.flush();
+		
 		/* TODO: This is a work around to the fact that server.close()
 		 * always just hangs on windows. This effectively makes it a noop
 		 * and might as well not be here, if it weren't for the fact that this
@@ -1107,15 +1269,12 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			}
 		}
 		
-		if(monitor!=null) {
+		if(knownHostsWatcher!=null) {
 			
 			if(Log.isInfoEnabled()) {
-				Log.info("Stopping file monitor");
-			}
-			try {
-				monitor.stop();
-			} catch (Exception e) {
+				Log.info("Stopping known_hosts watcher");
 			}
+			knownHostsWatcher.stop();
 		}
 		
 		if(killSWT) {
@@ -1287,6 +1446,24 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		}
 	}
 
+	public void showQuickLaunch() {
+		
+		SWTUtil.safeAsyncExec(new Runnable() {
+			public void run() {
+				if(Objects.isNull(quickLaunch)) {
+					quickLaunch = new QuickLaunchDialog(display, connectionStore.getSearch(), (con) -> {
+						new Thread() {
+							public void run() {
+								launchClient(con, false);
+							}
+						}.start();
+					});
+				}
+				quickLaunch.open();
+			}
+		});
+	}
+
 	public void showConnections() {
 		if(connectionsShell != null && connectionsShell.isVisible()) {
 			connectionsShell.setFocus();
@@ -1308,9 +1485,35 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 				data.heightHint = 200;
 				
 				connectionsTable.setLayoutData(data);
+				connectionsTable.addListener(SWT.MouseHover, event -> {
+					TableItem hovered = connectionsTable.getItem(new Point(event.x, event.y));
+					if(Objects.nonNull(hovered)) {
+						preConnect((JsonConnection) hovered.getData());
+					}
+				});
 				
 				new Label(connectionsShell, SWT.NONE);
-				new Label(connectionsShell, SWT.NONE);
+				Button importButton = new Button(connectionsShell, SWT.PUSH);
+				importButton.setLayoutData(new GridData(SWT.FILL, SWT.END, true, true));
+				importButton.setText("Import");
+				importButton.addSelectionListener(new SelectionAdapter() {
+		            public void widgetSelected(SelectionEvent event)
+		            {
+		            	FileDialog dialog = new FileDialog(connectionsShell, SWT.OPEN);
+		            	dialog.setText("Import Connections");
+		            	dialog.setFilterNames(new String[] { "All Files", "SSH Configuration", "CSV", "JSON" });
+		            	dialog.setFilterExtensions(new String[] { "*", "config", "*.csv", "*.json" });
+		            	dialog.setFilterPath(getSSHFolder().getAbsolutePath());
+		            	String result = dialog.open();
+		            	if(Objects.nonNull(result)) {
+		            		new Thread() {
+		            			public void run() {
+		            				importConnections(new File(result));
+		            			}
+		            		}.start();
+		            	}
+		            }
+				});
 				
 				Button launchButton = new Button(connectionsShell, SWT.PUSH);
 				launchButton.setLayoutData(new GridData(SWT.FILL, SWT.END, true, true));
@@ -1330,10 +1533,10 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 							    boolean isFavorite = Settings.getInstance().toggleFavorite(con.getName());
 							    if(isFavorite) {
 							    	items[0].setImage(0, new Image(display, getClass().getResourceAsStream("/favorite-on.png")));
-							    	addFavoriteConnection(con);
+							    	updateFavorites();
 							    } else {
 							    	items[0].setImage(0, new Image(display, getClass().getResourceAsStream("/favorite-off.png")));
-							    	removeConnection(con);
+							    	updateFavorites();
 							    }
 							}
 						} catch (IOException e) {
@@ -1349,7 +1552,7 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		            	TableItem[] items = connectionsTable.getSelection();
 		                if(items!=null && items.length > 0) {
 		                	JsonConnection con = (JsonConnection) items[0].getData();
-			                launchClient(con.getHostname(), con.getPort(), con.getUsername(), false);
+			                launchClient(con, false);
 			                connectionsShell.setVisible(false);
 		                }
 		            }
@@ -1367,9 +1570,7 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		            		public void run() {
 		            			ConnectionDialog dialog = new ConnectionDialog(connectionsShell, DesktopAgent.this);
 				            	if(dialog.open()) {
-				            		launchClient(dialog.getConnection().getHostname(), 
-				            				dialog.getConnection().getPort(),
-				            				dialog.getConnection().getUsername(), true);
+				            		launchClient(dialog.getConnection(), true);
 				            	}
 				            	
 		            		}
@@ -1394,9 +1595,7 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			                	JsonConnection con = (JsonConnection) items[0].getData();
 			                	ConnectionDialog dialog = new ConnectionDialog(connectionsShell, DesktopAgent.this, con);
 			                	if(dialog.open()) {
-				            		launchClient(dialog.getConnection().getHostname(), 
-				            				dialog.getConnection().getPort(),
-				            				dialog.getConnection().getUsername(), true);
+				            		launchClient(dialog.getConnection(), true);
 				            	}
 		                }
 					}
@@ -1467,7 +1666,6 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 								}
 								SWTUtil.safeAsyncExec(new Runnable() {
 									public void run() {
-										removeConnection(con);
 										displayConnections();
 									}
 								});
@@ -1495,10 +1693,12 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 				if (connectionsTable != null) {
 					connectionsTable.removeAll();
 
-					String[] titles = { "", "Name", "Hostname", "Port", "Username" };
-					for (int i = 0; i < titles.length; i++) {
-						TableColumn column = new TableColumn(connectionsTable, SWT.NONE);
-						column.setText(titles[i]);
+					String[] titles = { "", "Name", "Hostname", "Port", "Username", "Status", "RTT" };
+					if(connectionsTable.getColumnCount() == 0) {
+						for (int i = 0; i < titles.length; i++) {
+							TableColumn column = new TableColumn(connectionsTable, SWT.NONE);
+							column.setText(titles[i]);
+						}
 					}
 
 					Image fav = new Image(display, DesktopAgent.class.getResourceAsStream("/favorite-on.png"));
@@ -1518,6 +1718,7 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 							item.setText(2, con.getHostname());
 							item.setText(3, String.valueOf(con.getPort()));
 							item.setText(4, con.getUsername());
+							displayProbe(item);
 			
 						}
 					}
@@ -1530,6 +1731,57 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		});
 	}
 	
+	/**
+	 * Start or stop checking whether the saved connections are reachable.
+	 */
+	public void probeConnections(boolean enabled) {
+		if(Objects.isNull(prober)) {
+			return;
+		}
+		if(enabled) {
+			prober.start();
+		} else {
+			prober.stop();
+		}
+	}
+	
+	private void displayProbes() {
+		
+		SWTUtil.safeAsyncExec(new Runnable() {
+			public void run() {
+				if(connectionsTable != null && !connectionsTable.isDisposed()) {
+					for(TableItem item : connectionsTable.getItems()) {
+						displayProbe(item);
+					}
+				}
+			}
+		});
+	}
+	
+	private void displayProbe(TableItem item) {
+		
+		ConnectionProber.Probe probe = Objects.isNull(prober) ? null : prober.get((JsonConnection) item.getData());
+		if(Objects.isNull(probe)) {
+			item.setText(5, "");
+			item.setText(6, "");
+			return;
+		}
+		switch(probe.getStatus()) {
+		case UP:
+			item.setText(5, "Up");
+			item.setText(6, String.format("%dms", probe.getRtt()));
+			break;
+		case NOT_SSH:
+			item.setText(5, "Not SSH");
+			item.setText(6, String.format("%dms", probe.getRtt()));
+			break;
+		default:
+			item.setText(5, "Down");
+			item.setText(6, "");
+			break;
+		}
+	}
+	
 	public void showKnownHosts() {
 		if(knownHostsShell!=null && knownHostsShell.isVisible()) {
 			knownHostsShell.setFocus();
@@ -1543,19 +1795,61 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 				knownHostsShell.setImage(new Image(display, Image.class.getResourceAsStream("/new_icon.png")));
 				knownHostsShell.setLayout(new GridLayout(5, true));
 				knownHostsShell.setText("Known Hosts");
-				knownHostsTable = new Table(knownHostsShell, SWT.BORDER | SWT.FULL_SELECTION);
+				
+				knownHostsSearch = new Text(knownHostsShell, SWT.SEARCH | SWT.ICON_SEARCH | SWT.ICON_CANCEL);
+				knownHostsSearch.setMessage("Search hosts, comments or SHA256: fingerprints");
+				GridData data = new GridData(SWT.FILL, SWT.CENTER, true, false);
+				data.horizontalSpan = 5;
+				knownHostsSearch.setLayoutData(data);
+				Runnable filter = () -> displayKnownHosts();
+				knownHostsSearch.addModifyListener(e -> display.timerExec(250, filter));
+				
+				knownHostsTable = new Table(knownHostsShell, SWT.BORDER | SWT.FULL_SELECTION | SWT.VIRTUAL);
 				knownHostsTable.setLinesVisible(true);
 				knownHostsTable.setHeaderVisible(true);
-				GridData data = new GridData(SWT.FILL, SWT.FILL, true, true);
+				data = new GridData(SWT.FILL, SWT.FILL, true, true);
 				data.horizontalSpan = 5;
 				data.heightHint = 200;
 				
 				knownHostsTable.setLayoutData(data);
 				
-				new Label(knownHostsShell, SWT.NONE);
+				String[] titles = { "Names", "Fingerprint", "Key", "Comment" };
+				int[] widths = { 250, 380, 200, 150 };
+				for (int i = 0; i < titles.length; i++) {
+					TableColumn column = new TableColumn(knownHostsTable, SWT.NONE);
+					column.setText(titles[i]);
+					column.setWidth(widths[i]);
+				}
+				
+				knownHostsTable.addListener(SWT.SetData, event -> {
+					TableItem item = (TableItem) event.item;
+					int index = event.index;
+					if(index < knownHostsRows.size()) {
+						setKnownHostItem(item, knownHostsRows.get(index));
+					}
+				});
+				
 				new Label(knownHostsShell, SWT.NONE);
 				new Label(knownHostsShell, SWT.NONE);
 				
+				Button compactButton = new Button(knownHostsShell, SWT.PUSH);
+				compactButton.setText("Compact");
+				data = new GridData(SWT.FILL, SWT.END, true, true);
+				compactButton.setLayoutData(data);
+				compactButton.addSelectionListener(new SelectionAdapter() {
+		            public void widgetSelected(SelectionEvent event)
+		            {
+		            		compactButton.setEnabled(false);
+		            		scheduler.execute(() -> {
+		            			compactKnownHosts(true);
+		            			SWTUtil.safeAsyncExec(() -> {
+		            				if(!compactButton.isDisposed()) {
+		            					compactButton.setEnabled(true);
+		            				}
+		            			});
+		            		});
+		            }
+		        });
 				
 				Button commentButton = new Button(knownHostsShell, SWT.PUSH);
 				Button deleteButton = new Button(knownHostsShell, SWT.PUSH);
@@ -1571,13 +1865,12 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		            			public void run() {
 		            				TableItem[] items = knownHostsTable.getSelection();
 		    		                if(items!=null && items.length > 0) {
-		    			                KnownHostsKeyVerification.KeyEntry entry = (KnownHostsKeyVerification.KeyEntry) items[0].getData();
+		    			                KnownHostsEntry entry = (KnownHostsEntry) items[0].getData();
 		    			                
 		    			                InputForm input = new InputForm(display, "Change Comment", "Please enter the updated comment:", entry.getComment(), false);
 		    			                if(input.show()) {
-			    			                	knownHosts.setComment(entry, input.getInput());
-			    		                		saveKnownHosts();
-			    		                		displayKnownHosts();
+			    			                	String line = entry.toLine();
+			    			                	updateKnownHosts(e -> e.toLine().equals(line) ? e.withComment(input.getInput()) : e);
 			    		                		deleteButton.setEnabled(false);
 			    		                		commentButton.setEnabled(false);
 		    			                }
@@ -1606,21 +1899,18 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		    		                if(items!=null && items.length > 0) {
 		    			                StringBuffer buf = new StringBuffer();
 		    			                buf.append("Are you sure you want to delete the following host key?\r\n\r\n");
-		    			                KnownHostsKeyVerification.KeyEntry entry = (KnownHostsKeyVerification.KeyEntry) items[0].getData();
+		    			                KnownHostsEntry entry = (KnownHostsEntry) items[0].getData();
 		    			                
 		    			                buf.append(items[0].getText(0));
 		    		                		buf.append(" ");
-		    		                		buf.append(SshKeyUtils.getFingerprint(entry.getKey()));
+		    		                		buf.append(items[0].getText(1));
 		    			                
 		    		                		SWTUtil.showQuestion("Known Hosts", buf.toString(), new Runnable() {
 		    		                			public void run() {
-		    		                				synchronized(DesktopAgent.this) {
-			    		                				knownHosts.removeEntry(entry);
-					    		                		saveKnownHosts();
-					    		                		displayKnownHosts();
-					    		                		deleteButton.setEnabled(false);
-					    		                		commentButton.setEnabled(false);
-		    		                				}
+		    		                				String line = entry.toLine();
+		    		                				updateKnownHosts(e -> e.toLine().equals(line) ? null : e);
+		    		                				deleteButton.setEnabled(false);
+		    		                				commentButton.setEnabled(false);
 		    		                			}
 		    		                		});
 		    		                		
@@ -1654,13 +1944,8 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 							synchronized (knownHostsTable) {
 								knownHostsTable = null;
 								knownHostsShell = null;
-							}
-							if(monitor!=null) {
-								try {
-									monitor.stop();
-								} catch (Exception e1) {
-								}
-								monitor = null;
+								knownHostsSearch = null;
+								knownHostsRows = Collections.emptyList();
 							}
 						}
 					}
@@ -1671,14 +1956,29 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		});
 	}
 	
-	private synchronized void saveKnownHosts() {
-		
-		if(knownHosts!=null) {
-			try(OutputStream out = new FileOutputStream(getKnownHostsFile())) {
-				IOUtils.write(knownHosts.toString(), out, "UTF-8");
-			} catch(IOException e) {
+	private void updateKnownHosts(Function<KnownHostsEntry, KnownHostsEntry> edit) {
+		try {
+			knownHostsWatcher.update(edit);
+		} catch(IOException e) {
+			Log.error("Could not save known_hosts", e);
+			SWTUtil.showError("Known Hosts", 
+					String.format("An unexpected error occurred saving the known_hosts file!\r\n\r\n%s", 
+							e.getMessage()));
+		}
+	}
+	
+	private void compactKnownHosts(boolean interactive) {
+		try {
+			KnownHostsCompactor.Result result = new KnownHostsCompactor(Settings.getInstance().isMergeKnownHosts(),
+					Settings.getInstance().isHashKnownHosts()).compact(knownHostsWatcher);
+			if(interactive) {
+				SWTUtil.showInformation("Known Hosts", result.toString());
+			}
+		} catch(IOException | RuntimeException e) {
+			Log.error("Could not compact known_hosts", e);
+			if(interactive) {
 				SWTUtil.showError("Known Hosts", 
-						String.format("An unexpected error occurred saving the known_hosts file!\r\n\r\n", 
+						String.format("An unexpected error occurred compacting the known_hosts file!\r\n\r\n%s", 
 								e.getMessage()));
 			}
 		}
@@ -1691,6 +1991,10 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	private File getKnownHostsFile() {
 		return new File(getSSHFolder(), "known_hosts");
 	}
+	
+	public KnownHostsWatcher getKnownHosts() {
+		return knownHostsWatcher;
+	}
 
 	public void showKeyTable() {
 		
@@ -1732,8 +2036,10 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		            public void widgetSelected(SelectionEvent event)
 		            {
 		            	runTask(()->{	
+		            		loadDeviceKeys(false);
 		            		loadKeys(Collections.emptyList());
 		            		checkSynchronization();
+		            		keySyncOutbox.retryNow();
 		            	});
 		                
 		            }
@@ -1865,123 +2171,125 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 		});
 	}
 	
-	private synchronized void displayKnownHosts() {
+	private void displayKnownHosts() {
 		
 		SWTUtil.safeAsyncExec(new Runnable() {
 			public void run() {
-				Log.info("Reloading known_hosts");
-	
-				if (knownHostsTable != null) {
-					knownHostsTable.removeAll();
-	
-					String[] titles = { "Names", "Fingerprint", "Key", "Comment" };
-					for (int i = 0; i < titles.length; i++) {
-						TableColumn column = new TableColumn(knownHostsTable, SWT.NONE);
-						column.setText(titles[i]);
-					}
-	
-					try {
-						
-						loadKnownHostsFromFile();
-						
-						for (KnownHostsKeyVerification.KeyEntry entry : knownHosts.getKeyEntries()) {
-							TableItem item = new TableItem(knownHostsTable, SWT.NONE);
-							
-							String names = entry.getNames();
-							
-							if(entry.isRevoked()) {
-								item.setForeground(display.getSystemColor(SWT.COLOR_RED));
-								names = "@revoked " + names;
-							}
-			
-							if(entry.isCertAuthority()) {
-								names = "@cert-authority " + names;
-							}
-							if(entry.isHashedEntry()) {
-								names = "<hashed>";
-							}
-							
-							item.setData(entry);
-							item.setText(0, names);
-							item.setText(1, SshKeyUtils.getFingerprint(entry.getKey()));
-							item.setText(2, SshKeyUtils.getFormattedKey(entry.getKey(), ""));
-							item.setText(3, entry.getComment());
+				if (knownHostsTable == null) {
+					return;
+				}
+				
+				KnownHostsIndex index = knownHostsWatcher.getIndex();
+				String query = knownHostsSearch.getText().trim();
+				int generation = ++knownHostsFilterGeneration;
+				
+				if(query.isEmpty()) {
+					setKnownHostRows(index.getEntries());
+					return;
+				}
+				
+				scheduler.execute(() -> {
+					List<KnownHostsEntry> rows = filterKnownHosts(index, query);
+					SWTUtil.safeAsyncExec(() -> {
+						if(knownHostsTable != null && generation == knownHostsFilterGeneration) {
+							setKnownHostRows(rows);
 						}
+					});
+				});
+			}
+		});
+	}
 	
-					} catch(IOException | SshException ex) {
-						SWTUtil.showError("Known Hosts", 
-								String.format("There was an unexpected error parsing the known_hosts file.\r\n\r\n%s", 
-										ex.getMessage()));
-					}
-					
-					
-					for (int i = 0; i < titles.length; i++) {
-						knownHostsTable.getColumn(i).pack();
-					}
-					
-					knownHostsTable.getColumn(2).setWidth(200);
+	private void appendKnownHosts() {
+		
+		SWTUtil.safeAsyncExec(new Runnable() {
+			public void run() {
+				if (knownHostsTable == null) {
+					return;
+				}
+				if(knownHostsSearch.getText().trim().isEmpty()) {
+					/* Existing rows are unchanged, so only the count needs to grow */
+					knownHostsRows = knownHostsWatcher.getIndex().getEntries();
+					knownHostsTable.setItemCount(knownHostsRows.size());
+				} else {
+					displayKnownHosts();
 				}
 			}
 		});
 	}
-
-
-	private void loadKnownHostsFromFile() throws IOException, SshException {
-		synchronized(knownHosts) {
-			
-			if (monitor != null) {
-				try {
-					monitor.stop();
-				} catch (Exception e) {
-					Log.error("File monitor error", e);
-				}
+	
+	private void setKnownHostRows(List<KnownHostsEntry> rows) {
+		
+		if(Log.isInfoEnabled()) {
+			Log.info("Displaying {} known_hosts entries", rows.size());
+		}
+		knownHostsRows = rows;
+		knownHostsTable.deselectAll();
+		knownHostsTable.setItemCount(rows.size());
+		knownHostsTable.clearAll();
+	}
+	
+	/**
+	 * Entries whose names or comment contain the query, or that apply to it
+	 * as a host name or to the server of the saved connection it names, which
+	 * also finds hashed and wildcard entries. A query
+	 * starting with SHA256: or MD5: is matched against fingerprints instead.
+	 * <p>
+	 * On a hashed file a host lookup costs a digest per hashed line, so it is
+	 * only made for queries that look like a whole host name, and is kept out
+	 * of the lookup cache used when connecting.
+	 */
+	private List<KnownHostsEntry> filterKnownHosts(KnownHostsIndex index, String query) {
+		
+		String lower = query.toLowerCase();
+		if(lower.startsWith("sha256:") || lower.startsWith("md5:")) {
+			return index.findByFingerprint(query);
+		}
+		
+		List<KnownHostsEntry> results = new ArrayList<>();
+		Set<KnownHostsEntry> hosts = HOST_NAME.matcher(lower).matches() ? new HashSet<>(index.lookup(query, false))
+				: new HashSet<>();
+		JsonConnection con = connectionStore.getConnection(query);
+		if(Objects.nonNull(con)) {
+			hosts.addAll(index.lookup(KnownHostsVerifier.formatHost(con.getHostname(), con.getPort())));
+		}
+		
+		for(KnownHostsEntry entry : index.getEntries()) {
+			if(hosts.contains(entry)
+					|| (!entry.isHashedEntry() && entry.getNames().toLowerCase().contains(lower))
+					|| entry.getComment().toLowerCase().contains(lower)) {
+				results.add(entry);
 			}
-			
-			File khf = getKnownHostsFile();
-			if(khf.exists()) {
-				try (InputStream in = new FileInputStream(khf)) {
-					knownHosts.load(in);
+		}
+		return results;
+	}
+	
+	private void setKnownHostItem(TableItem item, KnownHostsEntry entry) {
+		
+		String names = entry.getNames();
+		
+		if(entry.isRevoked()) {
+			item.setForeground(display.getSystemColor(SWT.COLOR_RED));
+			names = "@revoked " + names;
+		}
 
-					FileAlterationObserver observer = new FileAlterationObserver(getSSHFolder());
-				    observer.addListener(new FileAlterationListenerAdaptor() {
-						
-						@Override
-						public void onFileDelete(File file) {
-							if(file.getName().equals("known_hosts")) {
-								displayKnownHosts();
-							}
-						}
-						
-						@Override
-						public void onFileCreate(File file) {
-							if(file.getName().equals("known_hosts")) {
-								displayKnownHosts();
-							}
-						}
-						
-						@Override
-						public void onFileChange(File file) {
-							if(file.getName().equals("known_hosts")) {
-								displayKnownHosts();
-							}
-						}
-						
-						@Override
-						public void onDirectoryDelete(File directory) {
-							displayKnownHosts();
-						}
-					});
-				    
-				    monitor = new FileAlterationMonitor(1000);
-			    	    monitor.addObserver(observer);
-			    	    try {
-						monitor.start();
-					} catch (Exception e) {
-						Log.error("File monitor error", e);
-					}
-				}
-			}
+		if(entry.isCertAuthority()) {
+			names = "@cert-authority " + names;
+		}
+		if(entry.isHashedEntry()) {
+			names = "<hashed>";
+		}
+		
+		item.setData(entry);
+		item.setText(0, names);
+		try {
+			item.setText(1, entry.getFingerprint());
+		} catch(IOException e) {
+			Log.error("Invalid known_hosts key for " + names, e);
+			item.setText(1, "<invalid>");
 		}
+		item.setText(2, entry.getKeyType() + " " + entry.getKeyData());
+		item.setText(3, entry.getComment());
 	}
 	
 	private synchronized void displayKeys() {
@@ -1993,7 +2301,7 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 				if (keyTable != null) {
 					keyTable.removeAll();
 
-					String[] titles = { "Description", "Type", "Algorithm", "Fingerprint" };
+					String[] titles = { "Description", "Type", "Algorithm", "Fingerprint", "Sync" };
 					for (int i = 0; i < titles.length; i++) {
 						TableColumn column = new TableColumn(keyTable, SWT.NONE);
 						column.setText(titles[i]);
@@ -2012,11 +2320,11 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 						item.setText(1, StringUtils.center(kc.isTeamKey() ? "Team" : "Personal", 10));
 						item.setText(2, entry.getKey().getAlgorithm());
 						item.setText(3, SshKeyUtils.getFingerprint(entry.getKey()));
+						item.setText(4, getSyncStatus(entry.getKey(), kc));
 						
 					}
 					
 					synchronized (deviceKeys) {
-						loadDeviceKeys(false);
 						for (Map.Entry<SshPublicKey, String> entry : deviceKeys.entrySet()) {
 							TableItem item = new TableItem(keyTable, SWT.NONE);
 							item.setData(entry.getKey());
@@ -2071,38 +2379,7 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 				localKeys.addKey(pair, description, cs);
 			
 				if(Settings.getInstance().isSynchronizeKeys()) {
-					
-					SshPublicKey authorizationKey = getAuthorizationKey();
-					if(Objects.isNull(authorizationKey)) {
-						if(SshTeamHelper.checkKey(Settings.getInstance().getSshteamUsername(), 
-								Settings.getInstance().getSshteamDomain(),
-								Settings.getInstance().getSshteamPort(),
-								pair)) {
-							authorizationKey = pair.getPublicKey();
-						} else {
-							showSynchronizationSetupDialog();
-						}
-					}
-					
-					if(Objects.nonNull(authorizationKey)) {
-						try {
-							SshTeamHelper.addKey(Settings.getInstance().getSshteamUsername(), 
-									Settings.getInstance().getSshteamDomain(),
-									Settings.getInstance().getSshteamPort(),
-									authorizationKey,
-									localKeys,
-									keyfile.getName(),
-									pubkey);
-							
-							cs.setTeamKey(true);
-							cs.setName(keyfile.getName());
-
-							
-						} catch (Throwable e) {
-							Log.error("Failed to synchronize", e);
-							SWTUtil.showError("Desktop SSH Agent", "The key could not be synchronized with your ssh.team account. Check logs for more information.");
-						}
-					}
+					keySyncOutbox.submit(Operation.ADD, keyfile.getName(), pubkey);
 				}
 
 				displayKeys();
@@ -2173,33 +2450,24 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 					
 					String name = localKeys.getPublicKeys().get(key);
 					ExtendedKeyInfo kc = (ExtendedKeyInfo) localKeys.getKeyConstraints(key);
-					if(Settings.getInstance().isSynchronizeKeys() && kc.isTeamKey()) {
-						SshPublicKey authorizationKey = getAuthorizationKey();
-						if(Objects.isNull(authorizationKey)) {
-							showSynchronizationSetupDialog();
-						} else {
-							try {
-								SshTeamHelper.removeKey(Settings.getInstance().getSshteamUsername(), 
-										Settings.getInstance().getSshteamDomain(),
-										Settings.getInstance().getSshteamPort(),
-										authorizationKey,
-										localKeys,
-										name,
-										key);
-								
-								
-							} catch (NoSuchAlgorithmException | InterruptedException | URISyntaxException | SshException
-									| KeyTimeoutException e) {
-								Log.error("Failed to synchronize", e);
-								SWTUtil.showError("Desktop SSH Agent", "The key could not be synchronized with your ssh.team account. Check logs for more information.");
-							}
-						}
+					boolean forget = true;
+					
+					if(Settings.getInstance().isSynchronizeKeys() 
+							&& (kc.isTeamKey() || keySyncOutbox.getState(key) != SyncState.NONE)) {
+						/**
+						 * If no other team key can authorize the removal, the key stays 
+						 * loaded, and saved across restarts, until the removal has been sent.
+						 */
+						boolean keep = Objects.isNull(getAuthorizationKey(key));
+						PendingOperation op = keySyncOutbox.submit(Operation.REMOVE, name, key, 
+								keep ? kc.getFile() : null);
+						forget = op.getOperation() != Operation.REMOVE || !keep;
 					}
 					
-					ExtendedKeyInfo info = (ExtendedKeyInfo) localKeys.getKeyConstraints(key);
-					Settings.getInstance().removePrivateKey(info.getFile());
-
-					localKeys.deleteKey(key);
+					if(forget) {
+						Settings.getInstance().removePrivateKey(kc.getFile());
+						localKeys.deleteKey(key);
+					}
 
 					displayKeys();
 				}
@@ -2213,15 +2481,19 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	}
 
 	private void loadDeviceKeys(boolean reconnect) {
+		Map<SshPublicKey, String> keys;
+		try {
+			keys = keystore.getDeviceKeys(reconnect);
+			Log.info("Got {} device keys", keys.size());
+		} catch (Exception e) {
+			Log.error("Could not load device keys, using cached keys", e);
+			keys = keystore.getCachedDeviceKeys();
+		}
 		synchronized (deviceKeys) {
-			try {
-				deviceKeys.clear();
-				deviceKeys.putAll(keystore.getDeviceKeys(reconnect));
-				Log.info("Got {} device keys", deviceKeys.size());
-			} catch (Exception e) {
-				Log.error("Could not load device keys", e);
-			}
+			deviceKeys.clear();
+			deviceKeys.putAll(keys);
 		}
+		displayKeys();
 	}
 	
 	public boolean deleteKey(SshPublicKey key) {
@@ -2300,15 +2572,10 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 
 	public JsonConnection saveConnection(String name, String hostname, Integer port, String username, String oldName) throws SshException, IOException {
 		
+		/* Addresses and canonical names are added once they have been resolved */
 		Set<String> aliases = new TreeSet<String>();
 		aliases.add(hostname);
 		
-		try {
-			InetAddress addr = InetAddress.getByName(hostname);
-			aliases.add(addr.getHostAddress());
-			aliases.add(addr.getCanonicalHostName());
-		} catch(UnknownHostException e) { }
-		
 		JsonConnection con;
 		
 		if(connections.containsKey(name) && (Objects.nonNull(oldName) && !oldName.equals(name))) {
@@ -2327,8 +2594,9 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			con = connectionStore.createConnection(name, hostname, port, 
 					username, aliases,Collections.emptySet());
 		} else {
+			/* Pinned host keys stay valid while the connection points at the same server */
 			con = connectionStore.updateConnection(oldName, name, hostname, 
-					port, username, aliases, Collections.emptySet());
+					port, username, aliases, connectionStore.getHostKeys(oldName, hostname, port));
 		}
 		
 		if(favorite) {
@@ -2344,9 +2612,115 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			}
 		});
 		
+		resolver.resolve(hostname).thenAccept(resolved -> {
+			if(connectionStore.addAliases(con, resolved) && Log.isInfoEnabled()) {
+				Log.info("Resolved aliases {} for connection {}", resolved, con.getName());
+			}
+		});
+		scheduler.execute(() -> scanHostKeys(Collections.singletonList(con), false));
+		
 		return con;
 	}
 
+	/**
+	 * Import connections from an OpenSSH client configuration, CSV or JSON
+	 * file, without replacing any that are already saved. Aliases and host
+	 * keys of the new connections are filled in afterwards, in the background.
+	 */
+	public void importConnections(File file) {
+		
+		ConnectionImporter.Result result;
+		try {
+			result = new ConnectionImporter(connectionStore, false).importFile(file);
+		} catch (IOException | RuntimeException e) {
+			Log.error("Failed to import connections from " + file, e);
+			SWTUtil.showError("Import Connections", e.getMessage());
+			return;
+		}
+		
+		displayConnections();
+		
+		for(JsonConnection con : result.getConnections()) {
+			resolver.resolve(con.getHostname()).thenAccept(resolved -> connectionStore.addAliases(con, resolved));
+		}
+		scheduler.execute(() -> scanHostKeys(result.getConnections(), false));
+		
+		StringBuilder message = new StringBuilder(result.toString());
+		for(String conflict : result.getConflicts().subList(0, Math.min(10, result.getConflicts().size()))) {
+			message.append(System.lineSeparator());
+			message.append(conflict);
+		}
+		if(result.getConflicts().size() > 10) {
+			message.append(System.lineSeparator());
+			message.append(String.format("and %d more conflicts.", result.getConflicts().size() - 10));
+		}
+		SWTUtil.showInformation("Import Connections", message.toString());
+	}
+
+	/**
+	 * Fetch and pin the host keys of connections that have none, so the first
+	 * launch does not stop to ask about an unknown host. A key is not pinned if
+	 * known_hosts holds a different or revoked key for the host, as that must
+	 * still be resolved by the user when connecting.
+	 */
+	public void scanHostKeys(Collection<JsonConnection> cons, boolean addToKnownHosts) {
+		
+		List<JsonConnection> pending = new ArrayList<>();
+		for(JsonConnection con : cons) {
+			if(!con.isRemote() && (Objects.isNull(con.getHostKeys()) || con.getHostKeys().length == 0)) {
+				pending.add(con);
+			}
+		}
+		if(pending.isEmpty()) {
+			return;
+		}
+		
+		KnownHostsVerifier verifier = new KnownHostsVerifier(knownHostsWatcher);
+		for(Map.Entry<JsonConnection, SshPublicKey> scanned : new HostKeyScanner().scan(pending).entrySet()) {
+			JsonConnection con = scanned.getKey();
+			SshPublicKey key = scanned.getValue();
+			String host = KnownHostsVerifier.formatHost(con.getHostname(), con.getPort());
+			try {
+				Status status = verifier.getIndex().verify(host, key);
+				if(status == Status.MISMATCH || status == Status.REVOKED) {
+					Log.warn("Not pinning scanned host key {} for {}, known_hosts status is {}", 
+							SshKeyUtils.getFingerprint(key), host, status);
+					continue;
+				}
+				pinHostKey(con, key);
+				if(addToKnownHosts && status == Status.UNKNOWN) {
+					verifier.addEntry(key, "", host);
+				}
+			} catch(SshException e) {
+				Log.error("Could not store scanned host key for " + host, e);
+			}
+		}
+	}
+
+	/**
+	 * The saved connection to a server, if there is one.
+	 */
+	public JsonConnection findConnection(String hostname, int port) {
+		JsonConnection con = connectionStore.findByHost(hostname, port);
+		return Objects.nonNull(con) ? con : remoteStore.findByHost(hostname, port);
+	}
+
+	public void pinHostKey(JsonConnection con, SshPublicKey key) {
+		
+		/* A certificate is trusted through its authority, which may expire or be revoked */
+		if(con.isRemote() || key instanceof OpenSshCertificate) {
+			return;
+		}
+		try {
+			if(connectionStore.addHostKey(con, key) && Log.isInfoEnabled()) {
+				Log.info("Pinned {} host key {} to connection {}", key.getAlgorithm(), 
+						SshKeyUtils.getFingerprint(key), con.getName());
+			}
+		} catch(IOException e) {
+			Log.error("Could not pin host key to connection " + con.getName(), e);
+		}
+	}
+
 	public String getSocketPath() {
 		return agentSocketPath.toString();
 	}
@@ -2362,121 +2736,225 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 	}
 	
 	public SshPublicKey getAuthorizationKey() {
+		return getAuthorizationKey(null);
+	}
+	
+	private SshPublicKey getAuthorizationKey(SshPublicKey exclude) {
 		for(SshPublicKey key : localKeys.getPublicKeys().keySet()) {
 			ExtendedKeyInfo c = (ExtendedKeyInfo) localKeys.getKeyConstraints(key);
-			if(c.isTeamKey()) {
+			if(c.isTeamKey() && !key.equals(exclude)) {
 				return key;
 			}
 		}
 		return null;
 	}
+	
+	private String getSyncStatus(SshPublicKey key, ExtendedKeyInfo kc) {
+		switch(keySyncOutbox.getState(key)) {
+		case PENDING:
+			return "Pending";
+		case RETRYING:
+			return "Retrying";
+		case FAILED:
+			return "Failed";
+		default:
+			return kc.isTeamKey() ? "Synced" : "";
+		}
+	}
+	
+	private void processKeySync(PendingOperation op) throws Exception {
+		
+		SshPublicKey key = SshKeyUtils.getPublicKey(op.getPublicKey());
+		SshPublicKey authorizationKey;
+		
+		switch(op.getOperation()) {
+		case ADD:
+			authorizationKey = getAuthorizationKey();
+			if(Objects.isNull(authorizationKey) && localKeys.getPublicKeys().containsKey(key)) {
+				try {
+					SshTeamHelper.getPolicy(Settings.getInstance().getSshteamUsername(), 
+							Settings.getInstance().getSshteamDomain(),
+							Settings.getInstance().getSshteamPort(), 
+							key, 
+							localKeys);
+					authorizationKey = key;
+				} catch(IOException e) {
+					Log.info("Key {} is not yet known to ssh.team", SshKeyUtils.getFingerprint(key));
+				}
+			}
+			if(Objects.isNull(authorizationKey)) {
+				if(op.getAttempts() == 0) {
+					showSynchronizationSetupDialog();
+				}
+				throw new IOException("There is no key available to authorize ssh.team changes");
+			}
+			
+			SshTeamHelper.addKey(Settings.getInstance().getSshteamUsername(), 
+					Settings.getInstance().getSshteamDomain(),
+					Settings.getInstance().getSshteamPort(),
+					authorizationKey,
+					localKeys,
+					op.getName(),
+					key,
+					op.getId());
+			
+			if(localKeys.getPublicKeys().containsKey(key)) {
+				ExtendedKeyInfo kc = (ExtendedKeyInfo) localKeys.getKeyConstraints(key);
+				kc.setTeamKey(true);
+				kc.setName(op.getName());
+			}
+			break;
+		case REMOVE:
+			authorizationKey = getAuthorizationKey(key);
+			if(Objects.isNull(authorizationKey) && localKeys.getPublicKeys().containsKey(key)) {
+				authorizationKey = key;
+			}
+			if(Objects.isNull(authorizationKey)) {
+				throw new IOException("There is no key available to authorize ssh.team changes");
+			}
+			
+			SshTeamHelper.removeKey(Settings.getInstance().getSshteamUsername(), 
+					Settings.getInstance().getSshteamDomain(),
+					Settings.getInstance().getSshteamPort(),
+					authorizationKey,
+					localKeys,
+					op.getName(),
+					key,
+					op.getId());
+			
+			if(Objects.nonNull(op.getKeyFile())) {
+				Settings.getInstance().removePrivateKey(new File(op.getKeyFile()));
+			}
+			if(localKeys.getPublicKeys().containsKey(key)) {
+				localKeys.deleteKey(key);
+			}
+			break;
+		default:
+			break;
+		}
+	}
 
 	public void checkRotationPolicy() {
 		
 		try {
-			SshTeamPolicy policy = SshTeamHelper.getPolicy(Settings.getInstance().getSshteamUsername(), 
-					Settings.getInstance().getSshteamDomain(),
-					Settings.getInstance().getSshteamPort(), 
-					getAuthorizationKey(),
-					getLocalKeyStore());
+			SshTeamPolicy policy = expiryScheduler.getPolicy(true);
 			
 			if(policy.isEnforcePolicy()) {
 				
-				try(BufferedReader reader = new BufferedReader(new StringReader(SshTeamHelper.getAuthorizedKeys(Settings.getInstance().getSshteamUsername(), 
-					Settings.getInstance().getSshteamDomain(),
-					Settings.getInstance().getSshteamPort(), 
-					getAuthorizationKey(),
-					getLocalKeyStore())))) {
+				List<SshPublicKey> remoteKeys = new ArrayList<>();
+				Map<SshPublicKey, Long> expiries = getAuthorizedKeyExpiries(remoteKeys);
 				
-					String line;
-					List<SshPublicKey> rotateKeys = new ArrayList<>();
-					List<SshPublicKey> remoteKeys = new ArrayList<>();
-					while((line = reader.readLine())!=null) {
-						SshPublicKey key = SshKeyUtils.getPublicKey(line);
-						remoteKeys.add(key);
-						String comment = SshKeyUtils.getPublicKeyComment(line);
-						String[] elements = comment.split(";");
-						if(elements.length > 0) {
-							if(NumberUtils.isCreatable(elements[elements.length - 1])) {
-								Date expires = new Date(Long.parseLong(elements[elements.length - 1]));
-								Date warn = DateUtils.addDays(expires, -7);
-								if(new Date().after(warn)) {
-									rotateKeys.add(key);
-								}
-							}
-						}	
+				List<PublicKeyType> missingKeys = new ArrayList<>();
+				for(PublicKeyType type : policy.getRequiredTypes()) {
+					if(containsType(type, remoteKeys)) {
+						continue;
 					}
-					
-					List<PublicKeyType> missingKeys = new ArrayList<>();
-					for(PublicKeyType type : policy.getRequiredTypes()) {
-						if(containsType(type, remoteKeys)) {
-							continue;
+					missingKeys.add(type);
+				}
+				
+				if(missingKeys.size() > 0) {
+					SWTUtil.showQuestion("Key Policy", "You need to add one or more keys to conform with the company key policy.\n\nDo you want I generate these now?", ()->{
+						for(PublicKeyType type : missingKeys) {
+							generateKey(type);
 						}
-						missingKeys.add(type);
-					}
-					
-					if(missingKeys.size() > 0) {
-						SWTUtil.showQuestion("Key Policy", "You need to add one or more keys to conform with the company key policy.\n\nDo you want I generate these now?", ()->{
-							for(PublicKeyType type : missingKeys) {
-								generateKey(type);
-							}
-						});
-					}
-					
-					if(rotateKeys.size() > 0) {
-						SWTUtil.showQuestion("Key Policy", "You have one or more keys that are expiring. Shall I re-generate these now?", ()->{
-							for(SshPublicKey key : rotateKeys) {
-								rotateKey(key);
-							}
-						});
-					}
-					
-					loadKeys(remoteKeys);
+					});
 				}
+				
+				expiryScheduler.schedule(expiries);
+				loadKeys(remoteKeys);
+			} else {
+				expiryScheduler.cancel();
 			}
 			
-			
-		} catch (NoSuchAlgorithmException | IOException | InterruptedException | URISyntaxException | SshException
-				| KeyTimeoutException e) {
+		} catch (Exception e) {
 			Log.error("Could not get key rotation policy", e);
 		}
 		
-		
 	}
-
-	private void rotateKey(SshPublicKey key) {
+	
+	private SshTeamPolicy fetchPolicy() throws Exception {
+		return SshTeamHelper.getPolicy(Settings.getInstance().getSshteamUsername(), 
+				Settings.getInstance().getSshteamDomain(),
+				Settings.getInstance().getSshteamPort(), 
+				getAuthorizationKey(),
+				getLocalKeyStore());
+	}
+	
+	private Map<SshPublicKey, Long> getAuthorizedKeyExpiries(List<SshPublicKey> remoteKeys) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
+		
+		Map<SshPublicKey, Long> expiries = new HashMap<>();
+		try(BufferedReader reader = new BufferedReader(new StringReader(SshTeamHelper.getAuthorizedKeys(Settings.getInstance().getSshteamUsername(), 
+				Settings.getInstance().getSshteamDomain(),
+				Settings.getInstance().getSshteamPort(), 
+				getAuthorizationKey(),
+				getLocalKeyStore())))) {
+			
+			String line;
+			while((line = reader.readLine())!=null) {
+				SshPublicKey key = SshKeyUtils.getPublicKey(line);
+				remoteKeys.add(key);
+				String comment = SshKeyUtils.getPublicKeyComment(line);
+				String[] elements = comment.split(";");
+				if(elements.length > 0) {
+					if(NumberUtils.isCreatable(elements[elements.length - 1])) {
+						expiries.put(key, Long.parseLong(elements[elements.length - 1]));
+					}
+				}	
+			}
+		}
+		return expiries;
+	}
+	
+	private void onRotationDue(Collection<SshPublicKey> keys) {
 		
-		ExtendedKeyInfo info = (ExtendedKeyInfo) localKeys.getKeyConstraints(key);
+		List<SshPublicKey> rotateKeys = new ArrayList<>();
+		for(SshPublicKey key : keys) {
+			if(localKeys.getPublicKeys().containsKey(key)) {
+				rotateKeys.add(key);
+			}
+		}
 		
+		if(rotateKeys.size() > 0) {
+			SWTUtil.showQuestion("Key Policy", "You have one or more keys that are expiring. Shall I re-generate these now?", ()->{
+				runTask(()->{
+					rotateKeys(rotateKeys);
+				});
+			});
+		}
+	}
+	
+	private void refreshKeyExpiry() {
 		try {
-			SshKeyPair pair = SshKeyPairGenerator.generateKeyPair(key.getAlgorithm(), key.getBitLength());
-		
-			File file = info.getFile();
-			
-			SshTeamHelper.addKey(Settings.getInstance().getSshteamUsername(), 
-					Settings.getInstance().getSshteamDomain(),
-					Settings.getInstance().getSshteamPort(),
-					getAuthorizationKey(),
-					localKeys,
-					String.valueOf(System.currentTimeMillis()),
-					pair.getPublicKey());
-			
-			String passphrase = getPassphrase(file);
-			SshKeyUtils.savePrivateKey(pair, passphrase, "", file);
-			
-			SshTeamHelper.removeKey(Settings.getInstance().getSshteamUsername(), 
-					Settings.getInstance().getSshteamDomain(),
-					Settings.getInstance().getSshteamPort(),
-					getAuthorizationKey(),
-					localKeys,
-					info.getName(),
-					key);
-			
-		} catch (IOException | SshException | NoSuchAlgorithmException | InterruptedException | URISyntaxException | KeyTimeoutException e) {
-			SWTUtil.showError("Generate Key", "An error occurred whilst trying to rotate a key\n\n" + e.getMessage());
+			if(expiryScheduler.getPolicy(false).isEnforcePolicy()) {
+				expiryScheduler.schedule(getAuthorizedKeyExpiries(new ArrayList<>()));
+			}
+		} catch (Exception e) {
+			Log.error("Could not refresh key expiry schedule", e);
 		}
 	}
 
+	private void rotateKeys(Collection<SshPublicKey> keys) {
+		try {
+			applyRotation(rotationEngine.rotate(keys));
+			showNotification(ToastType.INFO, "Desktop SSH Agent", 
+					String.format("Rotated %d key(s) to conform with the company key policy", keys.size()));
+			refreshKeyExpiry();
+		} catch (IOException e) {
+			Log.error("Failed to rotate keys", e);
+			SWTUtil.showError("Generate Key", "An error occurred whilst trying to rotate keys\n\n" + e.getMessage());
+		}
+	}
+	
+	private void applyRotation(List<RotatedKey> rotated) throws IOException {
+		for(RotatedKey key : rotated) {
+			ExtendedKeyInfo info = new ExtendedKeyInfo(key.getFile(), key.getFile().getName());
+			info.setTeamKey(true);
+			localKeys.addKey(key.getPair(), key.getFile().getName(), info);
+			localKeys.deleteKey(key.getOldKey());
+		}
+		displayKeys();
+	}
+
 	private void generateKey(PublicKeyType type) {
 		
 		try {
@@ -2485,17 +2963,11 @@ public class DesktopAgent extends AbstractAgentProcess implements Callable<Integ
 			String passphrase = getPassphrase(file);
 			SshKeyUtils.savePrivateKey(pair, passphrase, "", file);
 			
-			SshTeamHelper.addKey(Settings.getInstance().getSshteamUsername(), 
-					Settings.getInstance().getSshteamDomain(),
-					Settings.getInstance().getSshteamPort(),
-					getAuthorizationKey(),
-					localKeys,
-					String.valueOf(System.currentTimeMillis()),
-					pair.getPublicKey());
-			
 			Settings.getInstance().addPrivateKey(pair.getPublicKey(), file);
 			
-		} catch (IOException | SshException | NoSuchAlgorithmException | InterruptedException | URISyntaxException | KeyTimeoutException e) {
+			keySyncOutbox.submit(Operation.ADD, String.valueOf(System.currentTimeMillis()), pair.getPublicKey());
+			
+		} catch (IOException | SshException e) {
 			SWTUtil.showError("Generate Key", "An error occurred whilst trying to generate a key\n\n" + e.getMessage());
 		}
 	}
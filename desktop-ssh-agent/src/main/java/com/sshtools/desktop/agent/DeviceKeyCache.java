@@ -0,0 +1,176 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.publickey.SshKeyUtils;
+import com.sshtools.common.ssh.components.SshPublicKey;
+import com.sshtools.common.util.IOUtils;
+
+/**
+ * The last device key list received from LogonBox. Public keys are not
+ * secret, so keeping them on disk lets the agent list identities before the
+ * gateway has been reached. Signing still requires the gateway.
+ */
+public class DeviceKeyCache {
+
+	final File file;
+	final ObjectMapper mapper = new ObjectMapper();
+
+	Map<SshPublicKey, String> keys = Collections.emptyMap();
+	String source;
+	long fetchedAt;
+
+	public DeviceKeyCache(File file) {
+		this.file = file;
+	}
+
+	public synchronized void load(String source) {
+
+		keys = Collections.emptyMap();
+		this.source = source;
+		fetchedAt = 0L;
+
+		if(!file.exists()) {
+			return;
+		}
+
+		try {
+			CachedKeys cached = mapper.readValue(IOUtils.readUTF8StringFromFile(file), CachedKeys.class);
+			if(!Objects.equals(source, cached.getSource())) {
+				if(Log.isInfoEnabled()) {
+					Log.info("Ignoring cached device keys from {}", cached.getSource());
+				}
+				return;
+			}
+
+			Map<SshPublicKey, String> results = new HashMap<>();
+			for(CachedKey key : cached.getKeys()) {
+				try {
+					results.put(SshKeyUtils.getPublicKey(key.getPublicKey()), key.getName());
+				} catch(IOException e) {
+					Log.error("Ignoring invalid cached device key", e);
+				}
+			}
+			keys = Collections.unmodifiableMap(results);
+			fetchedAt = cached.getFetchedAt();
+
+			if(Log.isInfoEnabled()) {
+				Log.info("Loaded {} cached device keys fetched at {}", keys.size(), new Date(fetchedAt));
+			}
+		} catch(IOException e) {
+			Log.error("Could not read device key cache", e);
+		}
+	}
+
+	public synchronized void update(String source, Map<SshPublicKey, String> keys) {
+
+		this.keys = Collections.unmodifiableMap(new HashMap<>(keys));
+		this.source = source;
+		this.fetchedAt = System.currentTimeMillis();
+
+		try {
+			CachedKeys cached = new CachedKeys();
+			cached.setSource(source);
+			cached.setFetchedAt(fetchedAt);
+			for(Map.Entry<SshPublicKey, String> entry : keys.entrySet()) {
+				CachedKey key = new CachedKey();
+				key.setPublicKey(SshKeyUtils.getOpenSSHFormattedKey(entry.getKey()));
+				key.setName(entry.getValue());
+				cached.getKeys().add(key);
+			}
+
+			file.getParentFile().mkdirs();
+			File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+			IOUtils.writeUTF8StringToFile(tmp, mapper.writeValueAsString(cached));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			Log.error("Could not write device key cache", e);
+		}
+	}
+
+	public synchronized Map<SshPublicKey, String> getKeys(String source) {
+		if(!Objects.equals(this.source, source)) {
+			load(source);
+		}
+		return keys;
+	}
+
+	public synchronized long getFetchedAt() {
+		return fetchedAt;
+	}
+
+	public static class CachedKeys {
+
+		String source;
+		long fetchedAt;
+		List<CachedKey> keys = new ArrayList<>();
+
+		public String getSource() {
+			return source;
+		}
+		public void setSource(String source) {
+			this.source = source;
+		}
+		public long getFetchedAt() {
+			return fetchedAt;
+		}
+		public void setFetchedAt(long fetchedAt) {
+			this.fetchedAt = fetchedAt;
+		}
+		public List<CachedKey> getKeys() {
+			return keys;
+		}
+		public void setKeys(List<CachedKey> keys) {
+			this.keys = keys;
+		}
+	}
+
+	public static class CachedKey {
+
+		String publicKey;
+		String name;
+
+		public String getPublicKey() {
+			return publicKey;
+		}
+		public void setPublicKey(String publicKey) {
+			this.publicKey = publicKey;
+		}
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+}
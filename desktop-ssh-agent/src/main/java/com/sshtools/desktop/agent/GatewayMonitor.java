@@ -0,0 +1,188 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.sshtools.common.logger.Log;
+
+/**
+ * Checks that the LogonBox gateway is reachable. While online the gateway is
+ * pinged at a steady interval. After a failure it is re-checked quickly, then
+ * with exponentially increasing, jittered delays while it stays offline. A
+ * change in the local network interfaces triggers an immediate check.
+ */
+public class GatewayMonitor {
+
+	public interface Listener {
+		void onlineStateChanged(boolean online, boolean initial);
+	}
+
+	static final long ONLINE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+	static final long FIRST_RETRY = TimeUnit.SECONDS.toMillis(2);
+	static final long MAXIMUM_RETRY = TimeUnit.MINUTES.toMillis(5);
+	/**
+	 * Java has no portable notification of network changes, so the interface
+	 * list is polled. This is a local call and does not touch the network.
+	 */
+	static final long NETWORK_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+	final ScheduledExecutorService executor;
+	final BooleanSupplier ping;
+	final BooleanSupplier enabled;
+	final Listener listener;
+
+	ScheduledFuture<?> nextCheck;
+	ScheduledFuture<?> networkPoll;
+	Boolean online;
+	int failures;
+	Set<String> networkState;
+
+	public GatewayMonitor(ScheduledExecutorService executor, BooleanSupplier ping, BooleanSupplier enabled, Listener listener) {
+		this.executor = executor;
+		this.ping = ping;
+		this.enabled = enabled;
+		this.listener = listener;
+	}
+
+	public synchronized void start() {
+		networkState = getNetworkState();
+		networkPoll = executor.scheduleWithFixedDelay(this::pollNetwork,
+				NETWORK_POLL_INTERVAL, NETWORK_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+		schedule(0L);
+	}
+
+	public synchronized void stop() {
+		if(Objects.nonNull(networkPoll)) {
+			networkPoll.cancel(false);
+		}
+		if(Objects.nonNull(nextCheck)) {
+			nextCheck.cancel(false);
+		}
+	}
+
+	/**
+	 * Check now and start the retry sequence from the beginning.
+	 */
+	public synchronized void checkNow() {
+		failures = 0;
+		schedule(0L);
+	}
+
+	public synchronized boolean isOnline() {
+		return Boolean.TRUE.equals(online);
+	}
+
+	private synchronized void schedule(long delay) {
+		if(Objects.nonNull(nextCheck)) {
+			nextCheck.cancel(false);
+		}
+		nextCheck = executor.schedule(this::check, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void check() {
+
+		long delay = ONLINE_INTERVAL;
+		try {
+			if(enabled.getAsBoolean()) {
+				boolean result = ping.getAsBoolean();
+				Boolean previous;
+				synchronized(this) {
+					previous = online;
+					online = result;
+					failures = result ? 0 : failures + 1;
+					delay = nextDelay();
+				}
+				if(!Objects.equals(previous, result)) {
+					if(Log.isInfoEnabled()) {
+						Log.info("The agent is {}", result ? "online" : "offline");
+					}
+					listener.onlineStateChanged(result, Objects.isNull(previous));
+				} else if(!result && Log.isDebugEnabled()) {
+					Log.debug("Gateway still offline after {} checks, next in {}ms", failures, delay);
+				}
+			}
+		} catch(Throwable e) {
+			Log.error("Network check error", e);
+		} finally {
+			synchronized(this) {
+				if(!executor.isShutdown()) {
+					schedule(delay);
+				}
+			}
+		}
+	}
+
+	private long nextDelay() {
+		if(failures == 0) {
+			/* Spread steady state checks by up to 10% */
+			return ONLINE_INTERVAL - ThreadLocalRandom.current().nextLong(ONLINE_INTERVAL / 10);
+		}
+		long ceiling = Math.min(MAXIMUM_RETRY, FIRST_RETRY << Math.min(failures - 1, 16));
+		/* Equal jitter, between half and the whole of the backoff */
+		return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+	}
+
+	private void pollNetwork() {
+		try {
+			Set<String> state = getNetworkState();
+			boolean changed;
+			synchronized(this) {
+				changed = !state.equals(networkState);
+				networkState = state;
+			}
+			if(changed) {
+				if(Log.isInfoEnabled()) {
+					Log.info("Network interfaces changed, checking gateway");
+				}
+				checkNow();
+			}
+		} catch(Throwable e) {
+			Log.error("Network poll error", e);
+		}
+	}
+
+	private static Set<String> getNetworkState() {
+		Set<String> state = new TreeSet<>();
+		try {
+			for(NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				if(!nif.isUp() || nif.isLoopback()) {
+					continue;
+				}
+				for(InetAddress addr : Collections.list(nif.getInetAddresses())) {
+					state.add(nif.getName() + "/" + addr.getHostAddress());
+				}
+			}
+		} catch (SocketException e) {
+			Log.error("Could not list network interfaces", e);
+		}
+		return state;
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sshtools.client.SshClient;
+import com.sshtools.client.SshClient.SshClientBuilder;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.components.SshPublicKey;
+
+/**
+ * Fetches host keys in the manner of <code>ssh-keyscan</code>. Each scan
+ * opens a connection, takes the key the server presents during key exchange
+ * and then rejects it, so no authentication is attempted.
+ * <p>
+ * Many hosts are scanned at once on a pool of limited size, and every scan is
+ * bounded by the connect and idle timeouts of its connection, so one slow or
+ * unreachable host does not hold up the rest.
+ */
+public class HostKeyScanner {
+
+	public static final int DEFAULT_PARALLELISM = 32;
+	public static final long DEFAULT_TIMEOUT = 5000L;
+
+	static final String USERNAME = "keyscan";
+
+	final int parallelism;
+	final long timeout;
+
+	public HostKeyScanner() {
+		this(DEFAULT_PARALLELISM, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param parallelism the most hosts to scan at the same time
+	 * @param timeout milliseconds allowed to connect to each host, and to wait
+	 *            for it during key exchange
+	 */
+	public HostKeyScanner(int parallelism, long timeout) {
+		this.parallelism = parallelism;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Fetch the key a single host presents.
+	 */
+	public SshPublicKey scan(String hostname, int port) throws IOException {
+
+		AtomicReference<SshPublicKey> hostKey = new AtomicReference<>();
+		try {
+			SshClient ssh = SshClientBuilder.create()
+					.withTarget(hostname, port)
+					.withUsername(USERNAME)
+					.withConnectTimeout(timeout)
+					.onConfigure(context -> {
+						context.setIdleConnectionTimeoutSeconds((int) Math.max(1L, (timeout + 999L) / 1000L));
+						context.setHostKeyVerification((host, key) -> {
+							hostKey.set(key);
+							return false;
+						});
+					})
+					.build();
+			ssh.disconnect();
+		} catch(SshException e) {
+			/* Expected, the key is always rejected */
+			if(Objects.isNull(hostKey.get())) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+
+		SshPublicKey key = hostKey.get();
+		if(Objects.isNull(key)) {
+			throw new IOException(String.format("%s:%d did not present a host key", hostname, port));
+		}
+		return key;
+	}
+
+	/**
+	 * Fetch the host keys of many connections at once. Connections to the
+	 * same host and port are only scanned once. Hosts that could not be
+	 * scanned are logged and left out of the result.
+	 */
+	public Map<JsonConnection, SshPublicKey> scan(Collection<JsonConnection> connections) {
+
+		Map<String, Future<SshPublicKey>> scans = new HashMap<>();
+		Map<JsonConnection, SshPublicKey> results = new LinkedHashMap<>();
+
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, connections.size())), r -> {
+			Thread t = new Thread(r, "HostKeyScanner-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		try {
+			for(JsonConnection con : connections) {
+				scans.computeIfAbsent(getTarget(con), k -> executor.submit(() -> scan(con.getHostname(), con.getPort())));
+			}
+
+			for(JsonConnection con : connections) {
+				try {
+					results.put(con, scans.get(getTarget(con)).get());
+				} catch(ExecutionException e) {
+					Log.error(String.format("Could not scan host key of %s", getTarget(con)), e.getCause());
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if(Log.isInfoEnabled()) {
+			Log.info("Scanned {} host keys for {} connections", results.size(), connections.size());
+		}
+		return results;
+	}
+
+	private static String getTarget(JsonConnection con) {
+		return con.getHostname().toLowerCase() + ":" + con.getPort();
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sshtools.common.logger.Log;
+
+/**
+ * Looks up the addresses and canonical names a connection's host is also
+ * known by. Lookups run on a small pool of threads, so saving a connection
+ * never waits for DNS, and a slow resolver only delays the aliases.
+ * <p>
+ * Results are cached for a while, and so are failures, for a shorter time,
+ * so a name that does not resolve is not retried on every save. Concurrent
+ * requests for the same name share one lookup.
+ */
+public class HostResolver {
+
+	static final int PARALLELISM = 16;
+	static final long TTL = TimeUnit.MINUTES.toMillis(10);
+	static final long NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(1);
+
+	static class Resolved {
+
+		final Set<String> aliases;
+		final long expires;
+
+		Resolved(Set<String> aliases, long expires) {
+			this.aliases = aliases;
+			this.expires = expires;
+		}
+	}
+
+	final Map<String, Resolved> cache = new ConcurrentHashMap<>();
+	final Map<String, CompletableFuture<Set<String>>> inflight = new ConcurrentHashMap<>();
+	final ExecutorService executor;
+
+	public HostResolver() {
+		AtomicInteger threads = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(PARALLELISM, r -> {
+			Thread t = new Thread(r, "HostResolver-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * The addresses of the host and their canonical names, not including the
+	 * host name itself. Completes with an empty set if the host does not
+	 * resolve.
+	 */
+	public CompletableFuture<Set<String>> resolve(String hostname) {
+
+		String key = hostname.toLowerCase();
+		Resolved resolved = cache.get(key);
+		if(Objects.nonNull(resolved) && resolved.expires > System.currentTimeMillis()) {
+			return CompletableFuture.completedFuture(resolved.aliases);
+		}
+
+		CompletableFuture<Set<String>> future = new CompletableFuture<>();
+		CompletableFuture<Set<String>> existing = inflight.putIfAbsent(key, future);
+		if(Objects.nonNull(existing)) {
+			return existing;
+		}
+		executor.execute(() -> {
+			try {
+				future.complete(lookup(hostname));
+			} catch(Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				inflight.remove(key, future);
+			}
+		});
+		return future;
+	}
+
+	private Set<String> lookup(String hostname) {
+
+		String key = hostname.toLowerCase();
+		long started = System.currentTimeMillis();
+		Set<String> aliases = new TreeSet<>();
+		try {
+			for(InetAddress addr : InetAddress.getAllByName(hostname)) {
+				aliases.add(addr.getHostAddress());
+				aliases.add(addr.getCanonicalHostName());
+			}
+			aliases.remove(hostname);
+			aliases = Collections.unmodifiableSet(aliases);
+			cache.put(key, new Resolved(aliases, System.currentTimeMillis() + TTL));
+		} catch(UnknownHostException e) {
+			aliases = Collections.emptySet();
+			cache.put(key, new Resolved(aliases, System.currentTimeMillis() + NEGATIVE_TTL));
+		}
+
+		if(Log.isDebugEnabled()) {
+			Log.debug("Resolved {} to {} in {}ms", hostname, aliases, System.currentTimeMillis() - started);
+		}
+		return aliases;
+	}
+}
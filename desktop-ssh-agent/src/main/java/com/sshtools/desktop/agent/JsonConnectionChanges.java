@@ -0,0 +1,61 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent;
+
+/**
+ * The connections added, changed or deleted since a revision of a gateway's
+ * connection catalog. If the gateway no longer has the changes since that
+ * revision, it sends the complete list instead.
+ */
+public class JsonConnectionChanges extends JsonConnectionList {
+
+	long revision;
+	boolean complete;
+	String[] deleted;
+	
+	public long getRevision() {
+		return revision;
+	}
+	
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+	
+	/**
+	 * Whether the resources are the complete catalog rather than changes.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+	
+	/**
+	 * The names of the connections deleted since the revision.
+	 */
+	public String[] getDeleted() {
+		return deleted;
+	}
+	
+	public void setDeleted(String[] deleted) {
+		this.deleted = deleted;
+	}
+}
@@ -20,6 +20,7 @@ package com.sshtools.desktop.agent;
 
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -56,6 +57,7 @@ public class MobileDeviceKeystore implements KeyStore {
 	DesktopAgent agent;
 	MobileDeviceKeystoreListener listener;
 	KeyStore localKeystore;
+	DeviceKeyCache cache = new DeviceKeyCache(new File(AbstractAgentProcess.CONF_FOLDER, "device-keys.json"));
 
 	public MobileDeviceKeystore(DesktopAgent agent,
 			KeyStore localKeystore) throws IOException {
@@ -104,9 +106,7 @@ public class MobileDeviceKeystore implements KeyStore {
 	public Map<SshPublicKey, String> getPublicKeys() {
 		
 		Map<SshPublicKey, String> results = new HashMap<>();
-		if(ping()) {
-			results.putAll(getDeviceKeys(false));	
-		}
+		results.putAll(getCachedDeviceKeys());
 		results.putAll(localKeystore.getPublicKeys());
 		return results;
 	}
@@ -115,6 +115,27 @@ public class MobileDeviceKeystore implements KeyStore {
 		return localKeystore.getPublicKeys();
 	}
 
+	/**
+	 * The device keys last received from the gateway, without contacting it.
+	 */
+	public Map<SshPublicKey, String> getCachedDeviceKeys() {
+		if(StringUtils.isAnyBlank(Settings.getInstance().getLogonboxUsername(),
+				Settings.getInstance().getLogonboxDomain())) {
+			return Collections.emptyMap();
+		}
+		return cache.getKeys(getCacheSource());
+	}
+	
+	public long getDeviceKeysFetchedAt() {
+		return cache.getFetchedAt();
+	}
+	
+	private String getCacheSource() {
+		return String.format("%s@%s:%d", Settings.getInstance().getLogonboxUsername(),
+				Settings.getInstance().getLogonboxDomain(), 
+				Settings.getInstance().getLogonboxPort());
+	}
+
 	protected JsonClient getClient() throws IOException {
 		verifyClient();
 		return client;
@@ -158,6 +179,7 @@ public class MobileDeviceKeystore implements KeyStore {
 			throw new IllegalStateException(e.getMessage(), e);
 		} 
 		
+		cache.update(getCacheSource(), results);
 		return results;
 	}
 
@@ -308,11 +330,11 @@ public class MobileDeviceKeystore implements KeyStore {
 	}
 
 	public boolean isDeviceKey(SshPublicKey key) {
-		return getDeviceKeys(false).containsKey(key);
+		return getCachedDeviceKeys().containsKey(key);
 	}
 
 	public String getKeyName(SshPublicKey key) {
-		Map<SshPublicKey, String> tmp = getDeviceKeys(false);
+		Map<SshPublicKey, String> tmp = getCachedDeviceKeys();
 		if(tmp.containsKey(key)) {
 			return tmp.get(key);
 		} 
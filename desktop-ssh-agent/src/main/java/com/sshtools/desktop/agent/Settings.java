@@ -61,6 +61,13 @@ public class Settings {
 	
 	private boolean strictSSL = true;
 	
+	private boolean compactKnownHosts = false;
+	private boolean mergeKnownHosts = false;
+	private boolean hashKnownHosts = false;
+	
+	private boolean probeConnections = true;
+	private boolean preConnect = false;
+	
 	Settings() {
 		terminalCommand = "";
 		terminalArguments = "";
@@ -96,6 +103,13 @@ public class Settings {
 			synchronizeKeys = Boolean.valueOf(properties.getProperty("synchronizeKeys", "false"));
 			strictSSL = Boolean.valueOf(properties.getProperty("strictSSL", "true"));
 			
+			compactKnownHosts = Boolean.valueOf(properties.getProperty("compactKnownHosts", "false"));
+			mergeKnownHosts = Boolean.valueOf(properties.getProperty("mergeKnownHosts", "false"));
+			hashKnownHosts = Boolean.valueOf(properties.getProperty("hashKnownHosts", "false"));
+			
+			probeConnections = Boolean.valueOf(properties.getProperty("probeConnections", "true"));
+			preConnect = Boolean.valueOf(properties.getProperty("preConnect", "false"));
+			
 			if(properties.containsKey("favorites")) {
 				String[] names = properties.get("favorites").toString().split(",");
 				for(String name : names) {
@@ -135,6 +149,13 @@ public class Settings {
 		properties.put("synchronizeKeys", String.valueOf(synchronizeKeys));
 		properties.put("strictSSL", String.valueOf(strictSSL));
 		
+		properties.put("compactKnownHosts", String.valueOf(compactKnownHosts));
+		properties.put("mergeKnownHosts", String.valueOf(mergeKnownHosts));
+		properties.put("hashKnownHosts", String.valueOf(hashKnownHosts));
+		
+		properties.put("probeConnections", String.valueOf(probeConnections));
+		properties.put("preConnect", String.valueOf(preConnect));
+		
 		properties.put("iconMode", iconMode.name());
 		
 		StringBuffer buf = new StringBuffer();
@@ -290,5 +311,45 @@ public class Settings {
 	public void setStrictSSL(boolean strictSSL) {
 		this.strictSSL = strictSSL;
 	}
+
+	public boolean isCompactKnownHosts() {
+		return compactKnownHosts;
+	}
+
+	public void setCompactKnownHosts(boolean compactKnownHosts) {
+		this.compactKnownHosts = compactKnownHosts;
+	}
+
+	public boolean isMergeKnownHosts() {
+		return mergeKnownHosts;
+	}
+
+	public void setMergeKnownHosts(boolean mergeKnownHosts) {
+		this.mergeKnownHosts = mergeKnownHosts;
+	}
+
+	public boolean isHashKnownHosts() {
+		return hashKnownHosts;
+	}
+
+	public void setHashKnownHosts(boolean hashKnownHosts) {
+		this.hashKnownHosts = hashKnownHosts;
+	}
+
+	public boolean isProbeConnections() {
+		return probeConnections;
+	}
+
+	public void setProbeConnections(boolean probeConnections) {
+		this.probeConnections = probeConnections;
+	}
+
+	public boolean isPreConnect() {
+		return preConnect;
+	}
+
+	public void setPreConnect(boolean preConnect) {
+		this.preConnect = preConnect;
+	}
 	
 }
@@ -0,0 +1,402 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.sshtools.common.logger.Log;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsEntry.Marker;
+
+/**
+ * Rewrites a known_hosts file without the redundancy that builds up in it
+ * over time.
+ * <p>
+ * The file is read a line at a time and written to a temporary file as it
+ * goes, and entries that repeat an earlier one are dropped. Optionally,
+ * plain entries for the same key are merged into a single line listing
+ * every name, and plain names are replaced with hashed ones in the same way
+ * as <code>ssh-keygen -H</code>. Merging and hashing need a first pass to
+ * collect the names for each key and the existing hashed entries.
+ * <code>@revoked</code> and <code>@cert-authority</code> lines and entries
+ * with patterns are only ever de-duplicated, never changed. Comments, blank
+ * lines and lines that cannot be parsed are kept as they are.
+ * <p>
+ * The result only replaces the file if it is unchanged since it was read,
+ * otherwise compaction is tried again, so lines appended meanwhile by
+ * <code>ssh</code> or another agent are never lost.
+ */
+public class KnownHostsCompactor {
+
+	static final int SALT_LENGTH = 20;
+	static final int SAMPLE_HOSTS = 256;
+	static final int LOOKUP_ROUNDS = 3;
+	static final String UNKNOWN_HOST = "unknown.invalid";
+	static final int ATTEMPTS = 3;
+
+	public static class Result {
+
+		long bytesBefore;
+		long bytesAfter;
+		int linesBefore;
+		int linesAfter;
+		int duplicates;
+		int merged;
+		int hashed;
+		long lookupBefore;
+		long lookupAfter;
+
+		public boolean isChanged() {
+			return duplicates > 0 || merged > 0 || hashed > 0;
+		}
+
+		public long getBytesBefore() {
+			return bytesBefore;
+		}
+
+		public long getBytesAfter() {
+			return bytesAfter;
+		}
+
+		public int getLinesBefore() {
+			return linesBefore;
+		}
+
+		public int getLinesAfter() {
+			return linesAfter;
+		}
+
+		/**
+		 * Entries dropped because an identical entry, or a hashed entry for the
+		 * same name and key, was already present.
+		 */
+		public int getDuplicates() {
+			return duplicates;
+		}
+
+		/**
+		 * Entries whose names were folded into an earlier entry for the same key.
+		 */
+		public int getMerged() {
+			return merged;
+		}
+
+		/**
+		 * Names that were written as hashed entries.
+		 */
+		public int getHashed() {
+			return hashed;
+		}
+
+		/**
+		 * The average time, in nanoseconds, of an uncached lookup before
+		 * compaction.
+		 */
+		public long getLookupBefore() {
+			return lookupBefore;
+		}
+
+		public long getLookupAfter() {
+			return lookupAfter;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Removed %d duplicate, merged %d and hashed %d entries.%n"
+					+ "Size %d -> %d bytes (%+d%%), %d -> %d lines.%n"
+					+ "Lookup cost %.1f -> %.1f us per host.",
+					duplicates, merged, hashed,
+					bytesBefore, bytesAfter, bytesBefore == 0 ? 0 : (bytesAfter - bytesBefore) * 100 / bytesBefore,
+					linesBefore, linesAfter,
+					lookupBefore / 1000d, lookupAfter / 1000d);
+		}
+	}
+
+	/**
+	 * A plain entry, and the names of any later entries for the same key.
+	 */
+	static class Merge {
+
+		final KnownHostsEntry first;
+		final Map<String, String> names = new LinkedHashMap<>();
+		String comment;
+		int absorbed;
+		boolean written;
+
+		Merge(KnownHostsEntry first) {
+			this.first = first;
+			this.comment = first.getComment();
+			add(first);
+		}
+
+		void add(KnownHostsEntry entry) {
+			for(String name : entry.getHostPatterns()) {
+				names.putIfAbsent(name.toLowerCase(), name);
+			}
+			if(comment.isEmpty()) {
+				comment = entry.getComment();
+			}
+		}
+	}
+
+	final boolean mergeNames;
+	final boolean hashNames;
+	final SecureRandom random = new SecureRandom();
+
+	public KnownHostsCompactor(boolean mergeNames, boolean hashNames) {
+		this.mergeNames = mergeNames;
+		this.hashNames = hashNames;
+	}
+
+	/**
+	 * Compact the watcher's file. The file is only rewritten if something was
+	 * removed or changed, and then atomically and only if nothing has been
+	 * appended to it since it was read.
+	 */
+	public Result compact(KnownHostsWatcher watcher) throws IOException {
+
+		File file = watcher.getFile();
+		Result result = new Result();
+		List<String> hosts = new ArrayList<>();
+		KnownHostsIndex before = watcher.getIndex();
+
+		synchronized(watcher) {
+			if(!file.exists()) {
+				return result;
+			}
+			File dir = file.getAbsoluteFile().getParentFile();
+			for(int attempt = 1; ; attempt++) {
+				BasicFileAttributes read = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				Path tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+				try {
+					result = new Result();
+					hosts.clear();
+					result.bytesBefore = read.size();
+					compact(file, tmp, result, hosts);
+					if(!result.isChanged()) {
+						result.bytesAfter = result.bytesBefore;
+						break;
+					}
+					result.bytesAfter = Files.size(tmp);
+					if(watcher.replace(tmp, read)) {
+						break;
+					}
+				} finally {
+					Files.deleteIfExists(tmp);
+				}
+				if(attempt == ATTEMPTS) {
+					throw new IOException(file + " kept changing while it was being compacted, try again later");
+				}
+				if(Log.isInfoEnabled()) {
+					Log.info("{} changed while it was being compacted, trying again", file);
+				}
+			}
+		}
+
+		KnownHostsIndex after = before;
+		if(result.isChanged()) {
+			watcher.reload();
+			after = watcher.getIndex();
+		}
+
+		/* Take the best of alternating rounds, so neither is measured cold */
+		hosts.add(UNKNOWN_HOST);
+		result.lookupBefore = Long.MAX_VALUE;
+		result.lookupAfter = Long.MAX_VALUE;
+		for(int i = 0; i < LOOKUP_ROUNDS; i++) {
+			result.lookupBefore = Math.min(result.lookupBefore, lookupCost(before, hosts));
+			result.lookupAfter = Math.min(result.lookupAfter, lookupCost(after, hosts));
+		}
+
+		if(Log.isInfoEnabled()) {
+			Log.info("Compacted {} {}", file, result.toString().replace(System.lineSeparator(), " "));
+		}
+		return result;
+	}
+
+	void compact(File file, Path tmp, Result result, List<String> hosts) throws IOException {
+
+		Map<String, Merge> byKey = new HashMap<>();
+		KnownHostsIndex hashedIndex = new KnownHostsIndex();
+
+		if(mergeNames || hashNames) {
+			try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+				String text;
+				while((text = reader.readLine()) != null) {
+					KnownHostsEntry entry = parse(text);
+					if(Objects.isNull(entry)) {
+						continue;
+					}
+					if(isPlain(entry)) {
+						if(mergeNames) {
+							Merge merge = byKey.get(entry.getKeyType() + " " + entry.getKeyData());
+							if(Objects.isNull(merge)) {
+								byKey.put(entry.getKeyType() + " " + entry.getKeyData(), new Merge(entry));
+							} else {
+								merge.add(entry);
+								merge.absorbed++;
+							}
+						}
+					} else if(hashNames && entry.isHashedEntry() && entry.getMarker() == Marker.NONE) {
+						hashedIndex.add(entry);
+					}
+				}
+			}
+		}
+
+		Set<String> seen = new HashSet<>();
+		Set<String> sampled = new HashSet<>();
+
+		try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+				BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			String text;
+			while((text = reader.readLine()) != null) {
+				result.linesBefore++;
+
+				KnownHostsEntry entry = parse(text);
+				if(Objects.isNull(entry)) {
+					write(text, out, result);
+					continue;
+				}
+
+				if(!seen.add(entry.toLine())) {
+					result.duplicates++;
+					continue;
+				}
+
+				if(!isPlain(entry)) {
+					write(text, out, result);
+					continue;
+				}
+
+				for(String name : entry.getHostPatterns()) {
+					if(hosts.size() < SAMPLE_HOSTS && sampled.add(name.toLowerCase())) {
+						hosts.add(name);
+					}
+				}
+
+				Merge merge = mergeNames ? byKey.get(entry.getKeyType() + " " + entry.getKeyData()) : null;
+				if(Objects.nonNull(merge) && merge.written) {
+					/* Its names went out with the first entry for the key */
+					result.merged++;
+					continue;
+				}
+				if(Objects.isNull(merge)) {
+					if(!hashNames) {
+						write(text, out, result);
+						continue;
+					}
+					merge = new Merge(entry);
+				}
+				merge.written = true;
+
+				if(hashNames) {
+					for(String name : merge.names.values()) {
+						if(isHashed(hashedIndex, entry, name)) {
+							result.duplicates++;
+							continue;
+						}
+						write(new KnownHostsEntry(Marker.NONE, hashName(name), entry.getKeyType(),
+								entry.getKeyData(), merge.comment).toLine(), out, result);
+						result.hashed++;
+					}
+				} else if(merge.absorbed == 0) {
+					write(text, out, result);
+				} else {
+					write(new KnownHostsEntry(Marker.NONE, String.join(",", merge.names.values()),
+							entry.getKeyType(), entry.getKeyData(), merge.comment).toLine(), out, result);
+				}
+			}
+		}
+	}
+
+	String hashName(String name) {
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		String encoded = Base64.getEncoder().encodeToString(salt);
+		return KnownHostsEntry.HASH_MAGIC + encoded + "|"
+				+ new KnownHostsIndex.SaltGroup(encoded).hash(name.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The average time of an uncached lookup of each host.
+	 */
+	static long lookupCost(KnownHostsIndex index, List<String> hosts) {
+		long started = System.nanoTime();
+		for(String host : hosts) {
+			index.lookupCache.remove(host);
+			index.lookup(host);
+		}
+		return (System.nanoTime() - started) / hosts.size();
+	}
+
+	/**
+	 * Only entries with plain names and no marker are merged or hashed.
+	 */
+	static boolean isPlain(KnownHostsEntry entry) {
+		if(entry.getMarker() != Marker.NONE || entry.isHashedEntry()) {
+			return false;
+		}
+		for(String name : entry.getHostPatterns()) {
+			if(KnownHostsEntry.isPattern(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isHashed(KnownHostsIndex hashedIndex, KnownHostsEntry entry, String name) {
+		for(KnownHostsEntry hashed : hashedIndex.keyed(entry.getKeyData())) {
+			if(hashedIndex.matches(hashed, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static KnownHostsEntry parse(String text) {
+		try {
+			return KnownHostsParser.parseLine(text);
+		} catch(IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static void write(String line, BufferedWriter out, Result result) throws IOException {
+		out.write(line);
+		out.write(System.lineSeparator());
+		result.linesAfter++;
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.sshtools.common.publickey.SshKeyUtils;
+import com.sshtools.common.ssh.components.SshPublicKey;
+
+/**
+ * A single line of a known_hosts file. The public key is kept in its encoded
+ * form and only decoded when it is actually needed. An entry parsed from a
+ * buffer keeps its key blob as a slice of that buffer, so the base64 text,
+ * which is most of a line, is not copied onto the heap until it is asked for.
+ */
+public class KnownHostsEntry {
+
+	public enum Marker {
+		NONE, REVOKED, CERT_AUTHORITY
+	}
+
+	static final String HASH_MAGIC = "|1|";
+
+	final Marker marker;
+	final String hosts;
+	final String keyType;
+	final String keyData;
+	final ByteBuffer keyBlob;
+	final String comment;
+
+	volatile SshPublicKey key;
+	volatile String fingerprint;
+
+	public KnownHostsEntry(Marker marker, String hosts, String keyType, String keyData, String comment) {
+		this(marker, hosts, keyType, keyData, null, comment);
+	}
+
+	/**
+	 * @param keyBlob the base64 key blob, between the buffer's position and
+	 *            limit, which must not change afterwards
+	 */
+	KnownHostsEntry(Marker marker, String hosts, String keyType, ByteBuffer keyBlob, String comment) {
+		this(marker, hosts, keyType, null, keyBlob, comment);
+	}
+
+	private KnownHostsEntry(Marker marker, String hosts, String keyType, String keyData, ByteBuffer keyBlob,
+			String comment) {
+		this.marker = marker;
+		this.hosts = hosts;
+		this.keyType = keyType;
+		this.keyData = keyData;
+		this.keyBlob = keyBlob;
+		this.comment = StringUtils.defaultString(comment);
+	}
+
+	public Marker getMarker() {
+		return marker;
+	}
+
+	public boolean isRevoked() {
+		return marker == Marker.REVOKED;
+	}
+
+	public boolean isCertAuthority() {
+		return marker == Marker.CERT_AUTHORITY;
+	}
+
+	public boolean isHashedEntry() {
+		return hosts.startsWith(HASH_MAGIC);
+	}
+
+	/**
+	 * The host field as it appears in the file, i.e. comma separated names or
+	 * patterns, or a single hashed name.
+	 */
+	public String getNames() {
+		return hosts;
+	}
+
+	public String[] getHostPatterns() {
+		return hosts.split(",");
+	}
+
+	public String getKeyType() {
+		return keyType;
+	}
+
+	/**
+	 * The base64 encoded key blob. For an entry parsed from a buffer this
+	 * copies it each time, so index by {@link #getKeyBlob()} instead.
+	 */
+	public String getKeyData() {
+		if(Objects.nonNull(keyData)) {
+			return keyData;
+		}
+		byte[] data = new byte[keyBlob.remaining()];
+		keyBlob.get(keyBlob.position(), data);
+		return new String(data, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * The base64 encoded key blob as bytes. Entries for the same key have
+	 * equal buffers, so this is used as an index key.
+	 */
+	ByteBuffer getKeyBlob() {
+		if(Objects.nonNull(keyBlob)) {
+			return keyBlob.asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(keyData.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+	}
+
+	public String getComment() {
+		return comment;
+	}
+
+	public SshPublicKey getKey() throws IOException {
+		SshPublicKey k = key;
+		if(Objects.isNull(k)) {
+			k = SshKeyUtils.getPublicKey(keyType + " " + getKeyData());
+			key = k;
+		}
+		return k;
+	}
+
+	public String getFingerprint() throws IOException {
+		String f = fingerprint;
+		if(Objects.isNull(f)) {
+			f = SshKeyUtils.getFingerprint(getKey());
+			fingerprint = f;
+		}
+		return f;
+	}
+
+	public KnownHostsEntry withComment(String comment) {
+		KnownHostsEntry e = new KnownHostsEntry(marker, hosts, keyType, keyData, keyBlob, comment);
+		e.key = key;
+		e.fingerprint = fingerprint;
+		return e;
+	}
+
+	/**
+	 * Test a plain (not hashed) entry against a host name. As with OpenSSH, a
+	 * negated pattern that matches excludes the host even if another pattern
+	 * matches it.
+	 */
+	public boolean matchesPlain(String host) {
+		boolean matched = false;
+		for(String pattern : getHostPatterns()) {
+			if(pattern.startsWith("!")) {
+				if(matchesPattern(pattern.substring(1), host)) {
+					return false;
+				}
+			} else if(matchesPattern(pattern, host)) {
+				matched = true;
+			}
+		}
+		return matched;
+	}
+
+	public String toLine() {
+		StringBuilder line = new StringBuilder();
+		switch(marker) {
+		case REVOKED:
+			line.append("@revoked ");
+			break;
+		case CERT_AUTHORITY:
+			line.append("@cert-authority ");
+			break;
+		default:
+			break;
+		}
+		line.append(hosts);
+		line.append(' ');
+		line.append(keyType);
+		line.append(' ');
+		line.append(getKeyData());
+		if(StringUtils.isNotBlank(comment)) {
+			line.append(' ');
+			line.append(comment);
+		}
+		return line.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toLine();
+	}
+
+	static boolean isPattern(String name) {
+		return name.startsWith("!") || name.indexOf('*') > -1 || name.indexOf('?') > -1;
+	}
+
+	static boolean matchesPattern(String pattern, String host) {
+		if(!isPattern(pattern)) {
+			return pattern.equalsIgnoreCase(host);
+		}
+		return glob(pattern.toLowerCase(), 0, host.toLowerCase(), 0);
+	}
+
+	private static boolean glob(String pattern, int p, String str, int s) {
+		while(p < pattern.length()) {
+			char c = pattern.charAt(p);
+			if(c == '*') {
+				for(int i = s; i <= str.length(); i++) {
+					if(glob(pattern, p + 1, str, i)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if(s >= str.length() || (c != '?' && c != str.charAt(s))) {
+				return false;
+			}
+			p++;
+			s++;
+		}
+		return s == str.length();
+	}
+}
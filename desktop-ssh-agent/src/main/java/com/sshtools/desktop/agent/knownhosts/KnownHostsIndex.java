@@ -0,0 +1,493 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.components.SshPublicKey;
+
+/**
+ * Lookup structures over the entries of a known_hosts file.
+ * <p>
+ * Plain names are held in a hash map, and entries with wildcard or negated
+ * patterns in a short list that is checked in full. A hashed name can only
+ * be tested by computing its HMAC-SHA1 with the entry's salt, and OpenSSH
+ * (like {@link KnownHostsCompactor}) picks a fresh salt for every line, so
+ * an uncached lookup of any host costs one HMAC per hashed line, O(n) in the
+ * size of the file. Only a file with no hashed lines gets constant time.
+ * Entries are grouped by salt just so the keyed MAC is set up once per salt
+ * and reused, which saves the key schedule but not the digest. The cheap
+ * paths are elsewhere: entries are indexed by key blob, so confirming that a
+ * host presents a key it is already known by only needs to test the few
+ * entries carrying that key, and full host lookups are remembered in a small
+ * bounded cache.
+ * <p>
+ * An index may sit on top of a {@link KnownHostsSnapshot}, in which case
+ * the snapshot answers for the entries it holds and only entries added
+ * since are kept in these structures.
+ * <p>
+ * An index is built with {@link #add(KnownHostsEntry)} and must not be
+ * changed once it is shared. Additions after that are made copy-on-write
+ * with {@link #with(Collection, Collection)}, so any number of threads can
+ * look up hosts without locking.
+ */
+public class KnownHostsIndex {
+
+	public enum Status {
+		VERIFIED, REVOKED, MISMATCH, UNKNOWN
+	}
+
+	static final String HMAC_SHA1 = "HmacSHA1";
+	static final int LOOKUP_CACHE_SIZE = 512;
+
+	final List<KnownHostsEntry> entries = new ArrayList<>();
+	final Map<String, List<KnownHostsEntry>> byName = new HashMap<>();
+	final List<KnownHostsEntry> patterned = new ArrayList<>();
+	final Map<String, SaltGroup> bySalt = new HashMap<>();
+	final Map<KnownHostsEntry, SaltGroup> saltOf = new HashMap<>();
+	final Map<ByteBuffer, List<KnownHostsEntry>> byKey = new HashMap<>();
+	final List<KnownHostsEntry> certAuthorities = new ArrayList<>();
+	final List<String> invalidLines = new ArrayList<>();
+	final KnownHostsSnapshot base;
+	long sourceLength;
+
+	final Map<String, List<KnownHostsEntry>> lookupCache = new ConcurrentHashMap<>();
+	final Map<String, Long> verifiedCertificates = new ConcurrentHashMap<>();
+	volatile Map<String, List<KnownHostsEntry>> authoritiesByKey;
+
+	public KnownHostsIndex() {
+		this.base = null;
+	}
+
+	public KnownHostsIndex(KnownHostsSnapshot base) {
+		this.base = base;
+		this.sourceLength = base.getSourceSize();
+	}
+
+	public KnownHostsIndex(Collection<KnownHostsEntry> entries) {
+		this();
+		for(KnownHostsEntry entry : entries) {
+			add(entry);
+		}
+	}
+
+	public void add(KnownHostsEntry entry) {
+
+		entries.add(entry);
+		lookupCache.clear();
+		authoritiesByKey = null;
+
+		if(entry.isCertAuthority()) {
+			certAuthorities.add(entry);
+			return;
+		}
+
+		byKey.computeIfAbsent(entry.getKeyBlob(), k -> new ArrayList<>(1)).add(entry);
+
+		if(entry.isRevoked()) {
+			return;
+		}
+
+		if(entry.isHashedEntry()) {
+			String[] parts = entry.getNames().substring(KnownHostsEntry.HASH_MAGIC.length()).split("\\|");
+			if(parts.length != 2) {
+				invalidLines.add(entry.toLine());
+				return;
+			}
+			SaltGroup group = bySalt.computeIfAbsent(parts[0], SaltGroup::new);
+			group.byHash.computeIfAbsent(parts[1], k -> new ArrayList<>(1)).add(entry);
+			saltOf.put(entry, group);
+			return;
+		}
+
+		boolean hasPattern = false;
+		for(String name : entry.getHostPatterns()) {
+			if(KnownHostsEntry.isPattern(name)) {
+				hasPattern = true;
+			} else {
+				byName.computeIfAbsent(name.toLowerCase(), k -> new ArrayList<>(1)).add(entry);
+			}
+		}
+		if(hasPattern) {
+			patterned.add(entry);
+		}
+	}
+
+	/**
+	 * A new index holding this one's entries plus those given. Any snapshot
+	 * is shared, otherwise only the entries added on top of it are copied.
+	 */
+	public KnownHostsIndex with(Collection<KnownHostsEntry> added, Collection<String> invalid) {
+		KnownHostsIndex copy = Objects.isNull(base) ? new KnownHostsIndex() : new KnownHostsIndex(base);
+		for(KnownHostsEntry entry : entries) {
+			copy.add(entry);
+		}
+		copy.invalidLines.addAll(invalidLines);
+		for(KnownHostsEntry entry : added) {
+			copy.add(entry);
+		}
+		copy.invalidLines.addAll(invalid);
+		copy.sourceLength = sourceLength;
+		return copy;
+	}
+
+	public void addInvalidLine(String line) {
+		invalidLines.add(line);
+	}
+
+	public List<String> getInvalidLines() {
+		if(Objects.isNull(base)) {
+			return Collections.unmodifiableList(invalidLines);
+		}
+		List<String> results = new ArrayList<>(base.getInvalidLines());
+		results.addAll(invalidLines);
+		return results;
+	}
+
+	/**
+	 * All entries in file order. Entries held by a snapshot are decoded as
+	 * they are accessed.
+	 */
+	public List<KnownHostsEntry> getEntries() {
+		if(Objects.isNull(base)) {
+			return Collections.unmodifiableList(entries);
+		}
+		return new AbstractList<KnownHostsEntry>() {
+			@Override
+			public KnownHostsEntry get(int index) {
+				return index < base.size() ? base.getEntry(index) : entries.get(index - base.size());
+			}
+			@Override
+			public int size() {
+				return KnownHostsIndex.this.size();
+			}
+		};
+	}
+
+	public List<KnownHostsEntry> getCertAuthorities() {
+		if(Objects.isNull(base)) {
+			return Collections.unmodifiableList(certAuthorities);
+		}
+		List<KnownHostsEntry> results = base.getCertAuthorities();
+		results.addAll(certAuthorities);
+		return results;
+	}
+
+	/**
+	 * The <code>@cert-authority</code> entries for a CA key.
+	 */
+	public List<KnownHostsEntry> getCertAuthorities(String keyData) {
+		Map<String, List<KnownHostsEntry>> byKey = authoritiesByKey;
+		if(Objects.isNull(byKey)) {
+			byKey = new HashMap<>();
+			for(KnownHostsEntry entry : getCertAuthorities()) {
+				byKey.computeIfAbsent(entry.getKeyData(), k -> new ArrayList<>(1)).add(entry);
+			}
+			authoritiesByKey = byKey;
+		}
+		return byKey.getOrDefault(keyData, Collections.emptyList());
+	}
+
+	/**
+	 * When a host certificate verified against this index expires.
+	 */
+	public Long getVerifiedCertificate(String key) {
+		return verifiedCertificates.get(key);
+	}
+
+	public void putVerifiedCertificate(String key, long validBefore) {
+		if(verifiedCertificates.size() >= LOOKUP_CACHE_SIZE) {
+			verifiedCertificates.clear();
+		}
+		verifiedCertificates.put(key, validBefore);
+	}
+
+	public int size() {
+		return Objects.isNull(base) ? entries.size() : base.size() + entries.size();
+	}
+
+	/**
+	 * The number of bytes of the file this index was read from.
+	 */
+	public long getSourceLength() {
+		return sourceLength;
+	}
+
+	/**
+	 * All host key entries (not revocations or certificate authorities) that
+	 * match the host.
+	 */
+	public List<KnownHostsEntry> lookup(String host) {
+		return lookup(host, true);
+	}
+
+	/**
+	 * As {@link #lookup(String)}, optionally leaving the result out of the
+	 * lookup cache, e.g. for text typed into a search that may not be a host
+	 * that will be connected to.
+	 */
+	public List<KnownHostsEntry> lookup(String host, boolean remember) {
+
+		List<KnownHostsEntry> cached = lookupCache.get(host);
+		if(Objects.nonNull(cached)) {
+			return cached;
+		}
+
+		List<KnownHostsEntry> results = new ArrayList<>();
+
+		if(Objects.nonNull(base)) {
+			base.lookup(host, results);
+		}
+
+		List<KnownHostsEntry> named = byName.get(host.toLowerCase());
+		if(Objects.nonNull(named)) {
+			for(KnownHostsEntry entry : named) {
+				/* The same entry may also carry a negated pattern */
+				if(!results.contains(entry) && entry.matchesPlain(host)) {
+					results.add(entry);
+				}
+			}
+		}
+
+		for(KnownHostsEntry entry : patterned) {
+			if(!results.contains(entry) && entry.matchesPlain(host)) {
+				results.add(entry);
+			}
+		}
+
+		if(!bySalt.isEmpty()) {
+			byte[] data = host.getBytes(StandardCharsets.UTF_8);
+			for(SaltGroup group : bySalt.values()) {
+				List<KnownHostsEntry> hashed = group.byHash.get(group.hash(data));
+				if(Objects.nonNull(hashed)) {
+					results.addAll(hashed);
+				}
+			}
+		}
+
+		results = Collections.unmodifiableList(results);
+		if(!remember) {
+			return results;
+		}
+		if(lookupCache.size() >= LOOKUP_CACHE_SIZE) {
+			lookupCache.clear();
+		}
+		lookupCache.put(host, results);
+		return results;
+	}
+
+	/**
+	 * Entries, in file order, whose key fingerprint starts with the query,
+	 * e.g. <code>SHA256:abc</code> or <code>MD5:12:34</code>. The algorithm
+	 * name is not case sensitive. Fingerprints are computed from the encoded
+	 * key, once for each distinct key, so keys are not decoded and entries
+	 * held by a snapshot are only decoded if they match.
+	 */
+	public List<KnownHostsEntry> findByFingerprint(String query) {
+
+		List<KnownHostsEntry> results = new ArrayList<>();
+		int colon = query.indexOf(':');
+		if(colon < 0) {
+			return results;
+		}
+		String algorithm = query.substring(0, colon).toUpperCase();
+		/* MD5 fingerprints are hex, SHA256 ones case sensitive base64 */
+		String p = algorithm + ":" + (algorithm.equals("MD5") ? query.substring(colon + 1).toLowerCase()
+				: query.substring(colon + 1));
+
+		Map<String, Boolean> matched = new HashMap<>();
+		int baseSize = Objects.isNull(base) ? 0 : base.size();
+		for(int i = 0; i < baseSize; i++) {
+			if(matched.computeIfAbsent(base.getKeyData(i), k -> fingerprint(algorithm, k).startsWith(p))) {
+				results.add(base.getEntry(i));
+			}
+		}
+		for(KnownHostsEntry entry : entries) {
+			if(matched.computeIfAbsent(entry.getKeyData(), k -> fingerprint(algorithm, k).startsWith(p))) {
+				results.add(entry);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * The fingerprint of a base64 encoded key blob in the form OpenSSH shows
+	 * it, or an empty string if the algorithm is not supported or the key is
+	 * not valid base64.
+	 */
+	static String fingerprint(String algorithm, String keyData) {
+		try {
+			byte[] blob = Base64.getDecoder().decode(keyData);
+			switch(algorithm) {
+			case "SHA256":
+				return "SHA256:" + Base64.getEncoder().withoutPadding().encodeToString(
+						MessageDigest.getInstance("SHA-256").digest(blob));
+			case "MD5":
+				StringBuilder hex = new StringBuilder("MD5:");
+				for(byte b : MessageDigest.getInstance("MD5").digest(blob)) {
+					if(hex.length() > 4) {
+						hex.append(':');
+					}
+					hex.append(String.format("%02x", b & 0xff));
+				}
+				return hex.toString();
+			default:
+				return "";
+			}
+		} catch(NoSuchAlgorithmException | IllegalArgumentException e) {
+			return "";
+		}
+	}
+
+	public boolean isRevoked(SshPublicKey key) throws SshException {
+		for(KnownHostsEntry entry : keyed(encode(key))) {
+			if(entry.isRevoked()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The entries, including revocations, that carry the encoded key.
+	 */
+	List<KnownHostsEntry> keyed(String blob) {
+		List<KnownHostsEntry> keyed = byKey.get(ByteBuffer.wrap(blob.getBytes(StandardCharsets.US_ASCII)));
+		if(Objects.isNull(base)) {
+			return Objects.isNull(keyed) ? Collections.emptyList() : keyed;
+		}
+		List<KnownHostsEntry> results = new ArrayList<>();
+		base.lookupKey(blob, results);
+		if(Objects.nonNull(keyed)) {
+			results.addAll(keyed);
+		}
+		return results;
+	}
+
+	/**
+	 * Test if the entry applies to the host. For hashed entries this costs a
+	 * single digest.
+	 */
+	public boolean matches(KnownHostsEntry entry, String host) {
+		if(entry.isHashedEntry()) {
+			String names = entry.getNames();
+			SaltGroup group = saltOf.get(entry);
+			if(Objects.isNull(group)) {
+				/* Held by the snapshot, or a certificate authority */
+				String[] parts = names.substring(KnownHostsEntry.HASH_MAGIC.length()).split("\\|");
+				if(parts.length != 2) {
+					return false;
+				}
+				group = new SaltGroup(parts[0]);
+			}
+			String hash = names.substring(names.lastIndexOf('|') + 1);
+			return hash.equals(group.hash(host.getBytes(StandardCharsets.UTF_8)));
+		}
+		return entry.matchesPlain(host);
+	}
+
+	public Status verify(String host, SshPublicKey key) throws SshException {
+
+		List<KnownHostsEntry> keyed = keyed(encode(key));
+
+		for(KnownHostsEntry entry : keyed) {
+			if(entry.isRevoked()) {
+				return Status.REVOKED;
+			}
+		}
+		/* Fast path, only the entries that carry this key need testing */
+		for(KnownHostsEntry entry : keyed) {
+			if(matches(entry, host)) {
+				return Status.VERIFIED;
+			}
+		}
+
+		return lookup(host).isEmpty() ? Status.UNKNOWN : Status.MISMATCH;
+	}
+
+	static String encode(SshPublicKey key) throws SshException {
+		return Base64.getEncoder().encodeToString(key.getEncoded());
+	}
+
+	static class SaltGroup {
+
+		final String salt;
+		final Map<String, List<KnownHostsEntry>> byHash = new HashMap<>(2);
+		volatile Mac prototype;
+		boolean cloneable = true;
+
+		SaltGroup(String salt) {
+			this.salt = salt;
+		}
+
+		/**
+		 * HMAC-SHA1 of the data keyed with this salt, base64 encoded. The keyed
+		 * MAC is cloned so its inner and outer pad state is only computed once.
+		 */
+		String hash(byte[] data) {
+			try {
+				Mac mac;
+				if(cloneable) {
+					Mac p = prototype;
+					if(Objects.isNull(p)) {
+						p = newMac();
+						prototype = p;
+					}
+					try {
+						mac = (Mac) p.clone();
+					} catch(CloneNotSupportedException e) {
+						cloneable = false;
+						mac = newMac();
+					}
+				} else {
+					mac = newMac();
+				}
+				return Base64.getEncoder().encodeToString(mac.doFinal(data));
+			} catch(GeneralSecurityException | IllegalArgumentException e) {
+				Log.error("Invalid hashed known_hosts salt " + salt, e);
+				return "";
+			}
+		}
+
+		private Mac newMac() throws GeneralSecurityException {
+			Mac mac = Mac.getInstance(HMAC_SHA1);
+			mac.init(new SecretKeySpec(Base64.getDecoder().decode(salt), HMAC_SHA1));
+			return mac;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import com.sshtools.desktop.agent.knownhosts.KnownHostsEntry.Marker;
+
+/**
+ * Parses known_hosts lines straight from bytes. Lines are located by
+ * scanning the buffer, and only the short fields of each entry are turned
+ * into strings, so a file is never copied into a single string or read
+ * through a character stream. Key blobs are left in the buffer as slices,
+ * so heap use grows with the entries whose keys are used rather than with
+ * the size of the file.
+ */
+public class KnownHostsParser {
+
+	/**
+	 * Parse a single line. Returns <code>null</code> for blank lines and
+	 * comments, and throws for lines that are not valid entries.
+	 */
+	public static KnownHostsEntry parseLine(String line) throws IOException {
+		byte[] data = line.getBytes(StandardCharsets.UTF_8);
+		return parseLine(ByteBuffer.wrap(data), 0, data.length);
+	}
+
+	/**
+	 * Memory map the file and parse every line. On Windows a mapped file
+	 * cannot be replaced until the mapping is garbage collected, which would
+	 * stop <code>ssh</code> updating it, so the file is read onto the heap
+	 * instead.
+	 * <p>
+	 * Entries keep slices of the buffer, and so the mapping, for as long as
+	 * they are reachable. A file replaced by renaming, as <code>ssh-keygen</code>
+	 * and {@link KnownHostsWatcher} do, leaves them readable. If another
+	 * process truncates it in place, reading such a key throws until the
+	 * watcher, which reloads whenever the file shrinks, replaces them.
+	 *
+	 * @return the buffer that was parsed, so callers can inspect its tail
+	 */
+	public static ByteBuffer parse(File file, Consumer<KnownHostsEntry> entries, Consumer<String> invalid) throws IOException {
+		ByteBuffer buf;
+		if(SystemUtils.IS_OS_WINDOWS) {
+			buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		} else {
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+		parse(buf, entries, invalid);
+		return buf;
+	}
+
+	/**
+	 * Parse the lines between the buffer's position and limit.
+	 */
+	public static void parse(ByteBuffer buf, Consumer<KnownHostsEntry> entries, Consumer<String> invalid) {
+		int limit = buf.limit();
+		int start = buf.position();
+		while(start < limit) {
+			int end = start;
+			while(end < limit && buf.get(end) != '\n') {
+				end++;
+			}
+			try {
+				KnownHostsEntry entry = parseLine(buf, start, end);
+				if(entry != null) {
+					entries.accept(entry);
+				}
+			} catch(IOException | RuntimeException e) {
+				invalid.accept(string(buf, start, end));
+			}
+			start = end + 1;
+		}
+	}
+
+	static KnownHostsEntry parseLine(ByteBuffer buf, int start, int end) throws IOException {
+
+		end = trimEnd(buf, start, end);
+		start = skipSpace(buf, start, end);
+		if(start == end || buf.get(start) == '#') {
+			return null;
+		}
+
+		Marker marker = Marker.NONE;
+		if(buf.get(start) == '@') {
+			int e = nextSpace(buf, start, end);
+			String token = string(buf, start, e);
+			switch(token) {
+			case "@revoked":
+				marker = Marker.REVOKED;
+				break;
+			case "@cert-authority":
+				marker = Marker.CERT_AUTHORITY;
+				break;
+			default:
+				throw new IOException("Unknown marker " + token);
+			}
+			start = skipSpace(buf, e, end);
+		}
+
+		String[] fields = new String[2];
+		ByteBuffer keyBlob = null;
+		for(int i = 0; i < 3; i++) {
+			if(start == end) {
+				throw new IOException("Too few fields");
+			}
+			int e = nextSpace(buf, start, end);
+			if(i == 0) {
+				fields[i] = string(buf, start, e);
+			} else if(i == 1) {
+				/* There are only a handful of key types */
+				fields[i] = string(buf, start, e).intern();
+			} else {
+				/* The key blob is most of the line, so it is only referenced */
+				keyBlob = buf.slice(start, e - start);
+			}
+			start = skipSpace(buf, e, end);
+		}
+
+		/* The comment is the rest of the line and may itself contain spaces */
+		String comment = string(buf, start, end);
+
+		if(Character.isDigit(fields[1].charAt(0))) {
+			throw new IOException("SSH1 host keys are not supported");
+		}
+
+		return new KnownHostsEntry(marker, fields[0], fields[1], keyBlob, comment);
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static int skipSpace(ByteBuffer buf, int i, int end) {
+		while(i < end && isSpace(buf.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int nextSpace(ByteBuffer buf, int i, int end) {
+		while(i < end && !isSpace(buf.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int trimEnd(ByteBuffer buf, int start, int end) {
+		while(end > start && isSpace(buf.get(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+
+	private static String string(ByteBuffer buf, int start, int end) {
+		if(start == end) {
+			return "";
+		}
+		if(buf.hasArray()) {
+			return new String(buf.array(), buf.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+		}
+		byte[] tmp = new byte[end - start];
+		buf.get(start, tmp);
+		return new String(tmp, StandardCharsets.UTF_8);
+	}
+}
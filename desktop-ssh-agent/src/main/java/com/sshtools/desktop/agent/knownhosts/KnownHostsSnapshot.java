@@ -0,0 +1,597 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import com.sshtools.common.logger.Log;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsEntry.Marker;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsIndex.SaltGroup;
+
+/**
+ * A binary copy of a known_hosts index that is memory mapped and queried in
+ * place.
+ * <p>
+ * The snapshot records the size, modification time and SHA-256 of the text
+ * file it was built from and is only used while all three still match, so
+ * the text file remains the source of truth. It holds open addressed hash
+ * tables for plain host names and key blobs, the hashed entries grouped by
+ * salt, and the pattern and certificate authority entries. Entries are
+ * only decoded when a lookup reaches them or they are displayed.
+ */
+public class KnownHostsSnapshot {
+
+	static final int MAGIC = 0x4B484958;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 128;
+	static final int ENTRY_SIZE = 36;
+	static final int SLOT_SIZE = 8;
+	static final int SALT_SIZE = 16;
+	static final int HASHED_SIZE = 12;
+	static final String DIGEST = "SHA-256";
+
+	static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "KnownHostsSnapshot");
+		t.setDaemon(true);
+		return t;
+	});
+
+	final ByteBuffer buf;
+	final int count;
+	final int entriesOff;
+	final int namesOff;
+	final int namesCapacity;
+	final int keysOff;
+	final int keysCapacity;
+	final int saltsOff;
+	final int saltCount;
+	final int hashedOff;
+	final int patternsOff;
+	final int patternCount;
+	final int authoritiesOff;
+	final int authorityCount;
+	final long sourceSize;
+
+	final KnownHostsEntry[] decoded;
+	final SaltGroup[] groups;
+	final List<String> invalidLines;
+
+	KnownHostsSnapshot(ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		if(buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("Not a known_hosts snapshot");
+		}
+		sourceSize = buf.getLong(8);
+		count = buf.getInt(56);
+		entriesOff = checkSection(60, count, ENTRY_SIZE);
+		namesCapacity = buf.getInt(68);
+		namesOff = checkSection(64, namesCapacity, SLOT_SIZE);
+		keysCapacity = buf.getInt(76);
+		keysOff = checkSection(72, keysCapacity, SLOT_SIZE);
+		saltCount = buf.getInt(84);
+		saltsOff = checkSection(80, saltCount, SALT_SIZE);
+		hashedOff = checkSection(88, 0, 0);
+		patternCount = buf.getInt(96);
+		patternsOff = checkSection(92, patternCount, 4);
+		authorityCount = buf.getInt(104);
+		authoritiesOff = checkSection(100, authorityCount, 4);
+		int invalidCount = buf.getInt(112);
+		int invalidOff = checkSection(108, invalidCount, 8);
+
+		decoded = new KnownHostsEntry[count];
+		groups = new SaltGroup[saltCount];
+
+		List<String> invalid = new ArrayList<>(invalidCount);
+		for(int i = 0; i < invalidCount; i++) {
+			invalid.add(string(invalidOff + i * 8));
+		}
+		invalidLines = Collections.unmodifiableList(invalid);
+	}
+
+	private int checkSection(int field, int items, int size) throws IOException {
+		int off = buf.getInt(field);
+		if(off < HEADER_SIZE || items < 0 || (long) off + (long) items * size > buf.limit()) {
+			throw new IOException("Corrupt known_hosts snapshot");
+		}
+		return off;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * The size of the text file this snapshot was built from.
+	 */
+	public long getSourceSize() {
+		return sourceSize;
+	}
+
+	public List<String> getInvalidLines() {
+		return invalidLines;
+	}
+
+	public KnownHostsEntry getEntry(int index) {
+		KnownHostsEntry entry = decoded[index];
+		if(Objects.isNull(entry)) {
+			entry = readEntry(index);
+			decoded[index] = entry;
+		}
+		return entry;
+	}
+
+	/**
+	 * The encoded key of an entry, without decoding and keeping the entry.
+	 */
+	String getKeyData(int index) {
+		KnownHostsEntry entry = decoded[index];
+		if(Objects.nonNull(entry)) {
+			return entry.getKeyData();
+		}
+		return string(entriesOff + index * ENTRY_SIZE + 20);
+	}
+
+	KnownHostsEntry readEntry(int index) {
+		int off = entriesOff + index * ENTRY_SIZE;
+		return new KnownHostsEntry(Marker.values()[buf.getInt(off)], string(off + 4), string(off + 12),
+				string(off + 20), string(off + 28));
+	}
+
+	public List<KnownHostsEntry> getCertAuthorities() {
+		List<KnownHostsEntry> results = new ArrayList<>(authorityCount);
+		for(int i = 0; i < authorityCount; i++) {
+			results.add(getEntry(buf.getInt(authoritiesOff + i * 4)));
+		}
+		return results;
+	}
+
+	/**
+	 * Add the plain, patterned and hashed entries that match the host.
+	 */
+	void lookup(String host, List<KnownHostsEntry> results) {
+
+		String name = host.toLowerCase();
+		int hash = name.hashCode();
+		for(int slot = slot(hash, namesCapacity); ; slot = (slot + 1) & (namesCapacity - 1)) {
+			int off = namesOff + slot * SLOT_SIZE;
+			int ref = buf.getInt(off + 4);
+			if(ref == 0) {
+				break;
+			}
+			if(buf.getInt(off) == hash) {
+				KnownHostsEntry entry = getEntry(ref - 1);
+				if(!results.contains(entry) && entry.matchesPlain(host)) {
+					results.add(entry);
+				}
+			}
+		}
+
+		for(int i = 0; i < patternCount; i++) {
+			KnownHostsEntry entry = getEntry(buf.getInt(patternsOff + i * 4));
+			if(!results.contains(entry) && entry.matchesPlain(host)) {
+				results.add(entry);
+			}
+		}
+
+		if(saltCount > 0) {
+			byte[] data = host.getBytes(StandardCharsets.UTF_8);
+			for(int g = 0; g < saltCount; g++) {
+				int off = saltsOff + g * SALT_SIZE;
+				SaltGroup group = groups[g];
+				if(Objects.isNull(group)) {
+					group = new SaltGroup(string(off));
+					groups[g] = group;
+				}
+				byte[] digest = group.hash(data).getBytes(StandardCharsets.US_ASCII);
+				int start = buf.getInt(off + 8);
+				int end = start + buf.getInt(off + 12);
+				for(int h = start; h < end; h++) {
+					int hoff = hashedOff + h * HASHED_SIZE;
+					if(equalBytes(buf.getInt(hoff + 4), buf.getInt(hoff + 8), digest)) {
+						results.add(getEntry(buf.getInt(hoff)));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the entries, including revocations, that carry the encoded key.
+	 */
+	void lookupKey(String keyData, List<KnownHostsEntry> results) {
+		int hash = keyData.hashCode();
+		for(int slot = slot(hash, keysCapacity); ; slot = (slot + 1) & (keysCapacity - 1)) {
+			int off = keysOff + slot * SLOT_SIZE;
+			int ref = buf.getInt(off + 4);
+			if(ref == 0) {
+				break;
+			}
+			if(buf.getInt(off) == hash) {
+				KnownHostsEntry entry = getEntry(ref - 1);
+				if(entry.getKeyData().equals(keyData)) {
+					results.add(entry);
+				}
+			}
+		}
+	}
+
+	private boolean equalBytes(int off, int len, byte[] data) {
+		if(len != data.length) {
+			return false;
+		}
+		for(int i = 0; i < len; i++) {
+			if(buf.get(off + i) != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String string(int field) {
+		int off = buf.getInt(field);
+		byte[] data = new byte[buf.getInt(field + 4)];
+		buf.get(off, data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	static int slot(int hash, int capacity) {
+		hash ^= (hash >>> 16);
+		return hash & (capacity - 1);
+	}
+
+	/**
+	 * Open the snapshot if it was built from the current contents of the
+	 * source file, otherwise return <code>null</code>.
+	 */
+	public static KnownHostsSnapshot open(File snapshot, File source) {
+		if(!snapshot.exists() || !source.exists()) {
+			return null;
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+			ByteBuffer buf = map(snapshot.toPath());
+			if(buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+					|| buf.getLong(8) != attrs.size()
+					|| buf.getLong(16) != attrs.lastModifiedTime().toMillis()) {
+				return null;
+			}
+			byte[] hash = new byte[32];
+			buf.get(24, hash);
+			if(!Arrays.equals(hash, digest(map(source.toPath())))) {
+				return null;
+			}
+			return new KnownHostsSnapshot(buf);
+		} catch(IOException | RuntimeException e) {
+			Log.error("Ignoring unreadable known_hosts snapshot " + snapshot, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Load the index for a known_hosts file, using the snapshot when it is
+	 * current. Otherwise the text is parsed and the snapshot is rebuilt in the
+	 * background. A <code>null</code> snapshot file disables snapshots.
+	 */
+	public static KnownHostsIndex load(File source, File snapshot) throws IOException {
+
+		if(Objects.nonNull(snapshot)) {
+			KnownHostsSnapshot snap = open(snapshot, source);
+			if(Objects.nonNull(snap)) {
+				if(Log.isDebugEnabled()) {
+					Log.debug("Using known_hosts snapshot {} with {} entries", snapshot, snap.size());
+				}
+				return new KnownHostsIndex(snap);
+			}
+		}
+
+		KnownHostsIndex index = new KnownHostsIndex();
+		if(!source.exists()) {
+			return index;
+		}
+
+		BasicFileAttributes attrs = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+		ByteBuffer data = KnownHostsParser.parse(source, index::add, index::addInvalidLine);
+		index.sourceLength = data.limit();
+
+		if(Objects.nonNull(snapshot)) {
+			byte[] hash = digest(data);
+			List<KnownHostsEntry> entries = new ArrayList<>(index.getEntries());
+			List<String> invalid = new ArrayList<>(index.getInvalidLines());
+			WRITER.execute(() -> {
+				try {
+					write(snapshot, attrs.size(), attrs.lastModifiedTime().toMillis(), hash, entries, invalid);
+				} catch(IOException | RuntimeException e) {
+					Log.error("Could not write known_hosts snapshot " + snapshot, e);
+				}
+			});
+		}
+		return index;
+	}
+
+	/**
+	 * Rebuild the snapshot from the text file in the background, for example
+	 * after lines have been appended.
+	 */
+	public static void rebuild(File source, File snapshot) {
+		WRITER.execute(() -> {
+			if(Objects.nonNull(open(snapshot, source))) {
+				return;
+			}
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+				List<KnownHostsEntry> entries = new ArrayList<>();
+				List<String> invalid = new ArrayList<>();
+				ByteBuffer data = KnownHostsParser.parse(source, entries::add, invalid::add);
+				write(snapshot, attrs.size(), attrs.lastModifiedTime().toMillis(), digest(data), entries, invalid);
+			} catch(IOException | RuntimeException e) {
+				Log.error("Could not rebuild known_hosts snapshot " + snapshot, e);
+			}
+		});
+	}
+
+	static void write(File snapshot, long sourceSize, long sourceModified, byte[] sourceHash,
+			List<KnownHostsEntry> entries, List<String> invalidLines) throws IOException {
+
+		int count = entries.size();
+		List<Integer> authorities = new ArrayList<>();
+		List<Integer> patterns = new ArrayList<>();
+		List<int[]> names = new ArrayList<>();
+		List<int[]> keys = new ArrayList<>();
+		Map<String, List<int[]>> salts = new LinkedHashMap<>();
+		List<String> invalid = new ArrayList<>(invalidLines);
+
+		Strings strings = new Strings();
+		int[][] fields = new int[count][8];
+
+		for(int i = 0; i < count; i++) {
+			KnownHostsEntry entry = entries.get(i);
+			strings.add(entry.getNames(), fields[i], 0);
+			strings.add(entry.getKeyType(), fields[i], 2);
+			strings.add(entry.getKeyData(), fields[i], 4);
+			strings.add(entry.getComment(), fields[i], 6);
+
+			/* The same rules as KnownHostsIndex.add() */
+			if(entry.isCertAuthority()) {
+				authorities.add(i);
+				continue;
+			}
+			keys.add(new int[] { entry.getKeyData().hashCode(), i + 1 });
+			if(entry.isRevoked()) {
+				continue;
+			}
+			if(entry.isHashedEntry()) {
+				String[] parts = entry.getNames().substring(KnownHostsEntry.HASH_MAGIC.length()).split("\\|");
+				if(parts.length != 2) {
+					invalid.add(entry.toLine());
+					continue;
+				}
+				int[] hashed = new int[3];
+				hashed[0] = i;
+				strings.add(parts[1], hashed, 1);
+				salts.computeIfAbsent(parts[0], k -> new ArrayList<>(1)).add(hashed);
+				continue;
+			}
+			boolean hasPattern = false;
+			for(String name : entry.getHostPatterns()) {
+				if(KnownHostsEntry.isPattern(name)) {
+					hasPattern = true;
+				} else {
+					names.add(new int[] { name.toLowerCase().hashCode(), i + 1 });
+				}
+			}
+			if(hasPattern) {
+				patterns.add(i);
+			}
+		}
+
+		int[][] saltFields = new int[salts.size()][2];
+		int g = 0;
+		for(String salt : salts.keySet()) {
+			strings.add(salt, saltFields[g++], 0);
+		}
+		int[][] invalidFields = new int[invalid.size()][2];
+		for(int i = 0; i < invalid.size(); i++) {
+			strings.add(invalid.get(i), invalidFields[i], 0);
+		}
+
+		int hashedCount = 0;
+		for(List<int[]> group : salts.values()) {
+			hashedCount += group.size();
+		}
+
+		int namesCapacity = capacity(names.size());
+		int keysCapacity = capacity(keys.size());
+
+		int entriesOff = HEADER_SIZE;
+		int namesOff = entriesOff + count * ENTRY_SIZE;
+		int keysOff = namesOff + namesCapacity * SLOT_SIZE;
+		int saltsOff = keysOff + keysCapacity * SLOT_SIZE;
+		int hashedOff = saltsOff + salts.size() * SALT_SIZE;
+		int patternsOff = hashedOff + hashedCount * HASHED_SIZE;
+		int authoritiesOff = patternsOff + patterns.size() * 4;
+		int invalidOff = authoritiesOff + authorities.size() * 4;
+		int stringsOff = invalidOff + invalid.size() * 8;
+
+		ByteBuffer out = ByteBuffer.allocate(stringsOff + strings.size());
+		out.putInt(0, MAGIC);
+		out.putInt(4, VERSION);
+		out.putLong(8, sourceSize);
+		out.putLong(16, sourceModified);
+		out.put(24, sourceHash);
+		out.putInt(56, count);
+		out.putInt(60, entriesOff);
+		out.putInt(64, namesOff);
+		out.putInt(68, namesCapacity);
+		out.putInt(72, keysOff);
+		out.putInt(76, keysCapacity);
+		out.putInt(80, saltsOff);
+		out.putInt(84, salts.size());
+		out.putInt(88, hashedOff);
+		out.putInt(92, patternsOff);
+		out.putInt(96, patterns.size());
+		out.putInt(100, authoritiesOff);
+		out.putInt(104, authorities.size());
+		out.putInt(108, invalidOff);
+		out.putInt(112, invalid.size());
+
+		for(int i = 0; i < count; i++) {
+			int off = entriesOff + i * ENTRY_SIZE;
+			out.putInt(off, entries.get(i).getMarker().ordinal());
+			for(int f = 0; f < 8; f += 2) {
+				out.putInt(off + 4 + f * 4, stringsOff + fields[i][f]);
+				out.putInt(off + 8 + f * 4, fields[i][f + 1]);
+			}
+		}
+
+		writeTable(out, namesOff, namesCapacity, names);
+		writeTable(out, keysOff, keysCapacity, keys);
+
+		g = 0;
+		int h = 0;
+		for(List<int[]> group : salts.values()) {
+			int off = saltsOff + g * SALT_SIZE;
+			out.putInt(off, stringsOff + saltFields[g][0]);
+			out.putInt(off + 4, saltFields[g][1]);
+			out.putInt(off + 8, h);
+			out.putInt(off + 12, group.size());
+			for(int[] hashed : group) {
+				int hoff = hashedOff + h * HASHED_SIZE;
+				out.putInt(hoff, hashed[0]);
+				out.putInt(hoff + 4, stringsOff + hashed[1]);
+				out.putInt(hoff + 8, hashed[2]);
+				h++;
+			}
+			g++;
+		}
+
+		for(int i = 0; i < patterns.size(); i++) {
+			out.putInt(patternsOff + i * 4, patterns.get(i));
+		}
+		for(int i = 0; i < authorities.size(); i++) {
+			out.putInt(authoritiesOff + i * 4, authorities.get(i));
+		}
+		for(int i = 0; i < invalid.size(); i++) {
+			out.putInt(invalidOff + i * 8, stringsOff + invalidFields[i][0]);
+			out.putInt(invalidOff + i * 8 + 4, invalidFields[i][1]);
+		}
+		out.put(stringsOff, strings.toByteArray());
+
+		File dir = snapshot.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		Path tmp = Files.createTempFile(dir.toPath(), snapshot.getName(), ".tmp");
+		try {
+			Files.write(tmp, out.array());
+			Files.move(tmp, snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		if(Log.isInfoEnabled()) {
+			Log.info("Wrote known_hosts snapshot with {} entries to {}", count, snapshot);
+		}
+	}
+
+	private static void writeTable(ByteBuffer out, int off, int capacity, List<int[]> items) {
+		for(int[] item : items) {
+			int slot = slot(item[0], capacity);
+			while(out.getInt(off + slot * SLOT_SIZE + 4) != 0) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			out.putInt(off + slot * SLOT_SIZE, item[0]);
+			out.putInt(off + slot * SLOT_SIZE + 4, item[1]);
+		}
+	}
+
+	/**
+	 * A power of two with at least one empty slot and a load of at most a half.
+	 */
+	private static int capacity(int items) {
+		int capacity = 2;
+		while(capacity < items * 2 + 1) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	static ByteBuffer map(Path path) throws IOException {
+		/* See KnownHostsParser.parse(File), a mapped file cannot be replaced on Windows */
+		if(SystemUtils.IS_OS_WINDOWS) {
+			return ByteBuffer.wrap(Files.readAllBytes(path));
+		}
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	static byte[] digest(ByteBuffer data) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST);
+			md.update(data.duplicate().clear());
+			return md.digest();
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The string area. Offsets are relative to its start.
+	 */
+	static class Strings {
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		void add(String value, int[] field, int index) {
+			byte[] data = value.getBytes(StandardCharsets.UTF_8);
+			field[index] = out.size();
+			field[index + 1] = data.length;
+			out.writeBytes(data);
+		}
+
+		int size() {
+			return out.size();
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+}
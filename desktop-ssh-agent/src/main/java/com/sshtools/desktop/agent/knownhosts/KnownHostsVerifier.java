@@ -0,0 +1,265 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sshtools.common.knownhosts.HostKeyVerification;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.publickey.OpenSshCertificate;
+import com.sshtools.common.publickey.SshKeyUtils;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.components.SshPublicKey;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsEntry.Marker;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsIndex.Status;
+
+/**
+ * A {@link HostKeyVerification} backed by the shared {@link KnownHostsWatcher}.
+ * Each verification reads the index that is current at the time, without
+ * locking. The callbacks mirror those of <code>KnownHostsKeyVerification</code>
+ * so existing prompts can be carried over.
+ */
+public class KnownHostsVerifier implements HostKeyVerification {
+
+	static final Pattern NON_STANDARD = Pattern.compile("\\[(.*)\\]:(\\d*)");
+
+	final KnownHostsWatcher knownHosts;
+	final Set<String> pinnedKeys;
+	boolean reportedInvalid;
+
+	public KnownHostsVerifier(KnownHostsWatcher knownHosts) {
+		this(knownHosts, null);
+	}
+
+	/**
+	 * @param pinnedKeys OpenSSH formatted keys that are trusted for this
+	 *            connection before known_hosts is consulted
+	 */
+	public KnownHostsVerifier(KnownHostsWatcher knownHosts, String[] pinnedKeys) {
+		this.knownHosts = knownHosts;
+		this.pinnedKeys = new HashSet<>();
+		if(Objects.nonNull(pinnedKeys)) {
+			for(String key : pinnedKeys) {
+				String[] parts = key.trim().split("\\s+");
+				if(parts.length >= 2) {
+					this.pinnedKeys.add(parts[1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether a key is pinned to the connection. A certificate never counts as
+	 * pinned, even if one was pinned before certificates were excluded, so it
+	 * is always checked for validity and revocation of its authority.
+	 */
+	public boolean isPinned(SshPublicKey pk) throws SshException {
+		return !pinnedKeys.isEmpty() && !(pk instanceof OpenSshCertificate) 
+				&& pinnedKeys.contains(KnownHostsIndex.encode(pk));
+	}
+
+	public KnownHostsIndex getIndex() {
+		return knownHosts.getIndex();
+	}
+
+	@Override
+	public boolean verifyHost(String host, SshPublicKey pk) throws SshException {
+		return verifyHost(host, pk, true);
+	}
+
+	protected boolean verifyHost(String host, SshPublicKey pk, boolean allowChange) throws SshException {
+
+		KnownHostsIndex index = knownHosts.getIndex();
+
+		/* A key pinned to the connection is trusted unless it has since been revoked */
+		if(isPinned(pk) && !index.isRevoked(pk)) {
+			return true;
+		}
+
+		if(!reportedInvalid) {
+			reportedInvalid = true;
+			for(String line : index.getInvalidLines()) {
+				onInvalidHostEntry(line);
+			}
+		}
+
+		if(pk instanceof OpenSshCertificate) {
+			OpenSshCertificate cert = (OpenSshCertificate) pk;
+			if(index.isRevoked(cert.getSignedBy()) || index.isRevoked(cert.getSignedKey())) {
+				onRevokedKey(host, pk);
+				return false;
+			}
+			if(verifyCertificate(host, cert)) {
+				return true;
+			}
+		}
+
+		Status status = index.verify(host, pk);
+		switch(status) {
+		case VERIFIED:
+			return true;
+		case REVOKED:
+			onRevokedKey(host, pk);
+			return false;
+		case MISMATCH:
+			if(allowChange) {
+				List<SshPublicKey> allowed = new ArrayList<>();
+				for(KnownHostsEntry entry : index.lookup(host)) {
+					try {
+						allowed.add(entry.getKey());
+					} catch(IOException e) {
+						onInvalidHostEntry(entry.toLine());
+					}
+				}
+				onHostKeyMismatch(host, allowed, pk);
+				return verifyHost(host, pk, false);
+			}
+			return false;
+		default:
+			if(allowChange) {
+				onUnknownHost(host, pk);
+				return verifyHost(host, pk, false);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Accept a host certificate if it is signed by a <code>@cert-authority</code>
+	 * that applies to the host, names the host as a principal and is valid now.
+	 * Authorities are looked up by the signing key, and certificates that have
+	 * been verified are remembered until they expire or the index changes.
+	 */
+	protected boolean verifyCertificate(String host, OpenSshCertificate cert) throws SshException {
+
+		if(!cert.isHostCertificate()) {
+			return false;
+		}
+
+		KnownHostsIndex index = knownHosts.getIndex();
+		long now = System.currentTimeMillis();
+		String cacheKey = host + " " + KnownHostsIndex.encode(cert);
+
+		Long expires = index.getVerifiedCertificate(cacheKey);
+		if(Objects.nonNull(expires) && now < expires) {
+			return true;
+		}
+
+		for(KnownHostsEntry ca : index.getCertAuthorities(KnownHostsIndex.encode(cert.getSignedBy()))) {
+			if(!index.matches(ca, host)) {
+				continue;
+			}
+			long validBefore = getValidBefore(cert);
+			if(now < cert.getValidAfter().getTime() || now >= validBefore) {
+				return false;
+			}
+			if(!cert.getPrincipals().isEmpty() && !cert.getPrincipals().contains(getHostName(host))) {
+				return false;
+			}
+			cert.verify();
+			index.putVerifiedCertificate(cacheKey, validBefore);
+			if(Log.isInfoEnabled()) {
+				Log.info("Verified host certificate {} serial {} for {}", cert.getKeyId(), cert.getSerial(), host);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Certificates valid "forever" carry an unsigned maximum value, which
+	 * does not survive conversion to a {@link Date}.
+	 */
+	static long getValidBefore(OpenSshCertificate cert) {
+		long validBefore = cert.getValidBefore().getTime();
+		return validBefore < 0 ? Long.MAX_VALUE : validBefore;
+	}
+
+	/**
+	 * If any <code>@cert-authority</code> applies to the host, so the client
+	 * should ask for a certificate rather than a plain host key.
+	 */
+	public boolean hasCertAuthority(String host) {
+		KnownHostsIndex index = knownHosts.getIndex();
+		for(KnownHostsEntry ca : index.getCertAuthorities()) {
+			if(index.matches(ca, host)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void addEntry(SshPublicKey key, String comment, String... names) throws SshException {
+		try {
+			KnownHostsEntry entry = new KnownHostsEntry(Marker.NONE, String.join(",", names),
+					key.getEncodingAlgorithm(), KnownHostsIndex.encode(key), comment);
+			knownHosts.append(entry);
+			if(Log.isInfoEnabled()) {
+				Log.info("Added {} key {} for {}", key.getAlgorithm(), SshKeyUtils.getFingerprint(key), entry.getNames());
+			}
+		} catch(IOException e) {
+			throw new SshException(e);
+		}
+	}
+
+	/**
+	 * The name a host is recorded under in known_hosts, which includes the
+	 * port when it is not the default.
+	 */
+	public static String formatHost(String hostname, int port) {
+		return port == 22 ? hostname : String.format("[%s]:%d", hostname, port);
+	}
+
+	/**
+	 * The host name of a known_hosts name, without any port.
+	 */
+	public static String getHostName(String host) {
+		Matcher m = NON_STANDARD.matcher(host);
+		return m.matches() ? m.group(1) : host;
+	}
+
+	/**
+	 * The port of a known_hosts name, which is 22 unless it is given in the
+	 * form <code>[host]:port</code>.
+	 */
+	public static int getPort(String host) {
+		Matcher m = NON_STANDARD.matcher(host);
+		return m.matches() && !m.group(2).isEmpty() ? Integer.parseInt(m.group(2)) : 22;
+	}
+
+	protected void onInvalidHostEntry(String entry) throws SshException {
+	}
+
+	protected void onHostKeyMismatch(String host, List<SshPublicKey> allowedHostKey, SshPublicKey actualHostKey) throws SshException {
+	}
+
+	protected void onUnknownHost(String host, SshPublicKey key) throws SshException {
+	}
+
+	protected void onRevokedKey(String host, SshPublicKey key) {
+	}
+}
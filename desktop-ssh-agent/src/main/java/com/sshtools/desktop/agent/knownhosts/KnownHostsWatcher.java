@@ -0,0 +1,533 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import com.sshtools.common.logger.Log;
+
+/**
+ * Keeps a {@link KnownHostsIndex} in step with a known_hosts file.
+ * <p>
+ * The parent folder is watched with a {@link WatchService} and bursts of
+ * events are collapsed into a single refresh. OpenSSH only ever appends to
+ * the file when it learns a new host, so if the file has grown and the bytes
+ * just before the last read position are unchanged, only the new lines are
+ * parsed and added to the index. A few blocks spread over the part already
+ * read are also compared, so most edits above the end, e.g. by
+ * <code>ssh-keygen -R</code>, are not mistaken for an append, without
+ * reading the whole file again. Any other change, such as truncation, a
+ * rewrite to the same size or the file being replaced, causes a full reload.
+ * <p>
+ * One watcher is shared by the agent and every terminal session. The
+ * current index is never modified once published; changes publish a new
+ * one, so lookups only need to read {@link #getIndex()}. New host keys are
+ * added with {@link #append(KnownHostsEntry)}, which appends a single line
+ * while holding a lock on the file instead of rewriting it.
+ * <p>
+ * Appends leave the {@link KnownHostsSnapshot} stale. Rebuilding it means
+ * hashing, parsing and writing the whole file, so it is deferred until no
+ * further changes have been seen for a while, or the watcher is stopped.
+ */
+public class KnownHostsWatcher {
+
+	public interface Listener {
+		/**
+		 * The file was read in full and replaces the previous index.
+		 */
+		void reloaded(KnownHostsIndex index);
+
+		/**
+		 * Entries were appended to the file and have been added to the index.
+		 */
+		void appended(KnownHostsIndex index, List<KnownHostsEntry> entries);
+	}
+
+	static final long DEBOUNCE = 250L;
+	static final long RETRY_DELAY = 5000L;
+	static final int CHECK_LENGTH = 64;
+	static final int SAMPLES = 4;
+	static final long SNAPSHOT_IDLE = TimeUnit.SECONDS.toMillis(30);
+
+	final File file;
+	final File snapshot;
+	final Listener listener;
+
+	volatile KnownHostsIndex index = new KnownHostsIndex();
+	long offset;
+	byte[] check = new byte[0];
+	Object fileKey;
+	FileTime lastModified;
+	/* Blocks sampled from the bytes before offset */
+	byte[] sampled = new byte[0];
+	boolean partial;
+	/* Entries appended since the snapshot was last built */
+	int unsnapshotted;
+
+	Thread thread;
+	WatchService watchService;
+	volatile boolean running;
+
+	public KnownHostsWatcher(File file, Listener listener) {
+		this(file, null, listener);
+	}
+
+	/**
+	 * @param snapshot where to keep a {@link KnownHostsSnapshot} of the file, or
+	 *            <code>null</code> to always parse the text
+	 */
+	public KnownHostsWatcher(File file, File snapshot, Listener listener) {
+		this.file = file;
+		this.snapshot = snapshot;
+		this.listener = listener;
+	}
+
+	public KnownHostsIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * A copy of the current entries.
+	 */
+	public List<KnownHostsEntry> getEntries() {
+		return new ArrayList<>(index.getEntries());
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized void start() {
+		if(running) {
+			return;
+		}
+		running = true;
+		reload();
+		thread = new Thread(this::watch, "KnownHostsWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if(Objects.nonNull(watchService)) {
+			try {
+				watchService.close();
+			} catch(IOException e) {
+			}
+		}
+		if(Objects.nonNull(thread)) {
+			thread.interrupt();
+			thread = null;
+		}
+		rebuildSnapshot();
+	}
+
+	/**
+	 * Rebuild the snapshot in the background if entries have been appended
+	 * since it was built.
+	 */
+	synchronized void rebuildSnapshot() {
+		if(Objects.nonNull(snapshot) && unsnapshotted > 0) {
+			unsnapshotted = 0;
+			KnownHostsSnapshot.rebuild(file, snapshot);
+		}
+	}
+
+	/**
+	 * Bring the index up to date with the file, reading only appended lines
+	 * where possible.
+	 */
+	public void refresh() {
+
+		List<KnownHostsEntry> added;
+		KnownHostsIndex current;
+
+		synchronized(this) {
+			try {
+				if(!file.exists()) {
+					if(offset > 0 || index.size() > 0) {
+						reload();
+					}
+					return;
+				}
+
+				BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				boolean modified = !Objects.equals(lastModified, attrs.lastModifiedTime());
+				if(partial || attrs.size() < offset || !Objects.equals(fileKey, attrs.fileKey())) {
+					reload();
+					return;
+				}
+				if(attrs.size() == offset) {
+					/* Rewritten in place to the same size */
+					if(modified) {
+						reload();
+					}
+					return;
+				}
+
+				added = new ArrayList<>();
+				try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					if(!Arrays.equals(sampled, sample(channel, offset))) {
+						reload();
+						return;
+					}
+					lastModified = attrs.lastModifiedTime();
+					long start = offset - check.length;
+					ByteBuffer buf = ByteBuffer.allocate((int) (channel.size() - start));
+					while(buf.hasRemaining() && channel.read(buf, start + buf.position()) > -1) {
+					}
+					byte[] data = Arrays.copyOf(buf.array(), buf.position());
+
+					if(!Arrays.equals(check, 0, check.length, data, 0, Math.min(check.length, data.length))) {
+						reload();
+						return;
+					}
+
+					int end = lastNewline(data);
+					if(end < check.length) {
+						/* Wait for the rest of the line */
+						return;
+					}
+
+					List<String> invalid = new ArrayList<>();
+					KnownHostsParser.parse(ByteBuffer.wrap(data, check.length, end - check.length),
+							added::add, invalid::add);
+					index = index.with(added, invalid);
+					unsnapshotted += added.size();
+
+					offset = start + end;
+					sampled = sample(channel, offset);
+					check = Arrays.copyOfRange(data, Math.max(0, end - CHECK_LENGTH), end);
+				}
+			} catch(IOException e) {
+				Log.error("Could not read known_hosts changes, reloading", e);
+				reload();
+				return;
+			}
+			current = index;
+		}
+
+		if(Log.isInfoEnabled()) {
+			Log.info("Read {} appended known_hosts entries", added.size());
+		}
+		if(!added.isEmpty()) {
+			listener.appended(current, added);
+		}
+	}
+
+	/**
+	 * Re-read the whole file.
+	 */
+	public void reload() {
+
+		KnownHostsIndex current;
+		synchronized(this) {
+			KnownHostsIndex newIndex = new KnownHostsIndex();
+			long newOffset = 0;
+			byte[] newCheck = new byte[0];
+			Object newFileKey = null;
+			FileTime newLastModified = null;
+			byte[] newSampled = new byte[0];
+			boolean newPartial = false;
+
+			if(file.exists()) {
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+					newFileKey = attrs.fileKey();
+					newLastModified = attrs.lastModifiedTime();
+					newIndex = KnownHostsSnapshot.load(file, snapshot);
+					long length = newIndex.getSourceLength();
+					newOffset = length;
+					newCheck = new byte[(int) Math.min(length, CHECK_LENGTH)];
+					try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+						newSampled = sample(channel, length);
+						ByteBuffer buf = ByteBuffer.wrap(newCheck);
+						while(buf.hasRemaining() && channel.read(buf, length - newCheck.length + buf.position()) > -1) {
+						}
+					}
+					/* A final line without a newline may still be being written */
+					newPartial = length > 0 && newCheck[newCheck.length - 1] != '\n';
+				} catch(IOException e) {
+					Log.error("Could not read " + file, e);
+				}
+			}
+
+			index = newIndex;
+			offset = newOffset;
+			check = newCheck;
+			fileKey = newFileKey;
+			lastModified = newLastModified;
+			sampled = newSampled;
+			partial = newPartial;
+			/* Loading rebuilds a stale snapshot itself */
+			unsnapshotted = 0;
+			current = index;
+		}
+
+		if(Log.isInfoEnabled()) {
+			Log.info("Loaded {} known_hosts entries", current.size());
+		}
+		listener.reloaded(current);
+	}
+
+	/**
+	 * Append an entry to the file and publish an index that includes it. The
+	 * line is written with a single append while an exclusive lock is held,
+	 * so concurrent additions from this or another agent process cannot
+	 * interleave or overwrite each other. Locks are mandatory on Windows, so
+	 * the file is only read through the locked channel.
+	 */
+	public void append(KnownHostsEntry entry) throws IOException {
+		synchronized(this) {
+			file.getParentFile().mkdirs();
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock();
+				try {
+					String line = entry.toLine() + System.lineSeparator();
+					if(!endsWithNewline(channel)) {
+						line = System.lineSeparator() + line;
+					}
+					ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+					long position = channel.size();
+					while(buf.hasRemaining()) {
+						position += channel.write(buf, position);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		}
+		/* Picks up this line, and anything else appended meanwhile */
+		refresh();
+	}
+
+	/**
+	 * Rewrite the file, passing each entry through <code>edit</code>. Returning
+	 * <code>null</code> removes the entry. Comments, blank lines and lines that
+	 * could not be parsed are kept as they are.
+	 */
+	public void update(Function<KnownHostsEntry, KnownHostsEntry> edit) throws IOException {
+		synchronized(this) {
+			StringBuilder out = new StringBuilder();
+			if(file.exists()) {
+				for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+					KnownHostsEntry entry;
+					try {
+						entry = KnownHostsParser.parseLine(line);
+					} catch(IOException | RuntimeException e) {
+						entry = null;
+					}
+					if(Objects.isNull(entry)) {
+						out.append(line);
+						out.append(System.lineSeparator());
+						continue;
+					}
+					entry = edit.apply(entry);
+					if(Objects.nonNull(entry)) {
+						out.append(entry.toLine());
+						out.append(System.lineSeparator());
+					}
+				}
+			}
+
+			replace(out.toString());
+		}
+		reload();
+	}
+
+	/**
+	 * Atomically replace the file's content. The caller must hold this
+	 * watcher's lock and reload afterwards.
+	 */
+	void replace(String content) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Atomically replace the file with <code>tmp</code>, but only if it still
+	 * has the size, modification time and identity it had when it was read.
+	 * The check is made holding the same file lock as
+	 * {@link #append(KnownHostsEntry)}. The caller must hold this watcher's
+	 * lock and reload afterwards.
+	 *
+	 * @return <code>false</code> if the file has changed and was left alone
+	 */
+	boolean replace(Path tmp, BasicFileAttributes read) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			FileLock lock = channel.lock();
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				if(attrs.size() != read.size() || !attrs.lastModifiedTime().equals(read.lastModifiedTime())
+						|| !Objects.equals(attrs.fileKey(), read.fileKey())) {
+					return false;
+				}
+				if(!SystemUtils.IS_OS_WINDOWS) {
+					Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					return true;
+				}
+			} finally {
+				lock.release();
+			}
+		}
+		/* An open file cannot be replaced on Windows, so it is moved just after the check */
+		Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	private void watch() {
+		Path folder = file.getParentFile().toPath();
+		while(running) {
+			try {
+				if(!Files.isDirectory(folder)) {
+					Thread.sleep(RETRY_DELAY);
+					continue;
+				}
+
+				WatchService ws = FileSystems.getDefault().newWatchService();
+				synchronized(this) {
+					if(!running) {
+						ws.close();
+						return;
+					}
+					watchService = ws;
+				}
+
+				try {
+					folder.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+					/* Catch anything that happened before the folder was watched */
+					refresh();
+
+					while(running) {
+						WatchKey key = ws.poll(SNAPSHOT_IDLE, TimeUnit.MILLISECONDS);
+						if(Objects.isNull(key)) {
+							rebuildSnapshot();
+							continue;
+						}
+						boolean changed = drain(key);
+						/* Collapse a burst of events into one refresh */
+						while((key = ws.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+							changed |= drain(key);
+						}
+						if(changed) {
+							refresh();
+						}
+						if(!Files.isDirectory(folder)) {
+							reload();
+							break;
+						}
+					}
+				} finally {
+					ws.close();
+				}
+			} catch(InterruptedException | ClosedWatchServiceException e) {
+				return;
+			} catch(IOException e) {
+				Log.error("Could not watch " + folder, e);
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch(InterruptedException e1) {
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean drain(WatchKey key) {
+		boolean changed = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				changed = true;
+			} else if(event.context() instanceof Path
+					&& ((Path) event.context()).getFileName().toString().equals(file.getName())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * {@link #SAMPLES} blocks of up to {@link #CHECK_LENGTH} bytes spread
+	 * evenly over the first <code>length</code> bytes.
+	 */
+	static byte[] sample(FileChannel channel, long length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, (long) SAMPLES * CHECK_LENGTH));
+		for(int i = 0; i < SAMPLES && buf.hasRemaining(); i++) {
+			long position = Math.max(length * i / SAMPLES, (long) i * CHECK_LENGTH);
+			int block = (int) Math.min(Math.min(CHECK_LENGTH, buf.remaining()), length - position);
+			buf.limit(buf.position() + block);
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, position + block - buf.remaining()) < 0) {
+					throw new IOException("Unexpected end of " + length + " bytes");
+				}
+			}
+			buf.limit(buf.capacity());
+		}
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+
+	static boolean endsWithNewline(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if(size == 0) {
+			return true;
+		}
+		ByteBuffer last = ByteBuffer.allocate(1);
+		return channel.read(last, size - 1) == 1 && last.get(0) == '\n';
+	}
+
+	private static int lastNewline(byte[] data) {
+		for(int i = data.length - 1; i >= 0; i--) {
+			if(data[i] == '\n') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+}
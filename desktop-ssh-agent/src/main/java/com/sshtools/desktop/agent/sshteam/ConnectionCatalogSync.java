@@ -0,0 +1,133 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.sshteam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import com.sshtools.common.logger.Log;
+import com.sshtools.desktop.agent.ConnectionStore;
+import com.sshtools.desktop.agent.JsonConnection;
+import com.sshtools.desktop.agent.JsonConnectionChanges;
+
+/**
+ * Keeps a local copy of the connections a gateway shares with the user. Only
+ * the changes since the last revision seen are fetched, and they are applied
+ * to a {@link ConnectionStore} of their own, so the catalog is available
+ * offline and indexed like local connections.
+ * <p>
+ * The revision is only saved once the changes have been written, so if the
+ * agent stops in between, the same changes are fetched and applied again,
+ * which leaves the same result.
+ */
+public class ConnectionCatalogSync {
+
+	public interface Source {
+		/**
+		 * The changes since a revision, or the complete catalog if the
+		 * revision is 0 or no longer known to the source.
+		 */
+		JsonConnectionChanges getChanges(long revision) throws Exception;
+	}
+
+	final ConnectionStore store;
+	final File revisionFile;
+	final Source source;
+
+	long revision;
+
+	public ConnectionCatalogSync(ConnectionStore store, File revisionFile, Source source) {
+		this.store = store;
+		this.revisionFile = revisionFile;
+		this.source = source;
+		loadRevision();
+	}
+
+	public synchronized long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Fetch and apply any changes. Returns true if the catalog changed.
+	 */
+	public synchronized boolean sync() throws Exception {
+
+		long started = System.currentTimeMillis();
+		JsonConnectionChanges changes = source.getChanges(revision);
+
+		List<JsonConnection> changed = Objects.isNull(changes.getResources()) ? new ArrayList<>() 
+				: Arrays.asList(changes.getResources());
+		List<String> deleted = Objects.isNull(changes.getDeleted()) ? new ArrayList<>() 
+				: Arrays.asList(changes.getDeleted());
+
+		if(!changes.isComplete() && changed.isEmpty() && deleted.isEmpty()) {
+			saveRevision(changes.getRevision());
+			return false;
+		}
+
+		store.applyChanges(changed, deleted, changes.isComplete());
+		store.flush();
+		saveRevision(changes.getRevision());
+
+		if(Log.isInfoEnabled()) {
+			Log.info("Synchronized connection catalog to revision {}, {} {} and {} deleted in {}ms", 
+					revision, changed.size(), changes.isComplete() ? "in total" : "changed", 
+					deleted.size(), System.currentTimeMillis() - started);
+		}
+		return true;
+	}
+
+	/**
+	 * Forget the catalog, e.g. when the gateway account changes.
+	 */
+	public synchronized void reset() throws IOException {
+		store.applyChanges(new ArrayList<>(), new ArrayList<>(), true);
+		store.flush();
+		saveRevision(0L);
+	}
+
+	private void loadRevision() {
+		if(revisionFile.exists()) {
+			try {
+				revision = Long.parseLong(new String(Files.readAllBytes(revisionFile.toPath()), StandardCharsets.UTF_8).trim());
+			} catch(IOException | NumberFormatException e) {
+				Log.error("Could not read connection catalog revision, fetching the complete catalog", e);
+				revision = 0L;
+			}
+		}
+	}
+
+	private void saveRevision(long revision) throws IOException {
+		if(revision == this.revision && revisionFile.exists()) {
+			return;
+		}
+		revisionFile.getParentFile().mkdirs();
+		File tmp = new File(revisionFile.getParentFile(), revisionFile.getName() + ".tmp");
+		Files.write(tmp.toPath(), String.valueOf(revision).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), revisionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.revision = revision;
+	}
+}
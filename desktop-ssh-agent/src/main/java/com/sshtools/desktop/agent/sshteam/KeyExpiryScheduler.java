@@ -0,0 +1,189 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.sshteam;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.publickey.SshKeyUtils;
+import com.sshtools.common.ssh.components.SshPublicKey;
+
+/**
+ * Keeps the warning and expiry instants of every team key in a priority queue
+ * and schedules a single wake-up for whichever is next. When a deadline is
+ * reached the cached policy is re-checked and the due keys are handed to the
+ * rotation callback.
+ */
+public class KeyExpiryScheduler {
+
+	public static final Duration WARNING_PERIOD = Duration.ofDays(7);
+	public static final Duration POLICY_TTL = Duration.ofHours(1);
+
+	/**
+	 * The executor's delay does not advance while the machine is suspended, so
+	 * long waits are split up to notice deadlines that passed during sleep.
+	 */
+	static final long MAXIMUM_SLEEP = TimeUnit.HOURS.toMillis(1);
+	static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+	public interface PolicySource {
+		SshTeamPolicy getPolicy() throws Exception;
+	}
+
+	final ScheduledExecutorService executor;
+	final PolicySource source;
+	final Consumer<Collection<SshPublicKey>> onRotationDue;
+	final PriorityQueue<Deadline> deadlines = new PriorityQueue<>(Comparator.comparingLong(Deadline::getInstant));
+	final Object policyLock = new Object();
+
+	ScheduledFuture<?> wakeup;
+	SshTeamPolicy policy;
+	long policyFetched;
+
+	public KeyExpiryScheduler(ScheduledExecutorService executor, PolicySource source,
+			Consumer<Collection<SshPublicKey>> onRotationDue) {
+		this.executor = executor;
+		this.source = source;
+		this.onRotationDue = onRotationDue;
+	}
+
+	/**
+	 * Replace the schedule with the given expiry times (epoch milliseconds).
+	 * Keys already inside their warning period are due immediately.
+	 */
+	public synchronized void schedule(Map<SshPublicKey, Long> expiries) {
+
+		deadlines.clear();
+		long now = System.currentTimeMillis();
+
+		for(Map.Entry<SshPublicKey, Long> entry : expiries.entrySet()) {
+			long expires = entry.getValue();
+			long warn = expires - WARNING_PERIOD.toMillis();
+			deadlines.add(new Deadline(Math.max(now, warn), entry.getKey()));
+			if(expires > now) {
+				deadlines.add(new Deadline(expires, entry.getKey()));
+			}
+		}
+
+		if(Log.isInfoEnabled()) {
+			Deadline next = deadlines.peek();
+			Log.info("Scheduled {} key expiry deadlines, next {}", deadlines.size(),
+					Objects.isNull(next) ? "none" : new Date(next.getInstant()));
+		}
+
+		reschedule();
+	}
+
+	public synchronized void cancel() {
+		deadlines.clear();
+		reschedule();
+	}
+
+	/**
+	 * Get the ssh.team policy, from the cache unless it is older than
+	 * {@link #POLICY_TTL} or a refresh is requested.
+	 */
+	public SshTeamPolicy getPolicy(boolean refresh) throws Exception {
+		synchronized(policyLock) {
+			if(refresh || Objects.isNull(policy)
+					|| System.currentTimeMillis() - policyFetched > POLICY_TTL.toMillis()) {
+				policy = source.getPolicy();
+				policyFetched = System.currentTimeMillis();
+			}
+			return policy;
+		}
+	}
+
+	private synchronized void reschedule() {
+		if(Objects.nonNull(wakeup)) {
+			wakeup.cancel(false);
+			wakeup = null;
+		}
+		Deadline next = deadlines.peek();
+		if(Objects.nonNull(next)) {
+			long delay = Math.min(MAXIMUM_SLEEP, Math.max(0L, next.getInstant() - System.currentTimeMillis()));
+			wakeup = executor.schedule(this::fire, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void fire() {
+
+		Set<SshPublicKey> due = new LinkedHashSet<>();
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			while(!deadlines.isEmpty() && deadlines.peek().getInstant() <= now) {
+				due.add(deadlines.poll().getKey());
+			}
+		}
+
+		if(!due.isEmpty()) {
+			try {
+				if(getPolicy(false).isEnforcePolicy()) {
+					if(Log.isInfoEnabled()) {
+						for(SshPublicKey key : due) {
+							Log.info("Key {} is due for rotation", SshKeyUtils.getFingerprint(key));
+						}
+					}
+					onRotationDue.accept(due);
+				}
+			} catch(Throwable e) {
+				Log.error("Could not check key rotation policy, will try again later", e);
+				synchronized(this) {
+					long retry = System.currentTimeMillis() + RETRY_DELAY;
+					for(SshPublicKey key : due) {
+						deadlines.add(new Deadline(retry, key));
+					}
+				}
+			}
+		}
+
+		reschedule();
+	}
+
+	static class Deadline {
+
+		final long instant;
+		final SshPublicKey key;
+
+		Deadline(long instant, SshPublicKey key) {
+			this.instant = instant;
+			this.key = key;
+		}
+
+		long getInstant() {
+			return instant;
+		}
+
+		SshPublicKey getKey() {
+			return key;
+		}
+	}
+}
@@ -0,0 +1,486 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.sshteam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sshtools.agent.KeyStore;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.publickey.SshKeyPairGenerator;
+import com.sshtools.common.publickey.SshKeyUtils;
+import com.sshtools.common.ssh.components.SshKeyPair;
+import com.sshtools.common.ssh.components.SshPublicKey;
+import com.sshtools.common.util.IOUtils;
+import com.sshtools.desktop.agent.ExtendedKeyInfo;
+import com.sshtools.desktop.agent.Settings;
+import com.sshtools.desktop.agent.sshteam.KeySyncOutbox.Operation;
+
+/**
+ * Rotates a set of keys as a single unit. Replacement keys are generated in
+ * parallel and staged next to the originals, all additions are sent to
+ * ssh.team concurrently over the shared connection, and only when every
+ * addition has succeeded are the key files replaced and the old keys removed.
+ * Each step is recorded in a journal so an interrupted rotation can be rolled
+ * back or completed on the next start.
+ */
+public class KeyRotationEngine {
+
+	public enum State {
+		STAGED, ADDED, COMMITTED
+	}
+
+	static final String STAGED_SUFFIX = ".rotating";
+	static final String BACKUP_SUFFIX = ".bak";
+
+	final File journalFile;
+	final KeyStore keystore;
+	final Supplier<SshPublicKey> authorizationKey;
+	final Function<File, String> passphrases;
+	final KeySyncOutbox outbox;
+	final ObjectMapper mapper = new ObjectMapper();
+
+	public KeyRotationEngine(File journalFile, KeyStore keystore, Supplier<SshPublicKey> authorizationKey,
+			Function<File, String> passphrases, KeySyncOutbox outbox) {
+		this.journalFile = journalFile;
+		this.keystore = keystore;
+		this.authorizationKey = authorizationKey;
+		this.passphrases = passphrases;
+		this.outbox = outbox;
+	}
+
+	public synchronized List<RotatedKey> rotate(Collection<SshPublicKey> keys) throws IOException {
+
+		if(journalFile.exists()) {
+			recover();
+		}
+
+		Journal journal = new Journal();
+		journal.setId(UUID.randomUUID().toString());
+		journal.setStarted(System.currentTimeMillis());
+
+		List<SshKeyPair> pairs = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(keys.size(), Runtime.getRuntime().availableProcessors())));
+
+		try {
+			List<CompletableFuture<SshKeyPair>> generated = new ArrayList<>();
+			for(SshPublicKey key : keys) {
+				ExtendedKeyInfo info = (ExtendedKeyInfo) keystore.getKeyConstraints(key);
+				if(Objects.isNull(info) || Objects.isNull(info.getFile())) {
+					throw new IOException(String.format("Key %s has no key file to rotate", SshKeyUtils.getFingerprint(key)));
+				}
+				Entry entry = new Entry();
+				entry.setFile(info.getFile().getAbsolutePath());
+				entry.setName(info.getName());
+				entry.setOldKey(SshKeyUtils.getOpenSSHFormattedKey(key));
+				/* Unique within the batch, and kept in the journal so a replay uses the same name */
+				entry.setNewName(journal.getStarted() + "-" + (journal.getEntries().size() + 1));
+				journal.getEntries().add(entry);
+
+				generated.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return SshKeyPairGenerator.generateKeyPair(key.getAlgorithm(), key.getBitLength());
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}, executor));
+			}
+
+			for(CompletableFuture<SshKeyPair> f : generated) {
+				pairs.add(join(f));
+			}
+
+			/* Stage the new key files, prompting for passphrases one at a time */
+			try {
+				for(int i = 0; i < pairs.size(); i++) {
+					Entry entry = journal.getEntries().get(i);
+					entry.setNewKey(SshKeyUtils.getOpenSSHFormattedKey(pairs.get(i).getPublicKey()));
+					File file = new File(entry.getFile());
+					String passphrase = passphrases.apply(file);
+					if(Objects.isNull(passphrase)) {
+						throw new IOException(String.format("No passphrase was provided for %s", file.getName()));
+					}
+					File staged = stagedFile(file);
+					SshKeyUtils.savePrivateKey(pairs.get(i), passphrase, "", staged);
+					restrictPermissions(staged);
+				}
+			} catch(IOException e) {
+				rollback(journal);
+				throw e;
+			}
+
+			journal.setState(State.STAGED);
+			save(journal);
+
+			SshPublicKey authorization = authorizationKey.get();
+			List<CompletableFuture<Void>> additions = new ArrayList<>();
+			for(int i = 0; i < pairs.size(); i++) {
+				Entry entry = journal.getEntries().get(i);
+				SshPublicKey newKey = pairs.get(i).getPublicKey();
+				String idempotencyKey = journal.getId() + "-" + i + "-add";
+				additions.add(CompletableFuture.runAsync(() -> {
+					try {
+						SshTeamHelper.addKey(Settings.getInstance().getSshteamUsername(),
+								Settings.getInstance().getSshteamDomain(),
+								Settings.getInstance().getSshteamPort(),
+								authorization,
+								keystore,
+								entry.getNewName(),
+								newKey,
+								idempotencyKey);
+						entry.setAdded(true);
+						save(journal);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}, executor));
+			}
+
+			IOException failure = null;
+			for(CompletableFuture<Void> f : additions) {
+				try {
+					join(f);
+				} catch(IOException e) {
+					failure = e;
+				}
+			}
+
+			if(Objects.nonNull(failure)) {
+				save(journal);
+				rollback(journal);
+				throw new IOException("The replacement keys could not be added to ssh.team, the rotation has been rolled back. " + failure.getMessage(), failure);
+			}
+
+			journal.setState(State.ADDED);
+			save(journal);
+
+			try {
+				for(Entry entry : journal.getEntries()) {
+					File file = new File(entry.getFile());
+					Files.copy(file.toPath(), backupFile(file).toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+					Files.move(stagedFile(file).toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					entry.setCommitted(true);
+					save(journal);
+				}
+			} catch(IOException e) {
+				rollback(journal);
+				throw new IOException("The key files could not be replaced, the rotation has been rolled back. " + e.getMessage(), e);
+			}
+
+			journal.setState(State.COMMITTED);
+			save(journal);
+
+			List<CompletableFuture<Void>> removals = new ArrayList<>();
+			for(int i = 0; i < journal.getEntries().size(); i++) {
+				Entry entry = journal.getEntries().get(i);
+				String idempotencyKey = journal.getId() + "-" + i + "-remove";
+				removals.add(CompletableFuture.runAsync(() -> {
+					try {
+						SshTeamHelper.removeKey(Settings.getInstance().getSshteamUsername(),
+								Settings.getInstance().getSshteamDomain(),
+								Settings.getInstance().getSshteamPort(),
+								authorization,
+								keystore,
+								entry.getName(),
+								SshKeyUtils.getPublicKey(entry.getOldKey()),
+								idempotencyKey);
+						entry.setRemoved(true);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}, executor));
+			}
+
+			for(CompletableFuture<Void> f : removals) {
+				try {
+					join(f);
+				} catch(IOException e) {
+					Log.error("Could not remove a rotated key from ssh.team, it will be retried", e);
+				}
+			}
+
+			complete(journal);
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		List<RotatedKey> results = new ArrayList<>();
+		for(int i = 0; i < pairs.size(); i++) {
+			Entry entry = journal.getEntries().get(i);
+			results.add(new RotatedKey(SshKeyUtils.getPublicKey(entry.getOldKey()), pairs.get(i), new File(entry.getFile())));
+		}
+		return results;
+	}
+
+	/**
+	 * Finish or undo a rotation that was interrupted, e.g. by the agent being
+	 * stopped. Anything that still needs ssh.team is handed to the outbox.
+	 */
+	public synchronized void recover() {
+
+		if(!journalFile.exists()) {
+			return;
+		}
+
+		try {
+			Journal journal = mapper.readValue(IOUtils.readUTF8StringFromFile(journalFile), Journal.class);
+			if(Log.isInfoEnabled()) {
+				Log.info("Recovering key rotation {} in state {}", journal.getId(), journal.getState());
+			}
+			if(journal.getState() == State.COMMITTED) {
+				complete(journal);
+			} else {
+				rollback(journal);
+			}
+		} catch (IOException e) {
+			Log.error("Could not recover key rotation journal", e);
+		}
+	}
+
+	private void rollback(Journal journal) {
+
+		for(Entry entry : journal.getEntries()) {
+			File file = new File(entry.getFile());
+			try {
+				if(entry.isCommitted()) {
+					Files.move(backupFile(file).toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+				Files.deleteIfExists(stagedFile(file).toPath());
+			} catch (IOException e) {
+				Log.error(String.format("Could not restore key file %s", file), e);
+			}
+
+			/*
+			 * Once staged, an addition may have reached ssh.team even if it was
+			 * not recorded, e.g. when the agent stopped before the journal was
+			 * saved. Removal is idempotent, so every new key is removed.
+			 */
+			if(entry.isAdded() || (Objects.nonNull(journal.getState()) && Objects.nonNull(entry.getNewKey()))) {
+				queueRemoval(entry.getNewName(), entry.getNewKey());
+			}
+		}
+
+		journalFile.delete();
+	}
+
+	private void complete(Journal journal) {
+
+		for(Entry entry : journal.getEntries()) {
+			File file = new File(entry.getFile());
+			try {
+				Files.deleteIfExists(backupFile(file).toPath());
+			} catch (IOException e) {
+				Log.error(String.format("Could not remove backup of key file %s", file), e);
+			}
+
+			if(!entry.isRemoved()) {
+				queueRemoval(entry.getName(), entry.getOldKey());
+			}
+		}
+
+		journalFile.delete();
+	}
+
+	private void queueRemoval(String name, String key) {
+		try {
+			outbox.submit(Operation.REMOVE, name, SshKeyUtils.getPublicKey(key));
+		} catch (IOException e) {
+			Log.error("Could not queue removal of a rotated key", e);
+		}
+	}
+
+	/**
+	 * Additions save the journal from the executor while {@link #rotate}
+	 * holds the engine's lock, so saves are serialized on the journal.
+	 */
+	private void save(Journal journal) throws IOException {
+		synchronized(journal) {
+			journalFile.getParentFile().mkdirs();
+			File tmp = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+			IOUtils.writeUTF8StringToFile(tmp, mapper.writeValueAsString(journal));
+			Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> f) throws IOException {
+		try {
+			return f.join();
+		} catch(CompletionException e) {
+			Throwable cause = Objects.isNull(e.getCause()) ? e : e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	private static void restrictPermissions(File file) {
+		try {
+			Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException | IOException e) {
+		}
+	}
+
+	static File stagedFile(File file) {
+		return new File(file.getParentFile(), file.getName() + STAGED_SUFFIX);
+	}
+
+	static File backupFile(File file) {
+		return new File(file.getParentFile(), file.getName() + BACKUP_SUFFIX);
+	}
+
+	public static class RotatedKey {
+
+		final SshPublicKey oldKey;
+		final SshKeyPair pair;
+		final File file;
+
+		RotatedKey(SshPublicKey oldKey, SshKeyPair pair, File file) {
+			this.oldKey = oldKey;
+			this.pair = pair;
+			this.file = file;
+		}
+
+		public SshPublicKey getOldKey() {
+			return oldKey;
+		}
+
+		public SshKeyPair getPair() {
+			return pair;
+		}
+
+		public File getFile() {
+			return file;
+		}
+	}
+
+	public static class Journal {
+
+		String id;
+		long started;
+		State state;
+		List<Entry> entries = new ArrayList<>();
+
+		public String getId() {
+			return id;
+		}
+		public void setId(String id) {
+			this.id = id;
+		}
+		public long getStarted() {
+			return started;
+		}
+		public void setStarted(long started) {
+			this.started = started;
+		}
+		public State getState() {
+			return state;
+		}
+		public void setState(State state) {
+			this.state = state;
+		}
+		public List<Entry> getEntries() {
+			return entries;
+		}
+		public void setEntries(List<Entry> entries) {
+			this.entries = entries;
+		}
+	}
+
+	public static class Entry {
+
+		String file;
+		String name;
+		String oldKey;
+		String newName;
+		String newKey;
+		volatile boolean added;
+		boolean committed;
+		volatile boolean removed;
+
+		public String getFile() {
+			return file;
+		}
+		public void setFile(String file) {
+			this.file = file;
+		}
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		public String getOldKey() {
+			return oldKey;
+		}
+		public void setOldKey(String oldKey) {
+			this.oldKey = oldKey;
+		}
+		public String getNewName() {
+			return newName;
+		}
+		public void setNewName(String newName) {
+			this.newName = newName;
+		}
+		public String getNewKey() {
+			return newKey;
+		}
+		public void setNewKey(String newKey) {
+			this.newKey = newKey;
+		}
+		public boolean isAdded() {
+			return added;
+		}
+		public void setAdded(boolean added) {
+			this.added = added;
+		}
+		public boolean isCommitted() {
+			return committed;
+		}
+		public void setCommitted(boolean committed) {
+			this.committed = committed;
+		}
+		public boolean isRemoved() {
+			return removed;
+		}
+		public void setRemoved(boolean removed) {
+			this.removed = removed;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.sshteam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.publickey.SshKeyUtils;
+import com.sshtools.common.ssh.components.SshPublicKey;
+import com.sshtools.common.util.IOUtils;
+
+/**
+ * A persistent queue of ssh.team key changes. Operations are written to disk
+ * before the caller returns and are then processed in order by a single
+ * background worker, which retries failures with exponential backoff. Each
+ * operation carries a unique id that is sent as the idempotency key, so a
+ * request that is retried after an ambiguous failure is not applied twice.
+ * An operation that is being sent is never cancelled or merged with a later
+ * one, as ssh.team may already have applied it.
+ */
+public class KeySyncOutbox {
+
+	public enum Operation {
+		ADD, REMOVE
+	}
+
+	public enum SyncState {
+		NONE, PENDING, RETRYING, FAILED
+	}
+
+	public interface Processor {
+		void process(PendingOperation op) throws Exception;
+	}
+
+	static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+	static final long MAXIMUM_BACKOFF = TimeUnit.MINUTES.toMillis(15);
+	static final int MAXIMUM_ATTEMPTS = 10;
+
+	final File file;
+	final Processor processor;
+	final Runnable onChange;
+	final LinkedList<PendingOperation> operations = new LinkedList<>();
+	final ObjectMapper mapper = new ObjectMapper()
+			.enable(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL);
+
+	ScheduledExecutorService worker;
+	ScheduledFuture<?> nextDrain;
+
+	public KeySyncOutbox(File file, Processor processor, Runnable onChange) {
+		this.file = file;
+		this.processor = processor;
+		this.onChange = onChange;
+		load();
+	}
+
+	public synchronized void start() {
+		if(Objects.nonNull(worker)) {
+			return;
+		}
+		worker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "KeySyncOutbox");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduleDrain(0L);
+	}
+
+	public synchronized void stop() {
+		if(Objects.nonNull(worker)) {
+			worker.shutdownNow();
+			worker = null;
+		}
+	}
+
+	/**
+	 * Queue an operation. Returns immediately once the operation is persisted. A
+	 * request that duplicates an operation already waiting for the same key is
+	 * ignored, and an addition and removal of the same key cancel each other out
+	 * if the first has not been sent yet. Only the latest operation on the key
+	 * is compared, as that decides the key's final state.
+	 */
+	public PendingOperation submit(Operation operation, String name, SshPublicKey key) throws IOException {
+		return submit(operation, name, key, null);
+	}
+
+	/**
+	 * As {@link #submit(Operation, String, SshPublicKey)}, also recording a
+	 * local key file to forget once the operation has been sent, for a key
+	 * that has to stay loaded to authorize its own removal.
+	 */
+	public PendingOperation submit(Operation operation, String name, SshPublicKey key, File keyFile) throws IOException {
+
+		String publicKey = SshKeyUtils.getOpenSSHFormattedKey(key);
+		PendingOperation op;
+		PendingOperation cancelled = null;
+
+		synchronized(this) {
+			PendingOperation existing = null;
+			for(PendingOperation pending : operations) {
+				if(pending.getPublicKey().equals(publicKey)) {
+					existing = pending;
+				}
+			}
+			if(Objects.nonNull(existing) && !existing.inFlight) {
+				if(existing.getOperation() == operation) {
+					if(Log.isInfoEnabled()) {
+						Log.info("Ignoring duplicate {} of {}", operation, SshKeyUtils.getFingerprint(key));
+					}
+					if(Objects.nonNull(keyFile) && Objects.isNull(existing.getKeyFile())) {
+						existing.setKeyFile(keyFile.getPath());
+						save();
+					}
+					return existing;
+				}
+				if(isOpposite(operation, existing.getOperation())
+						&& existing.getAttempts() == 0) {
+					if(Log.isInfoEnabled()) {
+						Log.info("Cancelling unsent {} of {}", existing.getOperation(), SshKeyUtils.getFingerprint(key));
+					}
+					operations.remove(existing);
+					save();
+					cancelled = existing;
+				}
+			}
+			
+			if(Objects.nonNull(cancelled)) {
+				op = cancelled;
+			} else {
+				op = new PendingOperation();
+				op.setId(UUID.randomUUID().toString());
+				op.setOperation(operation);
+				op.setName(name);
+				op.setPublicKey(publicKey);
+				op.setKeyFile(Objects.isNull(keyFile) ? null : keyFile.getPath());
+				op.setCreated(System.currentTimeMillis());
+				operations.add(op);
+				save();
+	
+				if(Log.isInfoEnabled()) {
+					Log.info("Queued {} of {} ({})", operation, SshKeyUtils.getFingerprint(key), op.getId());
+				}
+	
+				scheduleDrain(0L);
+			}
+		}
+
+		fireChange();
+		return op;
+	}
+
+	/**
+	 * Make every failed or waiting operation due now, e.g. when the user asks to
+	 * reload or the network has come back.
+	 */
+	public synchronized void retryNow() {
+		for(PendingOperation op : operations) {
+			op.setNextAttempt(0L);
+			if(op.getAttempts() >= MAXIMUM_ATTEMPTS) {
+				op.setAttempts(0);
+			}
+		}
+		scheduleDrain(0L);
+		fireChange();
+	}
+
+	public synchronized SyncState getState(SshPublicKey key) {
+		try {
+			String publicKey = SshKeyUtils.getOpenSSHFormattedKey(key);
+			SyncState state = SyncState.NONE;
+			for(PendingOperation op : operations) {
+				if(op.getPublicKey().equals(publicKey)) {
+					if(op.getAttempts() >= MAXIMUM_ATTEMPTS) {
+						return SyncState.FAILED;
+					}
+					state = op.getAttempts() > 0 ? SyncState.RETRYING : SyncState.PENDING;
+				}
+			}
+			return state;
+		} catch (IOException e) {
+			return SyncState.NONE;
+		}
+	}
+
+	public synchronized List<PendingOperation> getOperations() {
+		return new ArrayList<>(operations);
+	}
+
+	private synchronized void scheduleDrain(long delay) {
+		if(Objects.isNull(worker)) {
+			return;
+		}
+		if(Objects.nonNull(nextDrain)) {
+			nextDrain.cancel(false);
+		}
+		nextDrain = worker.schedule(this::drain, Math.max(0L, delay), TimeUnit.MILLISECONDS);
+	}
+
+	private void drain() {
+
+		Set<String> blockedKeys = new HashSet<>();
+		boolean changed = false;
+
+		for(PendingOperation op : getOperations()) {
+
+			if(blockedKeys.contains(op.getPublicKey())) {
+				/* Keep operations on the same key in the order they were submitted */
+				continue;
+			}
+
+			if(op.getAttempts() >= MAXIMUM_ATTEMPTS
+					|| op.getNextAttempt() > System.currentTimeMillis()) {
+				blockedKeys.add(op.getPublicKey());
+				continue;
+			}
+
+			synchronized(this) {
+				/* Cancelled since the operations were listed */
+				if(!operations.contains(op)) {
+					continue;
+				}
+				op.inFlight = true;
+			}
+
+			try {
+				processor.process(op);
+
+				if(Log.isInfoEnabled()) {
+					Log.info("Completed {} of {} ({})", op.getOperation(), op.getName(), op.getId());
+				}
+				synchronized(this) {
+					op.inFlight = false;
+					operations.remove(op);
+					save();
+				}
+			} catch(Throwable e) {
+				Log.error(String.format("Failed %s of %s (%s)", op.getOperation(), op.getName(), op.getId()), e);
+				synchronized(this) {
+					op.inFlight = false;
+					op.setAttempts(op.getAttempts() + 1);
+					op.setLastError(e.getMessage());
+					op.setNextAttempt(System.currentTimeMillis() + backoff(op.getAttempts()));
+					save();
+				}
+				blockedKeys.add(op.getPublicKey());
+			}
+			changed = true;
+		}
+
+		if(changed) {
+			fireChange();
+		}
+
+		synchronized(this) {
+			long next = Long.MAX_VALUE;
+			for(PendingOperation op : operations) {
+				if(op.getAttempts() < MAXIMUM_ATTEMPTS) {
+					next = Math.min(next, op.getNextAttempt());
+				}
+			}
+			if(next != Long.MAX_VALUE) {
+				scheduleDrain(next - System.currentTimeMillis());
+			}
+		}
+	}
+
+	static boolean isOpposite(Operation a, Operation b) {
+		return (a == Operation.ADD && b == Operation.REMOVE)
+				|| (a == Operation.REMOVE && b == Operation.ADD);
+	}
+
+	static long backoff(int attempts) {
+		long delay = Math.min(MAXIMUM_BACKOFF, INITIAL_BACKOFF << Math.min(attempts - 1, 16));
+		/* Up to 20% jitter so a fleet of agents does not retry in lock step */
+		return delay + ThreadLocalRandom.current().nextLong(delay / 5 + 1);
+	}
+
+	private void fireChange() {
+		if(Objects.nonNull(onChange)) {
+			try {
+				onChange.run();
+			} catch(Throwable e) {
+				Log.error("Outbox change listener failed", e);
+			}
+		}
+	}
+
+	private void load() {
+		if(file.exists()) {
+			try {
+				for(PendingOperation op : mapper.readValue(IOUtils.readUTF8StringFromFile(file),
+						new TypeReference<List<PendingOperation>>() { })) {
+					/* Operations this version no longer has, such as rotations */
+					if(Objects.nonNull(op.getOperation())) {
+						operations.add(op);
+					}
+				}
+				if(Log.isInfoEnabled()) {
+					Log.info("Loaded {} pending ssh.team operations", operations.size());
+				}
+			} catch (IOException e) {
+				Log.error("Could not read ssh.team outbox", e);
+			}
+		}
+	}
+
+	private void save() {
+		try {
+			file.getParentFile().mkdirs();
+			File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+			IOUtils.writeUTF8StringToFile(tmp, mapper.writeValueAsString(operations));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.error("Could not write ssh.team outbox", e);
+		}
+	}
+
+	public static class PendingOperation {
+
+		String id;
+		Operation operation;
+		String name;
+		String publicKey;
+		long created;
+		int attempts;
+		long nextAttempt;
+		String lastError;
+		/* A key file kept only so the key can authorize its own removal */
+		String keyFile;
+		/* Being sent now, which is not persisted */
+		transient boolean inFlight;
+
+		public String getId() {
+			return id;
+		}
+		public void setId(String id) {
+			this.id = id;
+		}
+		public Operation getOperation() {
+			return operation;
+		}
+		public void setOperation(Operation operation) {
+			this.operation = operation;
+		}
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		public String getPublicKey() {
+			return publicKey;
+		}
+		public void setPublicKey(String publicKey) {
+			this.publicKey = publicKey;
+		}
+		public long getCreated() {
+			return created;
+		}
+		public void setCreated(long created) {
+			this.created = created;
+		}
+		public int getAttempts() {
+			return attempts;
+		}
+		public void setAttempts(int attempts) {
+			this.attempts = attempts;
+		}
+		public long getNextAttempt() {
+			return nextAttempt;
+		}
+		public void setNextAttempt(long nextAttempt) {
+			this.nextAttempt = nextAttempt;
+		}
+		public String getLastError() {
+			return lastError;
+		}
+		public void setLastError(String lastError) {
+			this.lastError = lastError;
+		}
+		public String getKeyFile() {
+			return keyFile;
+		}
+		public void setKeyFile(String keyFile) {
+			this.keyFile = keyFile;
+		}
+	}
+}
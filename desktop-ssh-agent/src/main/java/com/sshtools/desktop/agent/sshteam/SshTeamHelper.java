@@ -28,6 +28,7 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
@@ -35,6 +36,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -48,10 +50,20 @@ import com.sshtools.common.ssh.components.SshKeyPair;
 import com.sshtools.common.ssh.components.SshPublicKey;
 import com.sshtools.common.util.ByteArrayWriter;
 import com.sshtools.desktop.agent.ExtendedKeyInfo;
+import com.sshtools.desktop.agent.JsonConnectionChanges;
 import com.sshtools.synergy.ssh.SshContext;
 
 public class SshTeamHelper {
 
+	/**
+	 * Shared so that requests reuse pooled connections, and concurrent requests 
+	 * are multiplexed over one connection where the server supports HTTP/2.
+	 */
+	private static final HttpClient CLIENT = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.connectTimeout(Duration.ofSeconds(30))
+			.build();
+
 		
 	public static String getAuthorizedKeys(String username, String hostname, int port, SshPublicKey publicKey, KeyStore sign) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
 		
@@ -89,6 +101,42 @@ public class SshTeamHelper {
 		return policy.getResource();
 	}
 	
+	/**
+	 * The changes to the connection catalog shared with the user since a
+	 * revision, or the complete catalog if the revision is 0.
+	 */
+	public static JsonConnectionChanges getConnectionChanges(String username, String hostname, int port, SshPublicKey publicKey, KeyStore sign, long revision) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
+		
+		long nonce = SecureRandom.getInstanceStrong().nextLong();
+		
+		String key = SshKeyUtils.getOpenSSHFormattedKey(publicKey);
+		Map<String,String> params = new HashMap<>();
+		params.put("username", username);
+		params.put("nonce", String.valueOf(nonce));
+		params.put("authorizationKey", key);
+		params.put("authorization", generateAuthorization(username, sign, publicKey, nonce, key, String.valueOf(revision)));
+		params.put("since", String.valueOf(revision));
+		
+		return parseConnectionChanges(doRequestString(String.format("https://%s:%d/app/api/connections/changes", hostname, port), params));
+	}
+	
+	/**
+	 * Read a response to a request for connection changes, which lists the
+	 * changed connections as <code>resources</code>, the names of those
+	 * deleted as <code>deleted</code>, the new <code>revision</code>, and
+	 * whether the resources are the <code>complete</code> catalog.
+	 */
+	public static JsonConnectionChanges parseConnectionChanges(String result) throws IOException {
+		
+		ObjectMapper mapper = new ObjectMapper();
+		JsonConnectionChanges changes = mapper.readValue(result, JsonConnectionChanges.class);
+		
+		if(!changes.isSuccess()) {
+			throw new IOException(changes.getMessage());
+		}
+		return changes;
+	}
+	
 	public static boolean checkKey(String username, String hostname, int port, SshKeyPair pair) {
 
 		try {
@@ -118,23 +166,22 @@ public class SshTeamHelper {
 	
 	
 	public static void addKey(String username, String hostname, int port, SshPublicKey publicKey, KeyStore sign, String name, SshPublicKey newKey) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
-		
-		long nonce = SecureRandom.getInstanceStrong().nextLong();
-		
-		String key = SshKeyUtils.getOpenSSHFormattedKey(publicKey);
-		String pk =  SshKeyUtils.getOpenSSHFormattedKey(newKey);
-		Map<String,String> params = new HashMap<>();
-		params.put("username", username);
-		params.put("nonce", String.valueOf(nonce));
-		params.put("authorizationKey", key);
-		params.put("authorization", generateAuthorization(username, sign, publicKey, nonce, name, pk));
-		params.put("name", name);
-		params.put("publicKey", pk);
-		
-		doRequest(String.format("https://%s:%d/app/api/authorizedKeys/add", hostname, port), params);
+		addKey(username, hostname, port, publicKey, sign, name, newKey, null);
+	}
+	
+	public static void addKey(String username, String hostname, int port, SshPublicKey publicKey, KeyStore sign, String name, SshPublicKey newKey, String idempotencyKey) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
+		updateKey("add", username, hostname, port, publicKey, sign, name, newKey, idempotencyKey);
 	}
 	
 	public static void removeKey(String username, String hostname, int port, SshPublicKey publicKey, KeyStore sign, String name, SshPublicKey newKey) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
+		removeKey(username, hostname, port, publicKey, sign, name, newKey, null);
+	}
+	
+	public static void removeKey(String username, String hostname, int port, SshPublicKey publicKey, KeyStore sign, String name, SshPublicKey newKey, String idempotencyKey) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
+		updateKey("remove", username, hostname, port, publicKey, sign, name, newKey, idempotencyKey);
+	}
+	
+	private static void updateKey(String action, String username, String hostname, int port, SshPublicKey publicKey, KeyStore sign, String name, SshPublicKey newKey, String idempotencyKey) throws NoSuchAlgorithmException, IOException, InterruptedException, URISyntaxException, SshException, KeyTimeoutException {
 		
 		long nonce = SecureRandom.getInstanceStrong().nextLong();
 		
@@ -148,7 +195,7 @@ public class SshTeamHelper {
 		params.put("name", name);
 		params.put("publicKey", pk);
 		
-		doRequest(String.format("https://%s:%d/app/api/authorizedKeys/remove", hostname, port), params);
+		doRequest(String.format("https://%s:%d/app/api/authorizedKeys/%s", hostname, port, action), params, idempotencyKey);
 	}
 
 
@@ -218,28 +265,34 @@ public class SshTeamHelper {
 
 
 	private static String doRequestString(String url, Map<String,String> params) throws IOException, InterruptedException, URISyntaxException {
+		return doRequestString(url, params, null);
+	}
+	
+	private static String doRequestString(String url, Map<String,String> params, String idempotencyKey) throws IOException, InterruptedException, URISyntaxException {
 		String form = params.entrySet()
 			    .stream()
 			    .map(e -> e.getKey() + "=" + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
 			    .collect(Collectors.joining("&"));
-		HttpClient client = HttpClient.newHttpClient();
-		HttpRequest request = HttpRequest.newBuilder()
+		HttpRequest.Builder builder = HttpRequest.newBuilder()
 				.uri(new URI(url))
 			    .headers("Content-Type", "application/x-www-form-urlencoded")
-			    .POST(HttpRequest.BodyPublishers.ofString(form))
-			    .build();
+			    .POST(HttpRequest.BodyPublishers.ofString(form));
+		if(Objects.nonNull(idempotencyKey)) {
+			builder.header("Idempotency-Key", idempotencyKey);
+		}
+		HttpRequest request = builder.build();
 
-		HttpResponse<?> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+		HttpResponse<?> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
 		if(response.statusCode()!=200) {
 			throw new IOException(url + " returned " + response.statusCode());
 		}
 		return response.body().toString();
 	}
 	
-	private static void doRequest(String url, Map<String,String> params) throws IOException, InterruptedException, URISyntaxException {
+	private static void doRequest(String url, Map<String,String> params, String idempotencyKey) throws IOException, InterruptedException, URISyntaxException {
 		
 		ObjectMapper mapper = new ObjectMapper();
-		JsonRequestStatus status = mapper.readValue(doRequestString(url, params), JsonRequestStatus.class);
+		JsonRequestStatus status = mapper.readValue(doRequestString(url, params, idempotencyKey), JsonRequestStatus.class);
 	
 		if(!status.isSuccess()) {
 			throw new IOException(status.getMessage());
@@ -0,0 +1,270 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.swt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Menu;
+import org.eclipse.swt.widgets.MenuItem;
+
+import com.sshtools.desktop.agent.JsonConnection;
+
+/**
+ * The favorite connections in the tray menu.
+ * <p>
+ * Each update is compared with what is already shown and only the items for
+ * connections that were added, removed or renamed are touched, so a refresh
+ * that changes nothing does not change the menu. With many favorites they
+ * are grouped by their first letter into submenus, which are only filled
+ * when they are first opened after a change.
+ * <p>
+ * All methods must be called on the display thread.
+ */
+public class FavoritesMenu {
+
+	/**
+	 * More favorites than this are grouped into submenus.
+	 */
+	public static final int GROUP_THRESHOLD = 30;
+
+	static final Comparator<JsonConnection> BY_NAME = Comparator.comparing(JsonConnection::getName, String.CASE_INSENSITIVE_ORDER);
+
+	/**
+	 * A submenu of favorites starting with the same letter.
+	 */
+	class Group {
+
+		final MenuItem item;
+		final Menu menu;
+		List<JsonConnection> members = new ArrayList<>();
+		boolean stale = true;
+
+		Group(String label, int index) {
+			item = new MenuItem(FavoritesMenu.this.menu, SWT.CASCADE, index);
+			item.setText(label);
+			menu = new Menu(item);
+			item.setMenu(menu);
+			menu.addListener(SWT.Show, event -> populate());
+		}
+
+		void setMembers(List<JsonConnection> members) {
+			if(!members.equals(this.members) || isRenamed(members)) {
+				this.members = members;
+				stale = true;
+			}
+		}
+
+		void populate() {
+			if(!stale) {
+				return;
+			}
+			for(MenuItem m : menu.getItems()) {
+				m.dispose();
+			}
+			for(JsonConnection con : members) {
+				createItem(menu, con, -1);
+			}
+			stale = false;
+		}
+
+		void dispose() {
+			item.dispose();
+		}
+	}
+
+	final Menu menu;
+	final Consumer<JsonConnection> launcher;
+	final Consumer<JsonConnection> armed;
+
+	/* The favorites as last shown, and the name each was shown with */
+	final Map<JsonConnection, String> shownNames = new IdentityHashMap<>();
+	final Map<String, MenuItem> items = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+	final Map<String, Group> groups = new TreeMap<>();
+	MenuItem placeholder;
+
+	public FavoritesMenu(Menu menu, Consumer<JsonConnection> launcher) {
+		this(menu, launcher, con -> { });
+	}
+
+	/**
+	 * @param armed called when the pointer or keyboard moves onto a favorite,
+	 *            before it is chosen
+	 */
+	public FavoritesMenu(Menu menu, Consumer<JsonConnection> launcher, Consumer<JsonConnection> armed) {
+		this.menu = menu;
+		this.launcher = launcher;
+		this.armed = armed;
+		update(new ArrayList<>());
+	}
+
+	/**
+	 * Show these favorites, changing only what differs from the last update.
+	 */
+	public void update(Collection<JsonConnection> favorites) {
+
+		if(menu.isDisposed()) {
+			return;
+		}
+
+		List<JsonConnection> sorted = new ArrayList<>(favorites);
+		sorted.sort(BY_NAME);
+
+		boolean grouped = sorted.size() > GROUP_THRESHOLD;
+		if(grouped != !groups.isEmpty() || (grouped && !items.isEmpty())) {
+			clear();
+		}
+
+		if(grouped) {
+			updateGroups(sorted);
+		} else {
+			updateItems(sorted);
+		}
+
+		shownNames.clear();
+		for(JsonConnection con : sorted) {
+			shownNames.put(con, con.getName());
+		}
+
+		/* An empty cascade menu is not shown at all on some platforms */
+		if(menu.getItemCount() == 0) {
+			placeholder = new MenuItem(menu, SWT.SEPARATOR);
+		} else if(Objects.nonNull(placeholder) && menu.getItemCount() > 1) {
+			placeholder.dispose();
+			placeholder = null;
+		}
+	}
+
+	private void updateItems(List<JsonConnection> sorted) {
+
+		Map<String, JsonConnection> wanted = new LinkedHashMap<>();
+		for(JsonConnection con : sorted) {
+			wanted.put(con.getName(), con);
+		}
+
+		/* Connections renamed in place keep their item */
+		for(Map.Entry<JsonConnection, String> en : shownNames.entrySet()) {
+			JsonConnection con = en.getKey();
+			String oldName = en.getValue();
+			if(!oldName.equals(con.getName()) && wanted.get(con.getName()) == con && items.containsKey(oldName)
+					&& !items.containsKey(con.getName())) {
+				MenuItem item = items.remove(oldName);
+				item.setText(con.getName());
+				items.put(con.getName(), item);
+			}
+		}
+
+		for(var it = items.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, MenuItem> en = it.next();
+			JsonConnection con = wanted.get(en.getKey());
+			if(Objects.isNull(con)) {
+				en.getValue().dispose();
+				it.remove();
+			} else {
+				en.getValue().setData(con);
+			}
+		}
+
+		/* Items can't be moved, so one whose rename changed its place is recreated */
+		int index = 0;
+		for(JsonConnection con : sorted) {
+			MenuItem item = items.get(con.getName());
+			if(Objects.isNull(item) || menu.indexOf(item) != index) {
+				if(Objects.nonNull(item)) {
+					item.dispose();
+				}
+				items.put(con.getName(), createItem(menu, con, index));
+			}
+			index++;
+		}
+	}
+
+	private void updateGroups(List<JsonConnection> sorted) {
+
+		Map<String, List<JsonConnection>> wanted = new TreeMap<>();
+		for(JsonConnection con : sorted) {
+			wanted.computeIfAbsent(getGroup(con), k -> new ArrayList<>()).add(con);
+		}
+
+		for(var it = groups.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Group> en = it.next();
+			if(!wanted.containsKey(en.getKey())) {
+				en.getValue().dispose();
+				it.remove();
+			}
+		}
+
+		int index = 0;
+		for(Map.Entry<String, List<JsonConnection>> en : wanted.entrySet()) {
+			Group group = groups.get(en.getKey());
+			if(Objects.isNull(group)) {
+				group = new Group(en.getKey(), index);
+				groups.put(en.getKey(), group);
+			}
+			group.setMembers(en.getValue());
+			index++;
+		}
+	}
+
+	private boolean isRenamed(List<JsonConnection> current) {
+		for(JsonConnection con : current) {
+			String shown = shownNames.get(con);
+			if(Objects.nonNull(shown) && !shown.equals(con.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void clear() {
+		for(MenuItem item : items.values()) {
+			item.dispose();
+		}
+		items.clear();
+		for(Group group : groups.values()) {
+			group.dispose();
+		}
+		groups.clear();
+		shownNames.clear();
+	}
+
+	private MenuItem createItem(Menu parent, JsonConnection con, int index) {
+		MenuItem item = index < 0 ? new MenuItem(parent, SWT.PUSH) : new MenuItem(parent, SWT.PUSH, index);
+		item.setText(con.getName());
+		item.setData(con);
+		item.addListener(SWT.Selection, event -> launcher.accept((JsonConnection) item.getData()));
+		item.addListener(SWT.Arm, event -> armed.accept((JsonConnection) item.getData()));
+		return item;
+	}
+
+	static String getGroup(JsonConnection con) {
+		String name = con.getName();
+		char c = name.isEmpty() ? '#' : Character.toUpperCase(name.charAt(0));
+		return Character.isLetter(c) ? String.valueOf(c) : "#";
+	}
+}
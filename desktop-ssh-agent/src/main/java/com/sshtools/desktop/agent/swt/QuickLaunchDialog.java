@@ -0,0 +1,167 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.swt;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
+
+import com.sshtools.desktop.agent.ConnectionSearch;
+import com.sshtools.desktop.agent.JsonConnection;
+
+/**
+ * A small window to find a saved connection by typing part of its name,
+ * host, username or an alias, and launch it with Enter.
+ */
+public class QuickLaunchDialog {
+
+	static final int MAX_RESULTS = 20;
+
+	final Display display;
+	final ConnectionSearch search;
+	final Consumer<JsonConnection> launcher;
+
+	Shell shell;
+	Text query;
+	Table results;
+
+	public QuickLaunchDialog(Display display, ConnectionSearch search, Consumer<JsonConnection> launcher) {
+		this.display = display;
+		this.search = search;
+		this.launcher = launcher;
+	}
+
+	public boolean isOpen() {
+		return Objects.nonNull(shell) && !shell.isDisposed();
+	}
+
+	/**
+	 * Open the window, or bring it to the front if it is already open. Must be
+	 * called on the display thread.
+	 */
+	public void open() {
+
+		if(isOpen()) {
+			shell.forceActive();
+			query.setFocus();
+			query.selectAll();
+			return;
+		}
+
+		shell = new Shell(display, SWT.TITLE | SWT.CLOSE | SWT.ON_TOP);
+		shell.setText("Quick Launch");
+		shell.setLayout(new GridLayout(1, false));
+
+		query = new Text(shell, SWT.SINGLE | SWT.BORDER | SWT.SEARCH);
+		query.setMessage("Name, host, user or alias");
+		query.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+
+		results = new Table(shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.SINGLE);
+		GridData data = new GridData(SWT.FILL, SWT.FILL, true, true);
+		data.heightHint = 300;
+		results.setLayoutData(data);
+
+		TableColumn name = new TableColumn(results, SWT.NONE);
+		name.setWidth(200);
+		TableColumn target = new TableColumn(results, SWT.NONE);
+		target.setWidth(260);
+
+		query.addListener(SWT.Modify, event -> refresh());
+		query.addListener(SWT.KeyDown, event -> {
+			switch(event.keyCode) {
+			case SWT.ARROW_DOWN:
+				move(1);
+				event.doit = false;
+				break;
+			case SWT.ARROW_UP:
+				move(-1);
+				event.doit = false;
+				break;
+			default:
+				break;
+			}
+		});
+		query.addListener(SWT.DefaultSelection, event -> launch());
+		results.addListener(SWT.DefaultSelection, event -> launch());
+		shell.addListener(SWT.Traverse, event -> {
+			if(event.detail == SWT.TRAVERSE_ESCAPE) {
+				shell.dispose();
+			}
+		});
+		shell.addListener(SWT.Deactivate, event -> shell.dispose());
+
+		refresh();
+
+		shell.pack();
+		SWTUtil.center(shell);
+		shell.open();
+		shell.forceActive();
+		query.setFocus();
+	}
+
+	private void refresh() {
+
+		List<JsonConnection> found = search.search(query.getText(), MAX_RESULTS);
+
+		results.setRedraw(false);
+		try {
+			results.removeAll();
+			for(JsonConnection con : found) {
+				TableItem item = new TableItem(results, SWT.NONE);
+				item.setText(0, con.getName());
+				item.setText(1, String.format("%s@%s:%d", con.getUsername(), con.getHostname(), con.getPort()));
+				item.setData(con);
+			}
+			if(results.getItemCount() > 0) {
+				results.select(0);
+			}
+		} finally {
+			results.setRedraw(true);
+		}
+	}
+
+	private void move(int by) {
+		int count = results.getItemCount();
+		if(count > 0) {
+			int index = Math.max(0, Math.min(count - 1, results.getSelectionIndex() + by));
+			results.select(index);
+			results.showSelection();
+		}
+	}
+
+	private void launch() {
+		int index = results.getSelectionIndex();
+		if(index < 0) {
+			return;
+		}
+		JsonConnection con = (JsonConnection) results.getItem(index).getData();
+		shell.dispose();
+		launcher.accept(con);
+	}
+}
@@ -68,6 +68,11 @@ public class SettingsDialog extends Dialog {
 //	Text port;
 	Button strictSSL;
 	Button automaticUpdates;
+	Button compactKnownHosts;
+	Button probeConnections;
+	Button preConnect;
+	Button mergeKnownHosts;
+	Button hashKnownHosts;
 //	Button authorize;
 //	Button synchronizeKeys;
 	
@@ -171,6 +176,14 @@ public class SettingsDialog extends Dialog {
 			Settings.getInstance().setUseBuiltInTerminal(builtInTerminal.getSelection());
 			Settings.getInstance().setIconMode(IconMode.values()[iconMode.getSelectionIndex()]);
 			
+			Settings.getInstance().setCompactKnownHosts(compactKnownHosts.getSelection());
+			Settings.getInstance().setMergeKnownHosts(mergeKnownHosts.getSelection());
+			Settings.getInstance().setHashKnownHosts(hashKnownHosts.getSelection());
+			Settings.getInstance().setProbeConnections(probeConnections.getSelection());
+			agent.probeConnections(probeConnections.getSelection());
+			Settings.getInstance().setPreConnect(preConnect.getSelection());
+			agent.preConnect(preConnect.getSelection());
+			
 			Settings.getInstance().setTerminalCommand(terminalCommand.getText());
 			Settings.getInstance().setTerminalArguments(terminalArguments.getText());
 			
@@ -379,6 +392,34 @@ public class SettingsDialog extends Dialog {
 		    strictSSL.setSelection(!Settings.getInstance().isStrictSSL());
 		    strictSSL.setText("Allow self-signed certificates and invalid hostnames.");
 		    new Label(this, SWT.NONE);
+		    
+		    compactKnownHosts = new Button(this, SWT.CHECK);
+		    compactKnownHosts.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+		    compactKnownHosts.setSelection(Settings.getInstance().isCompactKnownHosts());
+		    compactKnownHosts.setText("Compact the known_hosts file daily.");
+		    
+		    mergeKnownHosts = new Button(this, SWT.CHECK);
+		    mergeKnownHosts.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+		    mergeKnownHosts.setSelection(Settings.getInstance().isMergeKnownHosts());
+		    mergeKnownHosts.setText("When compacting, merge hosts that share a key onto one line.");
+		    
+		    hashKnownHosts = new Button(this, SWT.CHECK);
+		    hashKnownHosts.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+		    hashKnownHosts.setSelection(Settings.getInstance().isHashKnownHosts());
+		    hashKnownHosts.setText("When compacting, hash plain host names.");
+		    new Label(this, SWT.NONE);
+		    
+		    probeConnections = new Button(this, SWT.CHECK);
+		    probeConnections.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+		    probeConnections.setSelection(Settings.getInstance().isProbeConnections());
+		    probeConnections.setText("Check in the background whether saved connections are reachable.");
+		    new Label(this, SWT.NONE);
+		    
+		    preConnect = new Button(this, SWT.CHECK);
+		    preConnect.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+		    preConnect.setSelection(Settings.getInstance().isPreConnect());
+		    preConnect.setText("Connect to favorites ahead of time to open them faster.");
+		    new Label(this, SWT.NONE);
 		  }
 	}
 	
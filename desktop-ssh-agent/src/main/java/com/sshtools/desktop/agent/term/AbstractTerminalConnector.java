@@ -18,17 +18,16 @@
  */
 package com.sshtools.desktop.agent.term;
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import com.hypersocket.json.utils.HypersocketUtils;
@@ -41,11 +40,11 @@ import com.sshtools.client.KeyboardInteractiveAuthenticator;
 import com.sshtools.client.KeyboardInteractivePrompt;
 import com.sshtools.client.KeyboardInteractivePromptCompletor;
 import com.sshtools.client.PasswordAuthenticator;
+import com.sshtools.client.SessionChannelNG;
 import com.sshtools.client.SshClient;
 import com.sshtools.client.SshClientContext;
 import com.sshtools.client.tasks.ShellTask.ShellTaskBuilder;
 import com.sshtools.client.tasks.Task;
-import com.sshtools.common.knownhosts.KnownHostsKeyVerification;
 import com.sshtools.common.logger.Log;
 import com.sshtools.common.publickey.SshKeyUtils;
 import com.sshtools.common.ssh.ChannelOpenException;
@@ -53,6 +52,7 @@ import com.sshtools.common.ssh.SshException;
 import com.sshtools.common.ssh.components.SshPublicKey;
 import com.sshtools.desktop.agent.DesktopAgent;
 import com.sshtools.desktop.agent.JsonConnection;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsVerifier;
 import com.sshtools.terminal.emulation.Terminal;
 import com.sshtools.terminal.emulation.TerminalInputStream;
 import com.sshtools.terminal.emulation.TerminalOutputStream;
@@ -66,12 +66,19 @@ public abstract class AbstractTerminalConnector {
 	DesktopAgent agent;
 	TerminalDisplay term;
 	
+	protected final JsonConnection serverConnection;
+	protected SshPublicKey hostKey;
+	
 	protected Terminal vt;
 	protected final String serverName;
 	protected final int serverPort;
 	protected final String username;
 	protected String pwd = null;
 	
+	/* This terminal's shell, which is closed with the terminal even if the connection is shared */
+	protected volatile SessionChannelNG session;
+	protected volatile boolean closed;
+	
 	protected InputStream tin;
 	protected OutputStream tout;
 	
@@ -83,6 +90,7 @@ public abstract class AbstractTerminalConnector {
 	 */
 	public AbstractTerminalConnector(DesktopAgent agent, JsonConnection serverConnection) {
 		this.agent = agent;
+		this.serverConnection = serverConnection;
 		this.serverName = serverConnection.getHostname();
 		this.serverPort = serverConnection.getPort();
 		this.username = serverConnection.getUsername();
@@ -90,6 +98,8 @@ public abstract class AbstractTerminalConnector {
 	
 	public AbstractTerminalConnector(DesktopAgent agent, String serverName, int serverPort, String username) {
 		this.agent = agent;
+		/* A saved connection to the same server still supplies its pinned keys */
+		this.serverConnection = agent.findConnection(serverName, serverPort);
 		this.serverName = serverName;
 		this.serverPort = serverPort;
 		this.username = username;
@@ -246,6 +256,10 @@ public abstract class AbstractTerminalConnector {
 			.withRows(vt.getRows())
 			.withColumns(vt.getColumns())
 			.onBeforeOpen((task, session)-> {
+				this.session = session;
+				if(closed) {
+					session.close();
+				}
 				vt.addCloseListener((terminal) -> session.close());
 				vt.addResizeListener((terminal, cols, rows, remote) -> session.changeTerminalDimensions(cols, rows, 0, 0));
 				vt.setInput((data, off, len) -> {
@@ -263,21 +277,31 @@ public abstract class AbstractTerminalConnector {
 				session.close();
 			})
 			.onClose((task, session)-> {
-				ssh.disconnect();
+				sessionClosed(ssh);
 			}).build();
 	
 	}
 
+	/**
+	 * Called when the shell session ends, to close the connection.
+	 */
+	protected void sessionClosed(SshClient ssh) {
+		ssh.disconnect();
+	}
+
 	protected void configureContext(SshClientContext context) throws SshException, IOException {
 		
-		File knownHostsFile = new File(new File(System.getProperty("user.home"),".ssh"), "known_hosts");
-		if(!knownHostsFile.exists()) {
-			knownHostsFile.getParentFile().mkdirs();
-			knownHostsFile.createNewFile();
-		}
-		
-		try(InputStream in = new FileInputStream(knownHostsFile)) {
-			context.setHostKeyVerification(new KnownHostsKeyVerification(in) {
+		KnownHostsVerifier verifier = new KnownHostsVerifier(agent.getKnownHosts(), 
+				Objects.isNull(serverConnection) ? null : serverConnection.getHostKeys()) {
+				@Override
+				public boolean verifyHost(String host, SshPublicKey pk) throws SshException {
+					boolean verified = super.verifyHost(host, pk);
+					if(verified) {
+						hostKey = pk;
+					}
+					return verified;
+				}
+	
 				public void onInvalidHostEntry(String entry) throws SshException {
 					try {
 						tout.write(String.format("WARNING: known_host file entry is invalid %s\r\n", entry).getBytes());
@@ -319,7 +343,6 @@ public abstract class AbstractTerminalConnector {
 						
 						if(answer.equalsIgnoreCase("YES")) {
 							addEntry(key, "", host);
-							FileUtils.writeStringToFile(knownHostsFile, this.toString(), "UTF-8");
 						}
 					
 					} catch (IOException e) {
@@ -336,7 +359,41 @@ public abstract class AbstractTerminalConnector {
 					} catch (IOException e) {
 					}	
 				}
-			});
+			};
+		context.setHostKeyVerification(verifier);
+		
+		if(verifier.hasCertAuthority(KnownHostsVerifier.formatHost(serverName, serverPort))) {
+			preferHostCertificates(context);
+		}
+	}
+
+	/**
+	 * Host certificates are supported but ordered after plain keys, so a
+	 * server offering both would never present its certificate.
+	 */
+	static void preferHostCertificates(SshClientContext context) throws SshException {
+		List<String> certificates = new ArrayList<>();
+		for(String algorithm : context.supportedPublicKeys().order()) {
+			if(algorithm.endsWith("-cert-v01@openssh.com")) {
+				certificates.add(algorithm);
+			}
+		}
+		if(certificates.isEmpty()) {
+			return;
+		}
+		for(int i = certificates.size() - 1; i >= 0; i--) {
+			context.supportedPublicKeys().changePositionofAlgorithm(certificates.get(i), 0);
+		}
+		context.setPreferredPublicKey(certificates.get(0));
+	}
+
+	/**
+	 * Once connected, remember the host key on a saved connection so later
+	 * connections can trust it without searching known_hosts.
+	 */
+	protected void pinHostKey() {
+		if(Objects.nonNull(serverConnection) && Objects.nonNull(hostKey)) {
+			agent.pinHostKey(serverConnection, hostKey);
 		}
 	}
 
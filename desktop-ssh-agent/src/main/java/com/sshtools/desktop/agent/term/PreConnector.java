@@ -0,0 +1,270 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.term;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sshtools.client.SshClient;
+import com.sshtools.client.SshClient.SshClientBuilder;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.components.SshPublicKey;
+import com.sshtools.desktop.agent.DesktopAgent;
+import com.sshtools.desktop.agent.JsonConnection;
+import com.sshtools.desktop.agent.knownhosts.KnownHostsVerifier;
+
+/**
+ * Connects ahead of time to servers the user is likely to open next, e.g.
+ * a favorite under the mouse, so when the terminal opens, name resolution,
+ * the TCP connection, key exchange and host key verification are already
+ * done and only authentication and opening the shell remain.
+ * <p>
+ * Only servers with a host key that is already trusted are connected to, as
+ * there is no terminal yet to ask the user about an unknown or changed key.
+ * At most a few connections are made at once, and any not used within a
+ * short time are closed. Host names can also be resolved ahead of time,
+ * which helps external clients too.
+ */
+public class PreConnector {
+
+	public static final int MAXIMUM_CONNECTIONS = 4;
+
+	static final long TTL = TimeUnit.SECONDS.toMillis(30);
+	static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+	/* Less than the time the JVM caches a successful lookup for by default */
+	static final long RESOLVE_INTERVAL = TimeUnit.SECONDS.toMillis(20);
+
+	/**
+	 * A connection made ahead of time, once it has been claimed.
+	 */
+	public static class PreConnection {
+
+		final String key;
+		final CompletableFuture<SshClient> client = new CompletableFuture<>();
+		SshPublicKey hostKey;
+		ScheduledFuture<?> expiry;
+
+		PreConnection(String key) {
+			this.key = key;
+		}
+
+		public SshClient getClient() {
+			return client.getNow(null);
+		}
+
+		/**
+		 * The host key that was verified when connecting.
+		 */
+		public SshPublicKey getHostKey() {
+			return hostKey;
+		}
+	}
+
+	final DesktopAgent agent;
+	final Map<String, PreConnection> connections = new HashMap<>();
+	final Map<String, Long> resolved = new ConcurrentHashMap<>();
+	final ScheduledExecutorService executor;
+
+	public PreConnector(DesktopAgent agent) {
+		this.agent = agent;
+		AtomicInteger threads = new AtomicInteger();
+		executor = Executors.newScheduledThreadPool(MAXIMUM_CONNECTIONS, r -> {
+			Thread t = new Thread(r, "PreConnector-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Look up the addresses of these servers, unless that was done recently.
+	 */
+	public void resolve(Collection<JsonConnection> cons) {
+		long now = System.currentTimeMillis();
+		for(JsonConnection con : cons) {
+			String hostname = con.getHostname();
+			if(Objects.isNull(hostname)) {
+				continue;
+			}
+			String key = hostname.toLowerCase();
+			Long last = resolved.get(key);
+			if(Objects.nonNull(last) && now - last < RESOLVE_INTERVAL) {
+				continue;
+			}
+			resolved.put(key, now);
+			executor.execute(() -> {
+				try {
+					InetAddress.getAllByName(hostname);
+				} catch(UnknownHostException e) {
+					if(Log.isDebugEnabled()) {
+						Log.debug("Could not resolve {} ahead of time", hostname);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Start connecting to a server, unless a connection to it has already
+	 * been started or enough are in progress.
+	 */
+	public synchronized void connect(JsonConnection con) {
+
+		if(Objects.isNull(con.getHostname()) || con.isRemote()) {
+			return;
+		}
+		String key = getKey(con.getUsername(), con.getHostname(), con.getPort());
+		if(connections.containsKey(key) || connections.size() >= MAXIMUM_CONNECTIONS) {
+			return;
+		}
+
+		PreConnection pre = new PreConnection(key);
+		connections.put(key, pre);
+		executor.execute(() -> connect(pre, con));
+	}
+
+	private void connect(PreConnection pre, JsonConnection con) {
+
+		long started = System.currentTimeMillis();
+		try {
+			SshClient ssh = SshClientBuilder.create()
+					.withTarget(con.getHostname(), con.getPort())
+					.withUsername(con.getUsername())
+					.withConnectTimeout(CONNECT_TIMEOUT)
+					.onConfigure(context -> {
+						KnownHostsVerifier verifier = new KnownHostsVerifier(agent.getKnownHosts(), con.getHostKeys()) {
+							@Override
+							public boolean verifyHost(String host, SshPublicKey pk) throws SshException {
+								boolean verified = super.verifyHost(host, pk);
+								if(verified) {
+									pre.hostKey = pk;
+								}
+								return verified;
+							}
+						};
+						context.setHostKeyVerification(verifier);
+						if(verifier.hasCertAuthority(KnownHostsVerifier.formatHost(con.getHostname(), con.getPort()))) {
+							AbstractTerminalConnector.preferHostCertificates(context);
+						}
+					})
+					.build();
+
+			/* Also asks which authentication methods the server supports */
+			ssh.getAuthenticationMethods();
+
+			synchronized(this) {
+				if(connections.get(pre.key) == pre && Objects.isNull(pre.expiry)) {
+					pre.expiry = executor.schedule(() -> expire(pre), TTL, TimeUnit.MILLISECONDS);
+				}
+			}
+			pre.client.complete(ssh);
+
+			if(Log.isDebugEnabled()) {
+				Log.debug("Connected to {} ahead of time in {}ms", pre.key, System.currentTimeMillis() - started);
+			}
+		} catch(Throwable e) {
+			synchronized(this) {
+				connections.remove(pre.key, pre);
+			}
+			pre.client.completeExceptionally(e);
+			if(Log.isDebugEnabled()) {
+				Log.debug("Could not connect to {} ahead of time: {}", pre.key, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Take the connection made ahead of time to a server, waiting for it if
+	 * it is still being made. Returns null if there is none, in which case
+	 * the caller should connect as usual.
+	 */
+	public PreConnection claim(String username, String hostname, int port) {
+
+		PreConnection pre;
+		synchronized(this) {
+			pre = connections.remove(getKey(username, hostname, port));
+			if(Objects.isNull(pre)) {
+				return null;
+			}
+			if(Objects.nonNull(pre.expiry)) {
+				pre.expiry.cancel(false);
+			}
+		}
+
+		try {
+			SshClient ssh = pre.client.get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+			if(ssh.isConnected() && !ssh.isAuthenticated()) {
+				if(Log.isInfoEnabled()) {
+					Log.info("Using connection made ahead of time to {}", pre.key);
+				}
+				return pre;
+			}
+			ssh.disconnect();
+		} catch(Exception e) {
+			pre.client.thenAccept(SshClient::disconnect);
+		}
+		return null;
+	}
+
+	/**
+	 * Close any connections that have not been claimed.
+	 */
+	public void close() {
+		List<PreConnection> closing;
+		synchronized(this) {
+			closing = new ArrayList<>(connections.values());
+			connections.clear();
+		}
+		for(PreConnection pre : closing) {
+			if(Objects.nonNull(pre.expiry)) {
+				pre.expiry.cancel(false);
+			}
+			pre.client.thenAccept(SshClient::disconnect);
+		}
+	}
+
+	private void expire(PreConnection pre) {
+		synchronized(this) {
+			if(!connections.remove(pre.key, pre)) {
+				return;
+			}
+		}
+		if(Log.isDebugEnabled()) {
+			Log.debug("Closing unused connection to {}", pre.key);
+		}
+		pre.client.thenAccept(SshClient::disconnect);
+	}
+
+	static String getKey(String username, String hostname, int port) {
+		return String.format("%s@%s:%d", username, String.valueOf(hostname).toLowerCase(), port);
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.term;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.sshtools.client.SshClient;
+import com.sshtools.common.logger.Log;
+import com.sshtools.common.ssh.components.SshPublicKey;
+
+/**
+ * Authenticated connections that terminals to the same user, host and port
+ * share, each opening its own session on the connection, in the manner of
+ * OpenSSH's <code>ControlMaster</code>. A second terminal to a server opens
+ * without another key exchange or authentication, so there is no other
+ * signature for the agent to make or approve.
+ * <p>
+ * Each terminal holds a {@link Lease} on the connection. When the last is
+ * released the connection is kept for a while in case another terminal is
+ * opened, then closed.
+ */
+public class SharedConnections {
+
+	static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+	static class Shared {
+
+		final String key;
+		final SshClient client;
+		final SshPublicKey hostKey;
+		int references;
+		ScheduledFuture<?> idle;
+
+		Shared(String key, SshClient client, SshPublicKey hostKey) {
+			this.key = key;
+			this.client = client;
+			this.hostKey = hostKey;
+		}
+	}
+
+	/**
+	 * One terminal's use of a connection.
+	 */
+	public class Lease {
+
+		final Shared shared;
+		boolean released;
+
+		Lease(Shared shared) {
+			this.shared = shared;
+		}
+
+		public SshClient getClient() {
+			return shared.client;
+		}
+
+		/**
+		 * The host key that was verified when the connection was made.
+		 */
+		public SshPublicKey getHostKey() {
+			return shared.hostKey;
+		}
+
+		/**
+		 * Stop using the connection. Only the first call has any effect.
+		 */
+		public void release() {
+			synchronized(SharedConnections.this) {
+				if(released) {
+					return;
+				}
+				released = true;
+			}
+			SharedConnections.this.release(shared);
+		}
+	}
+
+	final Map<String, Shared> connections = new HashMap<>();
+	final ScheduledExecutorService idler;
+
+	public SharedConnections() {
+		idler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SharedConnections");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * A lease on an open, authenticated connection to a server, or null if
+	 * there is none.
+	 */
+	public synchronized Lease acquire(String username, String hostname, int port) {
+
+		String key = PreConnector.getKey(username, hostname, port);
+		Shared shared = connections.get(key);
+		if(Objects.isNull(shared)) {
+			return null;
+		}
+		if(!shared.client.isConnected()) {
+			connections.remove(key);
+			return null;
+		}
+
+		if(Objects.nonNull(shared.idle)) {
+			shared.idle.cancel(false);
+			shared.idle = null;
+		}
+		shared.references++;
+
+		if(Log.isInfoEnabled()) {
+			Log.info("Sharing connection to {} with {} terminals", key, shared.references);
+		}
+		return new Lease(shared);
+	}
+
+	/**
+	 * Offer a newly authenticated connection for later terminals to share,
+	 * returning the lease of the terminal that made it. If another terminal
+	 * shared a connection to the same server in the meantime, this one is
+	 * not shared and is closed once released.
+	 */
+	public synchronized Lease share(String username, String hostname, int port, SshClient client, SshPublicKey hostKey) {
+
+		String key = PreConnector.getKey(username, hostname, port);
+		Shared shared = new Shared(key, client, hostKey);
+		shared.references = 1;
+
+		Shared existing = connections.get(key);
+		if(Objects.isNull(existing) || !existing.client.isConnected()) {
+			connections.put(key, shared);
+		}
+		return new Lease(shared);
+	}
+
+	/**
+	 * Close every connection, whether or not it is in use.
+	 */
+	public void close() {
+		List<Shared> closing;
+		synchronized(this) {
+			closing = new ArrayList<>(connections.values());
+			connections.clear();
+		}
+		for(Shared shared : closing) {
+			shared.client.disconnect();
+		}
+	}
+
+	private void release(Shared shared) {
+
+		synchronized(this) {
+			if(--shared.references > 0) {
+				return;
+			}
+			if(connections.get(shared.key) == shared && shared.client.isConnected()) {
+				shared.idle = idler.schedule(() -> expire(shared), IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+				return;
+			}
+			connections.remove(shared.key, shared);
+		}
+		shared.client.disconnect();
+	}
+
+	private void expire(Shared shared) {
+		synchronized(this) {
+			if(shared.references > 0 || !connections.remove(shared.key, shared)) {
+				return;
+			}
+		}
+		if(Log.isDebugEnabled()) {
+			Log.debug("Closing idle connection to {}", shared.key);
+		}
+		shared.client.disconnect();
+	}
+}
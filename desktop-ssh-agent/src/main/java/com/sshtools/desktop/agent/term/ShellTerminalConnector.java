@@ -20,9 +20,11 @@ package com.sshtools.desktop.agent.term;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Objects;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.sshtools.client.SessionChannelNG;
 import com.sshtools.client.SshClient;
 import com.sshtools.client.SshClient.SshClientBuilder;
 import com.sshtools.client.sftp.SftpClient.SftpClientBuilder;
@@ -33,16 +35,24 @@ import com.sshtools.common.ssh.ChannelOpenException;
 import com.sshtools.common.ssh.SshException;
 import com.sshtools.desktop.agent.DesktopAgent;
 import com.sshtools.desktop.agent.JsonConnection;
+import com.sshtools.desktop.agent.term.PreConnector.PreConnection;
+import com.sshtools.desktop.agent.term.SharedConnections.Lease;
 import com.sshtools.terminal.emulation.Terminal;
 
 public class ShellTerminalConnector extends AbstractTerminalConnector {
 	
 	SshClient ssh = null;
+	Lease lease = null;
 	boolean useKeyWizard = false;
 	public ShellTerminalConnector(DesktopAgent agent, JsonConnection serverConnection) {
 		super(agent, serverConnection);
 	}
 
+	public ShellTerminalConnector(DesktopAgent agent, JsonConnection serverConnection, boolean useKeyWizard) {
+		super(agent, serverConnection);
+		this.useKeyWizard = useKeyWizard;
+	}
+
 	public ShellTerminalConnector(DesktopAgent agent, String serverName, int serverPort, String username, boolean useKeyWizard) {
 		super(agent, serverName, serverPort, username);
 		this.useKeyWizard = useKeyWizard;
@@ -57,11 +67,30 @@ public class ShellTerminalConnector extends AbstractTerminalConnector {
 		}
 		
 		try {
-			this.ssh = SshClientBuilder.create().
-					withTarget(serverName, serverPort).
-					withUsername(username).
-					onConfigure(this::configureContext).
-					build(); 
+			/* The key wizard needs to know how this terminal authenticated */
+			if(!useKeyWizard) {
+				lease = agent.getSharedConnections().acquire(username, serverName, serverPort);
+			}
+			if(Objects.nonNull(lease)) {
+				this.ssh = lease.getClient();
+				this.hostKey = lease.getHostKey();
+				vt.clearScreen();
+				ssh.runTask(createSession(ssh));
+				release();
+				return;
+			}
+			
+			PreConnection pre = agent.getPreConnector().claim(username, serverName, serverPort);
+			if(Objects.nonNull(pre)) {
+				this.ssh = pre.getClient();
+				this.hostKey = pre.getHostKey();
+			} else {
+				this.ssh = SshClientBuilder.create().
+						withTarget(serverName, serverPort).
+						withUsername(username).
+						onConfigure(this::configureContext).
+						build(); 
+			}
 			
 			vt.clearScreen();
 			
@@ -70,9 +99,13 @@ public class ShellTerminalConnector extends AbstractTerminalConnector {
 				if(!authenticate(ssh)) {
 					writeLine();
 					writeLine("Authenticaiton failed.");
+					release();
 					return;
 				}
 			}
+			
+			pinHostKey();
+			lease = agent.getSharedConnections().share(username, serverName, serverPort, ssh, hostKey);
 
 			if(useKeyWizard) {
 				if(availableAuthentications.contains("publickey")) {
@@ -86,8 +119,9 @@ public class ShellTerminalConnector extends AbstractTerminalConnector {
 			
 			ssh.runTask(createSession(ssh));
 			
-			ssh.disconnect();
+			release();
 		} catch (IOException | SshException |ChannelOpenException e) {
+			release();
 			try {
 				writeLine(String.format("ERROR: %s", e.getMessage()));
 			} catch (IOException e1) {
@@ -97,7 +131,27 @@ public class ShellTerminalConnector extends AbstractTerminalConnector {
 
 	@Override
 	public void disconnect() {
-		if(ssh!=null) {
+		closed = true;
+		SessionChannelNG session = this.session;
+		if(session!=null) {
+			session.close();
+		}
+		release();
+	}
+
+	@Override
+	protected void sessionClosed(SshClient ssh) {
+		release();
+	}
+
+	/**
+	 * Give up this terminal's use of the connection, which is only closed if
+	 * no other terminal is sharing it.
+	 */
+	private void release() {
+		if(lease!=null) {
+			lease.release();
+		} else if(ssh!=null) {
 			ssh.disconnect();
 		}
 	}
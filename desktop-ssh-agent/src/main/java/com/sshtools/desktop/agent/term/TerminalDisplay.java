@@ -20,6 +20,7 @@ package com.sshtools.desktop.agent.term;
 
 import java.awt.Desktop;
 import java.io.IOException;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.prefs.Preferences;
 
@@ -33,10 +34,12 @@ import org.eclipse.swt.events.ShellAdapter;
 import org.eclipse.swt.events.ShellEvent;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.MenuItem;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Widget;
 
 import com.sshtools.terminal.emulation.VDUColor;
 import com.sshtools.terminal.vt.swt.SWTScrollBar;
@@ -59,6 +62,15 @@ public class TerminalDisplay {
 	SWTTerminalPanel stp = null;
 	Shell frame;
 	
+	/**
+	 * Whether the widget is in a terminal window, so keys meant for the
+	 * remote shell are not taken as application shortcuts.
+	 */
+	public static boolean isTerminal(Widget widget) {
+		return widget instanceof Control && !widget.isDisposed()
+				&& Objects.nonNull(((Control) widget).getShell().getData(TerminalDisplay.class.getName()));
+	}
+	
 	public void runTerminal(String title, ShellTerminalConnector connector) {
 
 			GridLayout layout = new GridLayout(2, false);
@@ -66,6 +78,7 @@ public class TerminalDisplay {
 			frame = new Shell();
 			frame.setLayout(layout);
 			frame.setText(title);
+			frame.setData(TerminalDisplay.class.getName(), this);
 			frame.addShellListener(new ShellAdapter() {
 				public void shellClosed(ShellEvent arg0) {
 					stp.getControl().dispose();
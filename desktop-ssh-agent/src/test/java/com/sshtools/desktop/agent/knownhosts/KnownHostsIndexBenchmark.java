@@ -0,0 +1,177 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.knownhosts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sshtools.common.knownhosts.KnownHostsKeyVerification;
+import com.sshtools.common.publickey.SshKeyUtils;
+import com.sshtools.common.ssh.SshException;
+import com.sshtools.common.ssh.components.SshPublicKey;
+
+/**
+ * Uncached host verification against a known_hosts file shaped like a real
+ * one, with {@link KnownHostsIndex} side by side with the linear scan of
+ * {@link KnownHostsKeyVerification} it replaces. Every line has its own key,
+ * and hashed lines are produced the way OpenSSH and
+ * {@link KnownHostsCompactor#hashName(String)} produce them, with a fresh
+ * random salt on every line, so each one costs its own HMAC.
+ * <p>
+ * Run with <code>mvn test-compile exec:java
+ * -Dexec.mainClass=com.sshtools.desktop.agent.knownhosts.KnownHostsIndexBenchmark
+ * -Dexec.classpathScope=test</code>, or from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KnownHostsIndexBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	int lines;
+
+	/** Percentage of the lines that are hashed */
+	@Param({ "0", "50", "100" })
+	int hashed;
+
+	KnownHostsIndex index;
+	KnownHostsKeyVerification linear;
+	String plainHost;
+	String hashedHost;
+	SshPublicKey plainKey;
+	SshPublicKey hashedKey;
+	SshPublicKey unknownKey;
+
+	@Setup
+	public void setup() throws IOException, SshException {
+		Random random = new Random(lines * 100L + hashed);
+		KnownHostsCompactor compactor = new KnownHostsCompactor(false, true);
+		List<KnownHostsEntry> entries = new ArrayList<>(lines + 1);
+		StringBuilder text = new StringBuilder();
+		int hashedLines = lines * hashed / 100;
+		String hashedLine = null;
+		for(int i = 0; i < lines; i++) {
+			String host = "host" + i + ".example.com";
+			String line = (i < hashedLines ? compactor.hashName(host) : host) + " " + randomKey(random);
+			entries.add(KnownHostsParser.parseLine(line));
+			text.append(line).append('\n');
+			if(i == hashedLines - 1) {
+				hashedHost = host;
+				hashedLine = line;
+			}
+		}
+		plainHost = "plain.example.com";
+		String plainLine = plainHost + " " + randomKey(random);
+		entries.add(KnownHostsParser.parseLine(plainLine));
+		text.append(plainLine).append('\n');
+		if(Objects.isNull(hashedLine)) {
+			hashedHost = plainHost;
+			hashedLine = plainLine;
+		}
+
+		index = new KnownHostsIndex(entries);
+		linear = new KnownHostsKeyVerification(new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8)));
+		plainKey = KnownHostsParser.parseLine(plainLine).getKey();
+		hashedKey = KnownHostsParser.parseLine(hashedLine).getKey();
+		unknownKey = SshKeyUtils.getPublicKey(randomKey(random));
+	}
+
+	static String randomKey(Random random) throws IOException {
+		byte[] point = new byte[32];
+		random.nextBytes(point);
+		ByteArrayOutputStream blob = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(blob);
+		byte[] type = "ssh-ed25519".getBytes(StandardCharsets.US_ASCII);
+		out.writeInt(type.length);
+		out.write(type);
+		out.writeInt(point.length);
+		out.write(point);
+		return "ssh-ed25519 " + Base64.getEncoder().encodeToString(blob.toByteArray());
+	}
+
+	@Benchmark
+	public KnownHostsIndex.Status indexVerifyPlain() throws SshException {
+		index.lookupCache.clear();
+		return index.verify(plainHost, plainKey);
+	}
+
+	@Benchmark
+	public KnownHostsIndex.Status indexVerifyHashed() throws SshException {
+		index.lookupCache.clear();
+		return index.verify(hashedHost, hashedKey);
+	}
+
+	/** A host and key that are not in the file, so every hashed line must be tested */
+	@Benchmark
+	public KnownHostsIndex.Status indexVerifyUnknown() throws SshException {
+		index.lookupCache.clear();
+		return index.verify("unknown.example.com", unknownKey);
+	}
+
+	@Benchmark
+	public List<KnownHostsEntry> indexLookupCached() {
+		return index.lookup(plainHost);
+	}
+
+	@Benchmark
+	public boolean linearVerifyPlain() throws SshException {
+		return linear.isKnownHost(plainHost, plainKey);
+	}
+
+	@Benchmark
+	public boolean linearVerifyHashed() throws SshException {
+		return linear.isKnownHost(hashedHost, hashedKey);
+	}
+
+	@Benchmark
+	public boolean linearVerifyUnknown() throws SshException {
+		return linear.isKnownHost("unknown.example.com", unknownKey);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(KnownHostsIndexBenchmark.class.getSimpleName()).build()).run();
+	}
+}
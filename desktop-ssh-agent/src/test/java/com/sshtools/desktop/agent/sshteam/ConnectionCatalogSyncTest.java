@@ -0,0 +1,255 @@
+/**
+ * (c) 2002-2023 JADAPTIVE Limited. All Rights Reserved.
+ *
+ * This file is part of the Desktop SSH Agent.
+ *
+ * Desktop SSH Agent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Desktop SSH Agent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Desktop SSH Agent.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.sshtools.desktop.agent.sshteam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sshtools.desktop.agent.ConnectionSearch;
+import com.sshtools.desktop.agent.ConnectionStore;
+import com.sshtools.desktop.agent.JsonConnection;
+import com.sshtools.desktop.agent.JsonConnectionChanges;
+
+public class ConnectionCatalogSyncTest {
+
+	/**
+	 * Stands in for the gateway. It keeps a log of changes to its catalog and
+	 * answers with the JSON the gateway would send, which is read the same
+	 * way as a real response. Once its history is forgotten, it sends the
+	 * complete catalog to a client that asks for changes since an older
+	 * revision.
+	 */
+	static class StandInGateway implements ConnectionCatalogSync.Source {
+
+		static class Change {
+			final long revision;
+			final String name;
+			final String hostname;
+
+			Change(long revision, String name, String hostname) {
+				this.revision = revision;
+				this.name = name;
+				this.hostname = hostname;
+			}
+		}
+
+		final ObjectMapper mapper = new ObjectMapper();
+		final Map<String, String> catalog = new LinkedHashMap<>();
+		final List<Change> log = new ArrayList<>();
+		final List<Long> requested = new ArrayList<>();
+		long revision;
+		long oldest;
+
+		void put(String name, String hostname) {
+			catalog.put(name, hostname);
+			log.add(new Change(++revision, name, hostname));
+		}
+
+		void delete(String name) {
+			catalog.remove(name);
+			log.add(new Change(++revision, name, null));
+		}
+
+		void forget() {
+			log.clear();
+			oldest = revision;
+		}
+
+		@Override
+		public JsonConnectionChanges getChanges(long since) throws IOException {
+
+			requested.add(since);
+
+			ObjectNode response = mapper.createObjectNode();
+			response.put("success", true);
+			response.put("revision", revision);
+			ArrayNode resources = response.putArray("resources");
+			ArrayNode deleted = response.putArray("deleted");
+
+			if(since == 0 || since < oldest) {
+				response.put("complete", true);
+				for(Map.Entry<String, String> en : catalog.entrySet()) {
+					resources.add(connection(en.getKey(), en.getValue()));
+				}
+			} else {
+				response.put("complete", false);
+				Map<String, String> latest = new LinkedHashMap<>();
+				for(Change change : log) {
+					if(change.revision > since) {
+						latest.put(change.name, change.hostname);
+					}
+				}
+				for(Map.Entry<String, String> en : latest.entrySet()) {
+					if(en.getValue() == null) {
+						deleted.add(en.getKey());
+					} else {
+						resources.add(connection(en.getKey(), en.getValue()));
+					}
+				}
+			}
+
+			return SshTeamHelper.parseConnectionChanges(mapper.writeValueAsString(response));
+		}
+
+		private ObjectNode connection(String name, String hostname) {
+			ObjectNode con = mapper.createObjectNode();
+			con.put("name", name);
+			con.put("hostname", hostname);
+			con.put("port", 22);
+			con.put("username", "admin");
+			return con;
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	StandInGateway gateway;
+	ConnectionStore store;
+	ConnectionCatalogSync sync;
+
+	@Before
+	public void setUp() throws IOException {
+		gateway = new StandInGateway();
+		open();
+	}
+
+	private void open() throws IOException {
+		store = new ConnectionStore(new File(folder.getRoot(), "remote-connections.json"),
+				new File(folder.getRoot(), "remote-connections.journal"), true, new ConnectionSearch());
+		sync = new ConnectionCatalogSync(store, new File(folder.getRoot(), "remote-connections.revision"), gateway);
+	}
+
+	private TreeSet<String> names() {
+		TreeSet<String> names = new TreeSet<>();
+		for(JsonConnection con : store.getConnections()) {
+			names.add(con.getName());
+		}
+		return names;
+	}
+
+	@Test
+	public void firstSyncFetchesCompleteCatalog() throws Exception {
+		gateway.put("web", "web.example.com");
+		gateway.put("db", "db.example.com");
+
+		assertTrue(sync.sync());
+
+		assertEquals(List.of(0L), gateway.requested);
+		assertEquals(new TreeSet<>(List.of("db", "web")), names());
+		assertEquals(2L, sync.getRevision());
+		assertTrue(store.getConnection("web").isRemote());
+	}
+
+	@Test
+	public void changesSinceRevisionAreApplied() throws Exception {
+		gateway.put("web", "web.example.com");
+		gateway.put("db", "db.example.com");
+		sync.sync();
+
+		gateway.put("web", "web2.example.com");
+		gateway.put("cache", "cache.example.com");
+		gateway.delete("db");
+		assertTrue(sync.sync());
+
+		assertEquals(List.of(0L, 2L), gateway.requested);
+		assertEquals(new TreeSet<>(List.of("cache", "web")), names());
+		assertEquals("web2.example.com", store.getConnection("web").getHostname());
+		assertEquals(5L, sync.getRevision());
+	}
+
+	@Test
+	public void noChangesLeavesCatalog() throws Exception {
+		gateway.put("web", "web.example.com");
+		sync.sync();
+
+		assertFalse(sync.sync());
+		assertEquals(List.of(0L, 1L), gateway.requested);
+		assertEquals(new TreeSet<>(List.of("web")), names());
+	}
+
+	@Test
+	public void catalogAndRevisionSurviveRestart() throws Exception {
+		gateway.put("web", "web.example.com");
+		gateway.put("db", "db.example.com");
+		sync.sync();
+
+		open();
+		assertEquals(new TreeSet<>(List.of("db", "web")), names());
+		assertEquals(2L, sync.getRevision());
+
+		gateway.delete("web");
+		sync.sync();
+		assertEquals(2L, (long) gateway.requested.get(gateway.requested.size() - 1));
+		assertEquals(new TreeSet<>(List.of("db")), names());
+	}
+
+	@Test
+	public void completeCatalogReplacesLocalCopy() throws Exception {
+		gateway.put("web", "web.example.com");
+		gateway.put("db", "db.example.com");
+		sync.sync();
+
+		gateway.delete("db");
+		gateway.put("cache", "cache.example.com");
+		gateway.forget();
+		assertTrue(sync.sync());
+
+		assertEquals(new TreeSet<>(List.of("cache", "web")), names());
+		assertNull(store.getConnection("db"));
+		assertEquals(4L, sync.getRevision());
+	}
+
+	@Test
+	public void replayAfterLostRevisionGivesSameCatalog() throws Exception {
+		gateway.put("web", "web.example.com");
+		gateway.put("db", "db.example.com");
+		sync.sync();
+		gateway.put("cache", "cache.example.com");
+		sync.sync();
+
+		/* As if the agent stopped after writing the catalog but before the revision */
+		assertTrue(new File(folder.getRoot(), "remote-connections.revision").delete());
+		open();
+		assertEquals(0L, sync.getRevision());
+		sync.sync();
+
+		assertEquals(new TreeSet<>(List.of("cache", "db", "web")), names());
+		assertEquals(3, store.getConnections().size());
+		assertEquals(3L, sync.getRevision());
+	}
+}